@@ -8,11 +8,12 @@ echo 2. 工作队列模式
 echo 3. 发布/订阅模式
 echo 4. 路由模式
 echo 5. 主题模式
+echo 6. 多角色运行器（一个 JVM 运行多个角色）
 echo 0. 退出
 echo =========================
 
 :menu
-set /p choice=请选择要运行的示例 (0-5): 
+set /p choice=请选择要运行的示例 (0-6): 
 
 if "%choice%"=="0" goto exit
 if "%choice%"=="1" goto basic
@@ -20,6 +21,7 @@ if "%choice%"=="2" goto workqueue
 if "%choice%"=="3" goto pubsub
 if "%choice%"=="4" goto routing
 if "%choice%"=="5" goto topic
+if "%choice%"=="6" goto multirole
 
 echo 无效的选择，请重新输入。
 goto menu
@@ -85,6 +87,14 @@ echo 启动主题生产者...
 mvn exec:java -Dexec.mainClass=com.rabbitmq.demo.topic.TopicProducer
 goto menu
 
+:multirole
+echo 在一个 JVM 中启动 2 个工作队列消费者、主题消费者2和死信消费者...
+start cmd /k "mvn exec:java -Dexec.mainClass=com.rabbitmq.demo.runner.MultiRoleRunner "-Dexec.args=2xWorkQueueConsumer1,1xTopicConsumer2,1xDLXConsumer""
+echo 3秒后启动工作队列生产者...
+timeout /t 3 >nul
+mvn exec:java -Dexec.mainClass=com.rabbitmq.demo.workqueue.WorkQueueProducer
+goto menu
+
 :exit
 echo 感谢使用 RabbitMQ 示例！
 exit /b
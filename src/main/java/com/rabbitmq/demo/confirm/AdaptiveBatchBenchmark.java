@@ -0,0 +1,105 @@
+package com.rabbitmq.demo.confirm;
+
+import java.util.Random;
+
+/**
+ * 自适应批量大小基准测试
+ *
+ * 不需要启动RabbitMQ服务器，用模拟时钟下的“替身Broker”计算每一批的确认耗时：
+ * 批次耗时 = 确认往返时间 + 每条消息的处理时间 × 批量大小 + 过载惩罚 + 随机抖动
+ * 其中过载惩罚在批量超过Broker的承受能力后按平方增长（相当于触发了流控或内存压力）。
+ *
+ * 分别在“快速Broker”（普通队列、本地网络）和“慢速Broker”（仲裁队列、需要落盘复制）上
+ * 比较固定批量（与 batchConfirm() 相同的100）和自适应批量发送相同数量消息的总耗时。
+ */
+public class AdaptiveBatchBenchmark {
+  // 每种场景发送的消息数
+  private static final int MESSAGE_COUNT = 2_000_000;
+  // 固定批量大小（与 ConfirmPublisher.batchConfirm() 一致）
+  private static final int FIXED_BATCH_SIZE = 100;
+
+  /**
+   * 模拟的Broker
+   */
+  static final class StandInBroker {
+    final String name;
+    // 确认往返时间（纳秒）
+    final long roundTripNanos;
+    // 每条消息的处理时间（纳秒）
+    final long perMessageNanos;
+    // 开始出现过载惩罚的批量大小
+    final int overloadThreshold;
+    // 过载惩罚系数（纳秒 / 条²）
+    final double overloadPenaltyNanos;
+    final Random random = new Random(42);
+
+    StandInBroker(String name, long roundTripNanos, long perMessageNanos, int overloadThreshold,
+        double overloadPenaltyNanos) {
+      this.name = name;
+      this.roundTripNanos = roundTripNanos;
+      this.perMessageNanos = perMessageNanos;
+      this.overloadThreshold = overloadThreshold;
+      this.overloadPenaltyNanos = overloadPenaltyNanos;
+    }
+
+    /**
+     * @return 发送一批消息并等待确认的耗时（纳秒）
+     */
+    long batchNanos(int batchSize) {
+      double nanos = roundTripNanos + (double) perMessageNanos * batchSize;
+      if (batchSize > overloadThreshold) {
+        double excess = batchSize - overloadThreshold;
+        nanos += overloadPenaltyNanos * excess * excess;
+      }
+      // ±10% 的随机抖动
+      return (long) (nanos * (0.9 + 0.2 * random.nextDouble()));
+    }
+  }
+
+  public static void main(String[] args) {
+    System.out.println("=== 自适应批量大小基准测试（模拟时钟） ===");
+
+    StandInBroker[] brokers = {
+        new StandInBroker("快速Broker", 300_000, 5_000, 2_000, 20),
+        new StandInBroker("慢速Broker", 20_000_000, 10_000, 5_000, 10),
+    };
+
+    for (StandInBroker broker : brokers) {
+      System.out.println("\n--- " + broker.name + " ---");
+
+      long fixedNanos = runFixed(broker);
+      AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+      long adaptiveNanos = runAdaptive(broker, sizer);
+
+      System.out.printf("固定批量 %d: %10.0f 条/秒\n", FIXED_BATCH_SIZE, rate(fixedNanos));
+      System.out.printf("自适应批量: %10.0f 条/秒 (%.1fx)\n", rate(adaptiveNanos),
+          (double) fixedNanos / adaptiveNanos);
+      sizer.printHistory(15);
+    }
+  }
+
+  private static long runFixed(StandInBroker broker) {
+    long clock = 0;
+    for (int sent = 0; sent < MESSAGE_COUNT; sent += FIXED_BATCH_SIZE) {
+      clock += broker.batchNanos(Math.min(FIXED_BATCH_SIZE, MESSAGE_COUNT - sent));
+    }
+    return clock;
+  }
+
+  private static long runAdaptive(StandInBroker broker, AdaptiveBatchSizer sizer) {
+    long clock = 0;
+    int sent = 0;
+    while (sent < MESSAGE_COUNT) {
+      int batchSize = Math.min(sizer.getBatchSize(), MESSAGE_COUNT - sent);
+      long elapsed = broker.batchNanos(batchSize);
+      clock += elapsed;
+      sent += batchSize;
+      sizer.onBatchConfirmed(batchSize, elapsed, true, clock);
+    }
+    return clock;
+  }
+
+  private static double rate(long nanos) {
+    return MESSAGE_COUNT / (nanos / 1_000_000_000.0);
+  }
+}
@@ -0,0 +1,190 @@
+package com.rabbitmq.demo.confirm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 自适应批量大小（AIMD）
+ *
+ * 批量确认模式下，合适的批量大小取决于Broker的确认延迟和队列类型：
+ * - 确认往返时间长（例如仲裁队列需要多数节点落盘）时，批量越大越能摊薄等待时间
+ * - 批量过大时，单批的确认时间会明显增长，吞吐量反而下降
+ *
+ * 本类根据每一批的确认耗时计算吞吐量，按“加性增、乘性减”调整下一批的大小：
+ * 1. 开始阶段（慢启动）每批翻倍，尽快接近合适的大小
+ * 2. 之后平滑吞吐量没有明显低于近期峰值时，批量大小增加 increaseStep（批量较大时至少增加2%）
+ * 3. 平滑吞吐量连续两批明显低于峰值，或批量确认失败时，批量大小乘以 decreaseFactor，
+ *    结束慢启动并以当前吞吐量作为新的基准
+ * 4. 批量大小始终限制在 [minBatchSize, maxBatchSize] 之间
+ *
+ * 批量大小的每次变化都会记录下来，便于观察调整过程。
+ */
+public class AdaptiveBatchSizer {
+  // 近期吞吐量平均值的平滑系数
+  private static final double EWMA_ALPHA = 0.3;
+  // 峰值吞吐量每批的衰减系数，使峰值能跟随Broker状态的变化
+  private static final double PEAK_DECAY = 0.999;
+  // 平滑吞吐量低于峰值多少比例时视为下降
+  private static final double DEGRADE_TOLERANCE = 0.1;
+  // 连续多少批吞吐量下降时才减小批量，避免偶发抖动引起误判
+  private static final int DEGRADE_CONFIRMATIONS = 2;
+  // 最多保留的调整记录数
+  private static final int MAX_HISTORY = 1000;
+
+  // 最小批量大小
+  private final int minBatchSize;
+  // 最大批量大小
+  private final int maxBatchSize;
+  // 每次增加的大小
+  private final int increaseStep;
+  // 每次减小时乘以的系数
+  private final double decreaseFactor;
+
+  // 当前批量大小
+  private int batchSize;
+  // 近期吞吐量平均值（条/纳秒）
+  private double averageThroughput;
+  // 近期吞吐量峰值（条/纳秒）
+  private double peakThroughput;
+  // 已观察的批次数
+  private long batches;
+  // 连续吞吐量下降的批次数
+  private int degradedBatches;
+  // 是否处于慢启动阶段
+  private boolean slowStart = true;
+  // 批量大小的调整记录：{批次序号, 距第一批开始的时间（纳秒）, 批量大小}
+  private final ArrayDeque<long[]> history = new ArrayDeque<>();
+  // 第一批开始的时间
+  private long originNanos;
+
+  /**
+   * 使用默认参数创建：初始100（与 batchConfirm() 相同），范围 [1, 10000]，每次至少增加10，减小时乘以0.75
+   */
+  public AdaptiveBatchSizer() {
+    this(100, 1, 10000, 10, 0.75);
+  }
+
+  /**
+   * 创建自适应批量大小
+   *
+   * @param initialBatchSize 初始批量大小
+   * @param minBatchSize     最小批量大小
+   * @param maxBatchSize     最大批量大小
+   * @param increaseStep     每次增加的大小
+   * @param decreaseFactor   每次减小时乘以的系数（0到1之间）
+   */
+  public AdaptiveBatchSizer(int initialBatchSize, int minBatchSize, int maxBatchSize, int increaseStep,
+      double decreaseFactor) {
+    if (minBatchSize <= 0 || maxBatchSize < minBatchSize || increaseStep <= 0
+        || decreaseFactor <= 0 || decreaseFactor >= 1) {
+      throw new IllegalArgumentException("批量大小参数不合法");
+    }
+    this.minBatchSize = minBatchSize;
+    this.maxBatchSize = maxBatchSize;
+    this.increaseStep = increaseStep;
+    this.decreaseFactor = decreaseFactor;
+    this.batchSize = clamp(initialBatchSize);
+    history.add(new long[] {0, 0, batchSize});
+  }
+
+  /**
+   * @return 下一批应发送的消息数
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * 记录一批消息的确认结果，并调整下一批的大小
+   *
+   * @param size         这一批实际发送的消息数
+   * @param elapsedNanos 从这一批第一条消息发送到全部确认的耗时（纳秒）
+   * @param confirmed    这一批是否全部确认成功
+   */
+  public void onBatchConfirmed(int size, long elapsedNanos, boolean confirmed) {
+    onBatchConfirmed(size, elapsedNanos, confirmed, System.nanoTime());
+  }
+
+  /**
+   * 记录一批消息的确认结果，使用调用方提供的时间戳（便于在模拟时钟下测试）
+   *
+   * @param size         这一批实际发送的消息数
+   * @param elapsedNanos 这一批的耗时（纳秒）
+   * @param confirmed    这一批是否全部确认成功
+   * @param nowNanos     当前时间（纳秒）
+   */
+  public synchronized void onBatchConfirmed(int size, long elapsedNanos, boolean confirmed, long nowNanos) {
+    double throughput = size / (double) Math.max(1, elapsedNanos);
+    if (batches++ == 0) {
+      originNanos = nowNanos - elapsedNanos;
+    }
+
+    averageThroughput = batches == 1
+        ? throughput
+        : EWMA_ALPHA * throughput + (1 - EWMA_ALPHA) * averageThroughput;
+    peakThroughput = Math.max(averageThroughput, peakThroughput * PEAK_DECAY);
+
+    if (averageThroughput < peakThroughput * (1 - DEGRADE_TOLERANCE)) {
+      degradedBatches++;
+    } else {
+      degradedBatches = 0;
+    }
+
+    int next;
+    if (!confirmed || degradedBatches >= DEGRADE_CONFIRMATIONS) {
+      next = (int) (batchSize * decreaseFactor);
+      degradedBatches = 0;
+      slowStart = false;
+      peakThroughput = averageThroughput;
+    } else if (degradedBatches > 0) {
+      // 可能只是抖动，保持当前大小再观察一批
+      next = batchSize;
+    } else if (slowStart) {
+      next = batchSize * 2;
+    } else {
+      next = batchSize + Math.max(increaseStep, batchSize / 50);
+    }
+
+    next = clamp(next);
+    if (next != batchSize) {
+      batchSize = next;
+      record(nowNanos);
+    }
+  }
+
+  /**
+   * @return 近期平均吞吐量（条/秒）
+   */
+  public synchronized double getAverageThroughput() {
+    return averageThroughput * 1_000_000_000L;
+  }
+
+  /**
+   * 打印批量大小的调整过程
+   *
+   * @param maxLines 最多打印的行数，超过时均匀抽样
+   */
+  public synchronized void printHistory(int maxLines) {
+    System.out.println("[自适应批量] 批量大小调整过程（批次, 时间 毫秒 -> 批量大小）:");
+    List<long[]> entries = new ArrayList<>(history);
+    int step = Math.max(1, entries.size() / Math.max(1, maxLines));
+    for (int i = 0; i < entries.size(); i += step) {
+      long[] entry = entries.get(i);
+      System.out.printf("  第 %6d 批, %10.1f -> %d\n", entry[0], entry[1] / 1000000.0, entry[2]);
+    }
+    System.out.printf("[自适应批量] 当前批量大小: %d, 批次数: %d, 平均吞吐量: %.0f 条/秒\n",
+        batchSize, batches, getAverageThroughput());
+  }
+
+  private void record(long nowNanos) {
+    if (history.size() >= MAX_HISTORY) {
+      history.pollFirst();
+    }
+    history.add(new long[] {batches, nowNanos - originNanos, batchSize});
+  }
+
+  private int clamp(int size) {
+    return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+  }
+}
@@ -0,0 +1,151 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.demo.utils.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * 确认屏障
+ *
+ * 用于“等待所有已发布消息都得到确认”的场景，替代 sleep 轮询：
+ * 1. 发布前调用 register() 记录序列号
+ * 2. ConfirmCallback 中调用 onAck()/onNack()，最后一条未确认消息被移除时立即唤醒等待线程
+ * 3. awaitAll() 阻塞到全部确认或超时，返回被 nack 和超时未确认的序列号
+ * 4. 每条消息从 register() 到确认的延迟记录在直方图中
+ *
+ * 屏障可以重复使用：每次 awaitAll() 返回后清空已报告的 nack 列表，
+ * 下一批消息继续 register() 即可。超时未确认的消息仍然保留在跟踪器中，
+ * 之后到达的确认会正常移除它们。
+ */
+public class ConfirmBarrier {
+  // 未确认消息跟踪器
+  private final ConfirmTracker tracker;
+  // 被 nack 的序列号（只在失败路径上使用，装箱开销可以接受）
+  private final List<Long> nacked = new ArrayList<>();
+  // 按序列号记录的发布时间（与跟踪器使用相同的环形下标）
+  private final long[] publishNanos;
+  private final int publishNanosMask;
+  // 发布到确认的延迟直方图
+  private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+  // 确认时记录延迟的回调，预先创建避免每次确认分配对象
+  private final LongConsumer recordAcked;
+  private final LongConsumer recordNacked;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition drained = lock.newCondition();
+
+  /**
+   * 创建确认屏障
+   *
+   * @param capacity 最大在途未确认消息数
+   */
+  public ConfirmBarrier(int capacity) {
+    this.tracker = new ConfirmTracker(capacity);
+    this.publishNanos = new long[(int) tracker.capacity()];
+    this.publishNanosMask = publishNanos.length - 1;
+    this.recordAcked = this::recordLatency;
+    this.recordNacked = seqNo -> {
+      nacked.add(seqNo);
+      recordLatency(seqNo);
+    };
+  }
+
+  /**
+   * 记录一条即将发布的消息，应在 basicPublish 之前调用
+   *
+   * @param seqNo 发布序列号
+   */
+  public void register(long seqNo) {
+    // 先占用槽位再写发布时间：超出容量时 add() 抛出异常，不会覆盖仍未确认的消息的发布时间
+    tracker.add(seqNo);
+    publishNanos[(int) (seqNo & publishNanosMask)] = System.nanoTime();
+  }
+
+  /**
+   * 在 ack 回调中调用
+   *
+   * @param deliveryTag 确认的序列号
+   * @param multiple    是否批量确认
+   */
+  public void onAck(long deliveryTag, boolean multiple) {
+    if (tracker.confirm(deliveryTag, multiple, recordAcked) > 0 && tracker.isEmpty()) {
+      signalDrained();
+    }
+  }
+
+  /**
+   * 在 nack 回调中调用，被否定确认的序列号会在 awaitAll() 中返回
+   *
+   * @param deliveryTag 否定确认的序列号
+   * @param multiple    是否批量否定确认
+   */
+  public void onNack(long deliveryTag, boolean multiple) {
+    int removed;
+    synchronized (nacked) {
+      removed = tracker.confirm(deliveryTag, multiple, recordNacked);
+    }
+    if (removed > 0 && tracker.isEmpty()) {
+      signalDrained();
+    }
+  }
+
+  /**
+   * 等待所有已记录的消息得到确认
+   *
+   * @param timeout 最长等待时间
+   * @param unit    时间单位
+   * @return 被 nack 的序列号和超时仍未确认的序列号，全部成功时为空列表
+   * @throws InterruptedException 等待时被中断
+   */
+  public List<Long> awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (!tracker.isEmpty() && remaining > 0) {
+        remaining = drained.awaitNanos(remaining);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    List<Long> failed;
+    synchronized (nacked) {
+      failed = new ArrayList<>(nacked);
+      nacked.clear();
+    }
+    tracker.forEachOutstanding(failed::add);
+    return failed;
+  }
+
+  /**
+   * @return 当前未确认的消息数
+   */
+  public long getOutstandingCount() {
+    return tracker.size();
+  }
+
+  /**
+   * @return 发布到确认的延迟直方图
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  private void recordLatency(long seqNo) {
+    latencyHistogram.record(System.nanoTime() - publishNanos[(int) (seqNo & publishNanosMask)]);
+  }
+
+  private void signalDrained() {
+    lock.lock();
+    try {
+      drained.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,464 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.client.AMQP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于内存映射文件的发布日志（预写日志）
+ *
+ * 异步确认模式下，未确认的消息只保存在发布进程的内存中，进程崩溃后这些消息就丢失了。
+ * 本类在发布前把消息追加到内存映射的日志段文件中，得到确认后再做标记：
+ * 1. append() 把消息写入当前日志段并返回句柄，当前段写满后切换到新的段文件
+ * 2. 收到 ack 时调用 markConfirmed()，把记录的状态字节改为已确认
+ * 3. 已写满且所有记录都已确认的日志段会被关闭并删除，磁盘占用只与未确认的消息数有关
+ * 4. 重新启动时扫描目录中残留的日志段，replayPending() 把其中未确认的消息重新写入日志
+ *    并交给调用方重新发布，全部重新写入后删除旧的日志段
+ *
+ * 记录格式：[记录长度 int][状态 byte][交换机][路由键][消息属性][消息体]
+ * 记录长度最后写入，进程在写入一条记录的过程中崩溃时，长度仍为0，恢复时会忽略这半条记录。
+ *
+ * 注意事项：
+ * - 写入内存映射文件的数据在进程崩溃后仍保留在操作系统的页缓存中；要防止断电丢失，
+ *   需要开启 forceOnAppend 或定期调用 force()，代价是每次刷盘的延迟
+ * - 消息属性只保存常用的字符串、整数和时间戳字段；带 headers 的消息无法完整恢复，append() 会拒绝
+ * - 恢复是“至少一次”语义：崩溃前Broker已接收但尚未确认的消息会被重复发布
+ * - append() 和 replayPending() 只能由一个发布线程调用，markConfirmed() 可以在连接线程上调用
+ */
+public class ConfirmJournal implements AutoCloseable {
+  // 默认的日志段大小
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  // 日志段文件名前缀和后缀
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  // 记录状态
+  private static final byte PENDING = 0;
+  private static final byte CONFIRMED = 1;
+  // 记录头：长度 + 状态
+  private static final int HEADER_SIZE = 5;
+  // 交换机、路由键以及9个字符串属性
+  private static final int STRING_FIELD_COUNT = 11;
+
+  // 日志目录
+  private final Path directory;
+  // 每个日志段的大小
+  private final int segmentSize;
+  // 是否每次追加后都刷盘
+  private final boolean forceOnAppend;
+
+  // 所有打开的日志段，按段号索引
+  private final ConcurrentMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+  // 启动时发现的上一次运行残留的日志段
+  private final List<Path> recoveredFiles = new ArrayList<>();
+  // 当前写入的日志段
+  private Segment current;
+  // 下一个日志段的段号
+  private int nextSegmentIndex;
+  // 编码字符串字段的缓冲区，只由发布线程使用
+  private final byte[][] stringFields = new byte[STRING_FIELD_COUNT][];
+
+  // 追加的记录数
+  private final AtomicLong appendedCount = new AtomicLong();
+  // 已确认的记录数
+  private final AtomicLong confirmedCount = new AtomicLong();
+  // 已删除的日志段数
+  private final AtomicLong deletedSegmentCount = new AtomicLong();
+
+  /**
+   * 从日志中恢复的一条未确认消息
+   */
+  public static final class Entry {
+    public final String exchange;
+    public final String routingKey;
+    public final AMQP.BasicProperties props;
+    public final byte[] body;
+
+    Entry(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.props = props;
+      this.body = body;
+    }
+  }
+
+  /**
+   * 重新发布恢复出来的消息
+   */
+  public interface ReplayHandler {
+    /**
+     * @param handle 消息重新写入日志后的句柄，确认后用它调用 markConfirmed()
+     * @param entry  恢复出来的消息
+     */
+    void replay(long handle, Entry entry) throws IOException, InterruptedException;
+  }
+
+  /**
+   * 一个日志段文件
+   */
+  private static final class Segment {
+    final int index;
+    final Path path;
+    final FileChannel fileChannel;
+    // 标记状态字节使用的缓冲区（只做绝对位置写入，可以被多个线程使用）
+    final MappedByteBuffer buffer;
+    // 追加记录使用的缓冲区，只由发布线程使用
+    final ByteBuffer writeBuffer;
+    // 尚未确认的记录数
+    final AtomicInteger pending = new AtomicInteger();
+    // 是否已写满，不再追加记录
+    volatile boolean sealed;
+    final AtomicBoolean deleted = new AtomicBoolean();
+
+    Segment(int index, Path path, FileChannel fileChannel, MappedByteBuffer buffer) {
+      this.index = index;
+      this.path = path;
+      this.fileChannel = fileChannel;
+      this.buffer = buffer;
+      this.writeBuffer = buffer.duplicate();
+    }
+  }
+
+  /**
+   * 使用默认段大小、不强制刷盘打开日志
+   *
+   * @param directory 日志目录，不存在时自动创建
+   * @throws IOException IO 异常
+   */
+  public ConfirmJournal(Path directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE, false);
+  }
+
+  /**
+   * 打开日志目录，记录上一次运行残留的日志段以便恢复
+   *
+   * @param directory     日志目录，不存在时自动创建
+   * @param segmentSize   每个日志段的大小（字节）
+   * @param forceOnAppend 是否每次追加后都刷盘
+   * @throws IOException IO 异常
+   */
+  public ConfirmJournal(Path directory, int segmentSize, boolean forceOnAppend) throws IOException {
+    if (segmentSize <= HEADER_SIZE) {
+      throw new IllegalArgumentException("日志段大小过小");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.forceOnAppend = forceOnAppend;
+
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        recoveredFiles.add(path);
+        nextSegmentIndex = Math.max(nextSegmentIndex, segmentIndexOf(path) + 1);
+      }
+    }
+    // 段号递增，按段号排序即按写入顺序重新发布
+    recoveredFiles.sort((a, b) -> Integer.compare(segmentIndexOf(a), segmentIndexOf(b)));
+  }
+
+  /**
+   * 把上一次运行残留的未确认消息重新写入日志并交给调用方重新发布，
+   * 全部处理完后删除旧的日志段。应在发布新消息之前调用。
+   *
+   * @param handler 重新发布消息的回调
+   * @return 恢复的消息数
+   * @throws IOException          IO 异常
+   * @throws InterruptedException 回调等待时被中断
+   */
+  public int replayPending(ReplayHandler handler) throws IOException, InterruptedException {
+    int replayed = 0;
+    for (Path path : recoveredFiles) {
+      for (Entry entry : readPending(path)) {
+        long handle = append(entry.exchange, entry.routingKey, entry.props, entry.body);
+        handler.replay(handle, entry);
+        replayed++;
+      }
+    }
+    // 未确认的消息都已写入新的日志段，旧的日志段可以删除
+    for (Path path : recoveredFiles) {
+      Files.deleteIfExists(path);
+    }
+    recoveredFiles.clear();
+    return replayed;
+  }
+
+  /**
+   * 追加一条消息，应在 basicPublish 之前调用
+   *
+   * @param exchange   交换机名称
+   * @param routingKey 路由键
+   * @param props      消息属性
+   * @param body       消息体
+   * @return 记录的句柄
+   * @throws IOException              IO 异常
+   * @throws IllegalArgumentException 消息带有 headers，或超过日志段大小
+   */
+  public long append(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws IOException {
+    if (props != null && props.getHeaders() != null && !props.getHeaders().isEmpty()) {
+      // headers 不写入日志，恢复时会被静默丢弃，因此直接拒绝
+      throw new IllegalArgumentException("发布日志不支持带 headers 的消息");
+    }
+    int length = encodeStringFields(exchange, routingKey, props) + 4 + 4 + 8 + 4 + body.length;
+    if (length > segmentSize) {
+      throw new IllegalArgumentException("消息过大，超过日志段大小: " + length);
+    }
+    if (current == null || current.writeBuffer.remaining() < length) {
+      rollSegment();
+    }
+
+    Segment segment = current;
+    ByteBuffer out = segment.writeBuffer;
+    int offset = out.position();
+    out.putInt(0);
+    out.put(PENDING);
+    out.put(props == null ? (byte) 0 : (byte) 1);
+    for (byte[] field : stringFields) {
+      putBytes(out, field);
+    }
+    out.putInt(props == null || props.getDeliveryMode() == null ? -1 : props.getDeliveryMode());
+    out.putInt(props == null || props.getPriority() == null ? -1 : props.getPriority());
+    out.putLong(props == null || props.getTimestamp() == null ? -1 : props.getTimestamp().getTime());
+    putBytes(out, body);
+
+    segment.pending.incrementAndGet();
+    // 最后写入长度，长度不为0的记录一定是完整的
+    segment.buffer.putInt(offset, out.position() - offset);
+    if (forceOnAppend) {
+      segment.buffer.force();
+    }
+    appendedCount.incrementAndGet();
+    return ((long) segment.index << 32) | offset;
+  }
+
+  /**
+   * 把一条记录标记为已确认，在 ack 回调中调用
+   *
+   * @param handle append() 返回的句柄
+   */
+  public void markConfirmed(long handle) {
+    Segment segment = segments.get((int) (handle >>> 32));
+    if (segment == null) {
+      return;
+    }
+    segment.buffer.put((int) handle + 4, CONFIRMED);
+    confirmedCount.incrementAndGet();
+    if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+      deleteSegment(segment);
+    }
+  }
+
+  /**
+   * 把当前日志段写入磁盘
+   */
+  public void force() {
+    Segment segment = current;
+    if (segment != null) {
+      segment.buffer.force();
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    Segment previous = current;
+    int index = nextSegmentIndex++;
+    Path path = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    current = new Segment(index, path, fileChannel, buffer);
+    segments.put(index, current);
+
+    if (previous != null) {
+      // 先封存再检查，保证与 markConfirmed() 并发时至少有一方会删除已全部确认的日志段
+      previous.sealed = true;
+      if (previous.pending.get() == 0) {
+        deleteSegment(previous);
+      }
+    }
+  }
+
+  private void deleteSegment(Segment segment) {
+    if (!segment.deleted.compareAndSet(false, true)) {
+      return;
+    }
+    segments.remove(segment.index);
+    try {
+      // 映射的内存在缓冲区被回收时释放，删除文件不受影响
+      segment.fileChannel.close();
+      Files.deleteIfExists(segment.path);
+      deletedSegmentCount.incrementAndGet();
+    } catch (IOException e) {
+      System.err.println("删除日志段失败: " + segment.path + ", " + e.getMessage());
+    }
+  }
+
+  private int encodeStringFields(String exchange, String routingKey, AMQP.BasicProperties props) {
+    stringFields[0] = toBytes(exchange);
+    stringFields[1] = toBytes(routingKey);
+    boolean hasProps = props != null;
+    stringFields[2] = hasProps ? toBytes(props.getContentType()) : null;
+    stringFields[3] = hasProps ? toBytes(props.getContentEncoding()) : null;
+    stringFields[4] = hasProps ? toBytes(props.getCorrelationId()) : null;
+    stringFields[5] = hasProps ? toBytes(props.getReplyTo()) : null;
+    stringFields[6] = hasProps ? toBytes(props.getExpiration()) : null;
+    stringFields[7] = hasProps ? toBytes(props.getMessageId()) : null;
+    stringFields[8] = hasProps ? toBytes(props.getType()) : null;
+    stringFields[9] = hasProps ? toBytes(props.getUserId()) : null;
+    stringFields[10] = hasProps ? toBytes(props.getAppId()) : null;
+
+    int length = HEADER_SIZE + 1;
+    for (byte[] field : stringFields) {
+      length += 4 + (field == null ? 0 : field.length);
+    }
+    return length;
+  }
+
+  /**
+   * 读取一个旧日志段中未确认的消息
+   */
+  private static List<Entry> readPending(Path path) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer in = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+      while (in.remaining() >= HEADER_SIZE) {
+        int start = in.position();
+        int length = in.getInt();
+        if (length <= 0 || length > in.remaining() + 4) {
+          // 段的末尾，或崩溃时没有写完的记录
+          break;
+        }
+        byte status = in.get();
+        boolean hasProps = in.get() == 1;
+        String[] strings = new String[STRING_FIELD_COUNT];
+        for (int i = 0; i < STRING_FIELD_COUNT; i++) {
+          strings[i] = toString(getBytes(in));
+        }
+        int deliveryMode = in.getInt();
+        int priority = in.getInt();
+        long timestamp = in.getLong();
+        byte[] body = getBytes(in);
+        if (in.position() - start != length) {
+          throw new IOException("日志记录已损坏: " + path + " 偏移 " + start);
+        }
+        if (status != PENDING) {
+          continue;
+        }
+
+        AMQP.BasicProperties props = null;
+        if (hasProps) {
+          props = new AMQP.BasicProperties.Builder()
+              .contentType(strings[2])
+              .contentEncoding(strings[3])
+              .correlationId(strings[4])
+              .replyTo(strings[5])
+              .expiration(strings[6])
+              .messageId(strings[7])
+              .type(strings[8])
+              .userId(strings[9])
+              .appId(strings[10])
+              .deliveryMode(deliveryMode < 0 ? null : deliveryMode)
+              .priority(priority < 0 ? null : priority)
+              .timestamp(timestamp < 0 ? null : new Date(timestamp))
+              .build();
+        }
+        entries.add(new Entry(strings[0], strings[1], props, body));
+      }
+    }
+    return entries;
+  }
+
+  private static int segmentIndexOf(Path path) {
+    String name = path.getFileName().toString();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static void putBytes(ByteBuffer out, byte[] bytes) {
+    if (bytes == null) {
+      out.putInt(-1);
+    } else {
+      out.putInt(bytes.length);
+      out.put(bytes);
+    }
+  }
+
+  private static byte[] getBytes(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return bytes;
+  }
+
+  private static byte[] toBytes(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String toString(byte[] bytes) {
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return 追加的记录数
+   */
+  public long getAppendedCount() {
+    return appendedCount.get();
+  }
+
+  /**
+   * @return 已确认的记录数
+   */
+  public long getConfirmedCount() {
+    return confirmedCount.get();
+  }
+
+  /**
+   * @return 当前打开的日志段数
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * 打印日志的统计信息
+   */
+  public void printStats() {
+    System.out.printf("[发布日志] 追加: %d, 已确认: %d, 未确认: %d, 打开的日志段: %d, 已删除的日志段: %d\n",
+        appendedCount.get(), confirmedCount.get(), appendedCount.get() - confirmedCount.get(),
+        segments.size(), deletedSegmentCount.get());
+  }
+
+  /**
+   * 刷盘并关闭所有日志段，未确认的记录保留在文件中，下次启动时恢复
+   */
+  @Override
+  public void close() {
+    for (Segment segment : segments.values()) {
+      try {
+        segment.buffer.force();
+        segment.fileChannel.close();
+      } catch (IOException e) {
+        System.err.println("关闭日志段失败: " + segment.path + ", " + e.getMessage());
+      }
+    }
+    segments.clear();
+    current = null;
+  }
+}
@@ -0,0 +1,133 @@
+package com.rabbitmq.demo.confirm;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 发布日志基准测试
+ *
+ * 1. 不需要RabbitMQ：测量 append() + markConfirmed() 的单条开销和吞吐量，
+ *    以及每次追加都刷盘时的吞吐量
+ * 2. 不需要RabbitMQ：模拟崩溃（不确认一半消息就关闭日志），重新打开后检查恢复出的消息数
+ * 3. 需要RabbitMQ：比较带在途窗口的异步确认在有无发布日志时的吞吐量，计算下降的比例
+ */
+public class ConfirmJournalBenchmark {
+  // 不连接Broker时每轮追加的消息数
+  private static final int OFFLINE_MESSAGE_COUNT = 2_000_000;
+  // 每次追加都刷盘时的消息数
+  private static final int FORCED_MESSAGE_COUNT = 2_000;
+  // 连接Broker时发送的消息数
+  private static final int BROKER_MESSAGE_COUNT = 100_000;
+  // 连接Broker时的在途窗口大小
+  private static final int MAX_IN_FLIGHT = 1000;
+  // 消息体大小
+  private static final int BODY_SIZE = 100;
+  // 预热轮数
+  private static final int WARMUP_ROUNDS = 3;
+  // 日志段大小
+  private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    System.out.println("=== 发布日志基准测试 ===");
+    byte[] body = new byte[BODY_SIZE];
+
+    System.out.println("\n--- 追加并确认（不刷盘） ---");
+    for (int round = 1; round <= WARMUP_ROUNDS + 1; round++) {
+      double rate = appendAndConfirm(body, OFFLINE_MESSAGE_COUNT, false);
+      System.out.printf("%s 第 %d 轮: %.0f 条/秒, 每条 %.0f 纳秒\n", round <= WARMUP_ROUNDS ? "预热" : "测量",
+          round, rate, 1_000_000_000.0 / rate);
+    }
+
+    System.out.println("\n--- 追加并确认（每次追加都刷盘） ---");
+    double forcedRate = appendAndConfirm(body, FORCED_MESSAGE_COUNT, true);
+    System.out.printf("%.0f 条/秒, 每条 %.3f 毫秒\n", forcedRate, 1000.0 / forcedRate);
+
+    System.out.println("\n--- 模拟崩溃后恢复 ---");
+    simulateCrashAndRecover(body);
+
+    System.out.println("\n--- 连接Broker比较吞吐量 ---");
+    try {
+      compareWithBroker();
+    } catch (IOException | TimeoutException e) {
+      System.out.println("无法连接RabbitMQ，跳过: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return 追加并确认的吞吐量（条/秒）
+   */
+  private static double appendAndConfirm(byte[] body, int messageCount, boolean force)
+      throws IOException {
+    Path directory = Files.createTempDirectory("confirm-journal");
+    long start = System.nanoTime();
+    try (ConfirmJournal journal = new ConfirmJournal(directory, SEGMENT_SIZE, force)) {
+      // 模拟在途窗口：确认落后追加 MAX_IN_FLIGHT 条
+      long[] handles = new long[MAX_IN_FLIGHT];
+      for (int i = 0; i < messageCount; i++) {
+        int slot = i % MAX_IN_FLIGHT;
+        if (i >= MAX_IN_FLIGHT) {
+          journal.markConfirmed(handles[slot]);
+        }
+        handles[slot] = journal.append("", "confirm_queue", null, body);
+      }
+      for (int i = Math.max(0, messageCount - MAX_IN_FLIGHT); i < messageCount; i++) {
+        journal.markConfirmed(handles[i % MAX_IN_FLIGHT]);
+      }
+    }
+    double rate = messageCount / ((System.nanoTime() - start) / 1_000_000_000.0);
+    deleteDirectory(directory);
+    return rate;
+  }
+
+  private static void simulateCrashAndRecover(byte[] body) throws IOException, InterruptedException {
+    Path directory = Files.createTempDirectory("confirm-journal");
+    int messageCount = 10_000;
+    ConfirmJournal journal = new ConfirmJournal(directory, 64 * 1024, false);
+    for (int i = 0; i < messageCount; i++) {
+      long handle = journal.append("", "confirm_queue", null, body);
+      // 只有偶数消息得到确认
+      if (i % 2 == 0) {
+        journal.markConfirmed(handle);
+      }
+    }
+    System.out.printf("崩溃前: 追加 %d 条, 确认 %d 条\n", journal.getAppendedCount(), journal.getConfirmedCount());
+    journal.close();
+
+    try (ConfirmJournal recovered = new ConfirmJournal(directory, 64 * 1024, false)) {
+      long start = System.nanoTime();
+      int replayed = recovered.replayPending((handle, entry) -> recovered.markConfirmed(handle));
+      System.out.printf("恢复: %d 条未确认消息（期望 %d 条）, 耗时 %.2f 毫秒\n", replayed, messageCount / 2,
+          (System.nanoTime() - start) / 1000000.0);
+      recovered.printStats();
+    }
+    deleteDirectory(directory);
+  }
+
+  private static void compareWithBroker() throws IOException, TimeoutException {
+    Path directory = Files.createTempDirectory("confirm-journal");
+    double plainMillis = 0;
+    double journaledMillis = 0;
+    for (int round = 1; round <= WARMUP_ROUNDS + 1; round++) {
+      plainMillis = ConfirmPublisher.windowedAsyncConfirm(BROKER_MESSAGE_COUNT, MAX_IN_FLIGHT, Long.MAX_VALUE,
+          ConfirmWindow.WaitStrategy.BLOCK);
+      journaledMillis = ConfirmPublisher.journaledAsyncConfirm(BROKER_MESSAGE_COUNT, MAX_IN_FLIGHT, directory);
+    }
+    double plainRate = BROKER_MESSAGE_COUNT / (plainMillis / 1000.0);
+    double journaledRate = BROKER_MESSAGE_COUNT / (journaledMillis / 1000.0);
+    System.out.printf("无发布日志: %.0f 条/秒, 有发布日志: %.0f 条/秒, 下降 %.1f%%\n",
+        plainRate, journaledRate, (1 - journaledRate / plainRate) * 100);
+    deleteDirectory(directory);
+  }
+
+  private static void deleteDirectory(Path directory) throws IOException {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        Files.deleteIfExists(path);
+      }
+    }
+    Files.deleteIfExists(directory);
+  }
+}
@@ -3,12 +3,16 @@ package com.rabbitmq.demo.confirm;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConfirmCallback;
 import com.rabbitmq.client.Connection;
+import com.rabbitmq.demo.utils.LatencyHistogram;
 import com.rabbitmq.demo.utils.RabbitMQUtils;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -25,12 +29,35 @@ import java.util.concurrent.TimeoutException;
  * 1. 单条确认（Simple Confirm）
  * 2. 批量确认（Batch Confirm）
  * 3. 异步确认（Asynchronous Confirm）
+ * 4. 带在途窗口的异步确认（Windowed Asynchronous Confirm）
+ * 5. 自动重发的异步确认（Retrying Asynchronous Confirm）
+ * 6. 自适应批量确认（Adaptive Batch Confirm）
+ * 7. 带发布日志的异步确认（Journaled Asynchronous Confirm）
+ *
+ * 每种模式都会记录每条消息从发布到确认的延迟，并输出 p50/p99/p99.9/最大值，
+ * 便于比较不同模式的尾部延迟，而不仅仅是总耗时。
  */
 public class ConfirmPublisher {
   // 队列名称
   private static final String QUEUE_NAME = "confirm_queue";
   // 发送消息数量
   private static final int MESSAGE_COUNT = 1000;
+  // 等待异步确认的超时时间（秒）
+  private static final long CONFIRM_TIMEOUT_SECONDS = 30;
+  // 在途窗口：最大未确认消息数
+  private static final int MAX_IN_FLIGHT = 100;
+  // 在途窗口：最大未确认字节数
+  private static final long MAX_IN_FLIGHT_BYTES = 1024 * 1024;
+  // 自动重发：每条消息的最大发布次数
+  private static final int MAX_PUBLISH_ATTEMPTS = 5;
+  // 自动重发：首次重发的退避时间（毫秒）
+  private static final long RETRY_BASE_BACKOFF_MILLIS = 100;
+  // 自动重发：最大退避时间（毫秒）
+  private static final long RETRY_MAX_BACKOFF_MILLIS = 5000;
+  // 自动重发：确认超时时间（毫秒）
+  private static final long RETRY_CONFIRM_TIMEOUT_MILLIS = 5000;
+  // 发布日志目录
+  private static final String JOURNAL_DIRECTORY = "confirm-journal";
 
   public static void main(String[] args) throws IOException, TimeoutException {
     System.out.println("=== RabbitMQ 发布者确认模式演示 ===");
@@ -46,6 +73,22 @@ public class ConfirmPublisher {
     // 演示异步确认模式
     System.out.println("\n3. 演示异步确认模式...");
     asyncConfirm();
+
+    // 演示带在途窗口的异步确认模式
+    System.out.println("\n4. 演示带在途窗口的异步确认模式...");
+    windowedAsyncConfirm(MESSAGE_COUNT, MAX_IN_FLIGHT, MAX_IN_FLIGHT_BYTES, ConfirmWindow.WaitStrategy.BLOCK);
+
+    // 演示自动重发的异步确认模式
+    System.out.println("\n5. 演示自动重发的异步确认模式...");
+    retryAsyncConfirm();
+
+    // 演示自适应批量确认模式
+    System.out.println("\n6. 演示自适应批量确认模式...");
+    adaptiveBatchConfirm(MESSAGE_COUNT);
+
+    // 演示带发布日志的异步确认模式
+    System.out.println("\n7. 演示带发布日志的异步确认模式...");
+    journaledAsyncConfirm(MESSAGE_COUNT, MAX_IN_FLIGHT, Paths.get(JOURNAL_DIRECTORY));
   }
 
   /**
@@ -63,15 +106,20 @@ public class ConfirmPublisher {
     // 开启发布者确认模式
     channel.confirmSelect();
 
+    // 发布到确认的延迟直方图
+    LatencyHistogram histogram = new LatencyHistogram();
+
     long startTime = System.nanoTime();
 
     for (int i = 0; i < MESSAGE_COUNT; i++) {
       String message = "单条确认消息 - " + i;
+      long publishNanos = System.nanoTime();
       channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
 
       // 等待单条消息的确认
       try {
         boolean confirmed = channel.waitForConfirms();
+        histogram.record(System.nanoTime() - publishNanos);
         if (confirmed) {
           // System.out.println("消息 " + i + " 确认成功");
         } else {
@@ -87,6 +135,7 @@ public class ConfirmPublisher {
     long endTime = System.nanoTime();
     System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n",
         MESSAGE_COUNT, (endTime - startTime) / 1000000.0);
+    histogram.printSummary("单条确认");
 
     RabbitMQUtils.closeChannel(channel);
     RabbitMQUtils.closeConnection(connection);
@@ -112,14 +161,20 @@ public class ConfirmPublisher {
     // 批量大小
     int batchSize = 100;
 
+    // 发布到确认的延迟直方图，以及当前这一批每条消息的发布时间
+    LatencyHistogram histogram = new LatencyHistogram();
+    long[] publishNanos = new long[batchSize];
+
     for (int i = 0; i < MESSAGE_COUNT; i++) {
       String message = "批量确认消息 - " + i;
+      publishNanos[i % batchSize] = System.nanoTime();
       channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
 
       // 达到批量大小，等待确认
       if ((i + 1) % batchSize == 0) {
         try {
           channel.waitForConfirms();
+          recordBatch(histogram, publishNanos, batchSize);
           // System.out.println("批量消息 " + (i - batchSize + 1) + "-" + i + " 确认成功");
         } catch (InterruptedException e) {
           e.printStackTrace();
@@ -131,6 +186,7 @@ public class ConfirmPublisher {
     // 处理最后一批不足batchSize的消息
     try {
       channel.waitForConfirms();
+      recordBatch(histogram, publishNanos, MESSAGE_COUNT % batchSize);
     } catch (InterruptedException e) {
       e.printStackTrace();
     }
@@ -138,6 +194,72 @@ public class ConfirmPublisher {
     long endTime = System.nanoTime();
     System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n",
         MESSAGE_COUNT, (endTime - startTime) / 1000000.0);
+    histogram.printSummary("批量确认");
+
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+  }
+
+  /**
+   * 自适应批量确认模式
+   * - 与批量确认相同，每批发送后调用waitForConfirms()等待确认
+   * - 批量大小不再固定，而是根据每批的确认耗时和吞吐量按AIMD方式调整
+   * - 适用于确认延迟差异较大的场景（例如普通队列与仲裁队列）
+   *
+   * @param messageCount 发送消息数量
+   */
+  public static void adaptiveBatchConfirm(int messageCount) throws IOException, TimeoutException {
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+
+    // 声明队列
+    channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+
+    // 开启发布者确认模式
+    channel.confirmSelect();
+
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer();
+    // 发布到确认的延迟直方图，以及当前这一批每条消息的发布时间
+    LatencyHistogram histogram = new LatencyHistogram();
+    long[] publishNanos = new long[sizer.getBatchSize()];
+
+    long startTime = System.nanoTime();
+
+    int sent = 0;
+    while (sent < messageCount) {
+      // 按当前的批量大小发送一批消息
+      int batchSize = Math.min(sizer.getBatchSize(), messageCount - sent);
+      long batchStart = System.nanoTime();
+      if (publishNanos.length < batchSize) {
+        publishNanos = Arrays.copyOf(publishNanos, batchSize * 2);
+      }
+      for (int i = 0; i < batchSize; i++) {
+        String message = "自适应批量确认消息 - " + (sent + i);
+        publishNanos[i] = System.nanoTime();
+        channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
+      }
+      sent += batchSize;
+
+      // 等待这一批确认，并根据耗时调整下一批的大小
+      boolean confirmed;
+      try {
+        confirmed = channel.waitForConfirms();
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+        break;
+      }
+      recordBatch(histogram, publishNanos, batchSize);
+      if (!confirmed) {
+        System.out.println("批量消息确认失败，批量大小: " + batchSize);
+      }
+      sizer.onBatchConfirmed(batchSize, System.nanoTime() - batchStart, confirmed);
+    }
+
+    long endTime = System.nanoTime();
+    System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n",
+        messageCount, (endTime - startTime) / 1000000.0);
+    histogram.printSummary("自适应批量确认");
+    sizer.printHistory(20);
 
     RabbitMQUtils.closeChannel(channel);
     RabbitMQUtils.closeConnection(connection);
@@ -158,18 +280,13 @@ public class ConfirmPublisher {
     // 开启发布者确认模式
     channel.confirmSelect();
 
-    // 用于跟踪未确认的消息
-    final SortedSet<Long> unconfirmedSet = Collections.synchronizedSortedSet(new TreeSet<>());
+    // 用于跟踪未确认的消息，最后一条消息确认时直接唤醒等待线程
+    final ConfirmBarrier confirmBarrier = new ConfirmBarrier(MESSAGE_COUNT);
 
     // 确认回调函数
     ConfirmCallback ackCallback = (deliveryTag, multiple) -> {
-      if (multiple) {
-        // 批量确认，移除所有小于等于deliveryTag的消息
-        unconfirmedSet.headSet(deliveryTag + 1).clear();
-      } else {
-        // 单条确认，移除指定的消息
-        unconfirmedSet.remove(deliveryTag);
-      }
+      // multiple=true 时移除所有小于等于deliveryTag的消息，否则只移除指定的消息
+      confirmBarrier.onAck(deliveryTag, multiple);
       // System.out.println("确认消息，deliveryTag: " + deliveryTag + ", multiple: " +
       // multiple);
     };
@@ -181,13 +298,9 @@ public class ConfirmPublisher {
           : "单条消息确认失败，deliveryTag: " + deliveryTag;
       System.err.println(message);
 
-      // 处理确认失败的消息
-      if (multiple) {
-        unconfirmedSet.headSet(deliveryTag + 1).clear();
-      } else {
-        unconfirmedSet.remove(deliveryTag);
-      }
-      // 可以在这里添加消息重试逻辑
+      // 处理确认失败的消息，失败的序列号会在等待结束后统一返回
+      confirmBarrier.onNack(deliveryTag, multiple);
+      // 需要自动重发时可以使用 RetryingPublisher，见 retryAsyncConfirm()
     };
 
     // 注册确认回调
@@ -199,27 +312,241 @@ public class ConfirmPublisher {
       long deliveryTag = channel.getNextPublishSeqNo();
       String message = "异步确认消息 - " + i;
 
+      // 先将消息添加到未确认集合，避免确认先于记录到达
+      confirmBarrier.register(deliveryTag);
+
       // 发送消息
       channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
-
-      // 将消息添加到未确认集合
-      unconfirmedSet.add(deliveryTag);
     }
 
     // 等待所有消息确认
-    while (!unconfirmedSet.isEmpty()) {
-      try {
-        TimeUnit.MILLISECONDS.sleep(100);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+    try {
+      List<Long> failed = confirmBarrier.awaitAll(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      if (!failed.isEmpty()) {
+        System.err.println("确认失败或超时的消息数: " + failed.size() + "，deliveryTag: " + failed);
       }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
     }
 
     long endTime = System.nanoTime();
     System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n",
         MESSAGE_COUNT, (endTime - startTime) / 1000000.0);
+    confirmBarrier.getLatencyHistogram().printSummary("异步确认");
 
     RabbitMQUtils.closeChannel(channel);
     RabbitMQUtils.closeConnection(connection);
   }
-}
\ No newline at end of file
+
+  /**
+   * 带在途窗口的异步确认模式
+   * - 与异步确认相同，通过回调处理确认结果
+   * - 同时未确认的消息数和字节数不超过窗口大小，窗口满时发布线程等待确认释放空间
+   * - 客户端内存和Broker端的未确认消息都有上限，消息量很大时也不会触发内存告警
+   *
+   * @param messageCount     发送消息数量
+   * @param maxInFlight      最大未确认消息数
+   * @param maxInFlightBytes 最大未确认字节数
+   * @param waitStrategy     窗口满时的等待方式
+   * @return 发送并确认全部消息的耗时（毫秒）
+   */
+  public static double windowedAsyncConfirm(int messageCount, int maxInFlight, long maxInFlightBytes,
+      ConfirmWindow.WaitStrategy waitStrategy) throws IOException, TimeoutException {
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+
+    // 声明队列
+    channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+
+    // 开启发布者确认模式
+    channel.confirmSelect();
+
+    // 在途窗口，确认回调释放窗口空间
+    final ConfirmWindow window = new ConfirmWindow(maxInFlight, maxInFlightBytes, waitStrategy);
+    channel.addConfirmListener(window::onAck, (deliveryTag, multiple) -> {
+      System.err.println("消息确认失败，deliveryTag: " + deliveryTag + ", multiple: " + multiple);
+      window.onNack(deliveryTag, multiple);
+    });
+
+    // 每秒打印一次窗口的实时状态和这一秒内的确认延迟分位数
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "confirm-window-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reporter.scheduleAtFixedRate(() -> {
+      window.printStats();
+      window.getLatencyHistogram().intervalSnapshot().printSummary("在途窗口 最近1秒");
+    }, 1, 1, TimeUnit.SECONDS);
+
+    long startTime = System.nanoTime();
+
+    try {
+      for (int i = 0; i < messageCount; i++) {
+        byte[] body = ("窗口异步确认消息 - " + i).getBytes();
+
+        // 占用窗口，窗口已满时等待
+        window.acquire(channel.getNextPublishSeqNo(), body.length);
+
+        // 发送消息
+        channel.basicPublish("", QUEUE_NAME, null, body);
+      }
+
+      // 等待剩余消息确认
+      if (!window.awaitEmpty(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("等待确认超时，仍有 " + window.getInFlightCount() + " 条消息未确认");
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } finally {
+      reporter.shutdownNow();
+    }
+
+    long endTime = System.nanoTime();
+    double elapsedMillis = (endTime - startTime) / 1000000.0;
+    System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n", messageCount, elapsedMillis);
+    window.printStats();
+    window.getLatencyHistogram().printSummary("带在途窗口的异步确认");
+
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+    return elapsedMillis;
+  }
+
+  /**
+   * 带发布日志的异步确认模式
+   * - 每条消息发布前先追加到内存映射的发布日志，收到 ack 后标记为已确认
+   * - 启动时先重新发布上一次运行残留的未确认消息，进程崩溃也不会丢失消息
+   * - 被 nack 的消息保持未确认状态，下次启动时重新发布
+   *
+   * @param messageCount 发送消息数量
+   * @param maxInFlight  最大未确认消息数
+   * @param journalDir   发布日志目录
+   * @return 发送并确认全部消息的耗时（毫秒）
+   */
+  public static double journaledAsyncConfirm(int messageCount, int maxInFlight, Path journalDir)
+      throws IOException, TimeoutException {
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+
+    // 声明队列
+    channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+
+    // 开启发布者确认模式
+    channel.confirmSelect();
+
+    final ConfirmWindow window = new ConfirmWindow(maxInFlight, Long.MAX_VALUE, ConfirmWindow.WaitStrategy.BLOCK);
+    // 按序列号记录每条在途消息的日志句柄，与窗口使用相同的环形下标；
+    // 同时记录槽位所属的序列号，只在序列号完全一致时标记已确认，不会把复用槽位的其他消息标记为已确认
+    final long[] handles = new long[window.getSlotCount()];
+    final long[] handleSeqNos = new long[handles.length];
+    final int handleMask = handles.length - 1;
+    double elapsedMillis = 0;
+
+    try (ConfirmJournal journal = new ConfirmJournal(journalDir)) {
+      window.setMessageConfirmListener((seqNo, ack, latencyNanos) -> {
+        int slot = (int) (seqNo & handleMask);
+        if (handleSeqNos[slot] != seqNo) {
+          System.err.println("日志句柄与确认的序列号不一致，跳过标记，seqNo: " + seqNo);
+        } else if (ack) {
+          journal.markConfirmed(handles[slot]);
+        }
+      });
+      channel.addConfirmListener(window::onAck, (deliveryTag, multiple) -> {
+        System.err.println("消息确认失败，下次启动时重新发布，deliveryTag: " + deliveryTag);
+        window.onNack(deliveryTag, multiple);
+      });
+
+      // 重新发布上一次运行残留的未确认消息
+      int replayed = journal.replayPending((handle, entry) -> {
+        long seqNo = channel.getNextPublishSeqNo();
+        window.acquire(seqNo, entry.body.length);
+        handles[(int) (seqNo & handleMask)] = handle;
+        handleSeqNos[(int) (seqNo & handleMask)] = seqNo;
+        channel.basicPublish(entry.exchange, entry.routingKey, entry.props, entry.body);
+      });
+      if (replayed > 0) {
+        System.out.println("从发布日志恢复并重新发布 " + replayed + " 条未确认消息");
+      }
+
+      long startTime = System.nanoTime();
+      for (int i = 0; i < messageCount; i++) {
+        byte[] body = ("日志异步确认消息 - " + i).getBytes();
+
+        // 占用窗口后写日志，再发送消息
+        long seqNo = channel.getNextPublishSeqNo();
+        window.acquire(seqNo, body.length);
+        handles[(int) (seqNo & handleMask)] = journal.append("", QUEUE_NAME, null, body);
+        handleSeqNos[(int) (seqNo & handleMask)] = seqNo;
+        channel.basicPublish("", QUEUE_NAME, null, body);
+      }
+
+      // 等待剩余消息确认
+      if (!window.awaitEmpty(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("等待确认超时，仍有 " + window.getInFlightCount() + " 条消息未确认");
+      }
+
+      elapsedMillis = (System.nanoTime() - startTime) / 1000000.0;
+      System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n", messageCount, elapsedMillis);
+      window.printStats();
+      window.getLatencyHistogram().printSummary("带发布日志的异步确认");
+      journal.printStats();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+    return elapsedMillis;
+  }
+
+  /**
+   * 自动重发的异步确认模式
+   * - 保留每条未确认消息的内容和属性，nack 或确认超时时自动重发
+   * - 重发按指数退避加随机抖动，在后台线程上进行，不阻塞发布循环
+   * - 超过最大发布次数的消息计为永久失败
+   */
+  public static void retryAsyncConfirm() throws IOException, TimeoutException {
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+
+    // 声明队列
+    channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+
+    long startTime = System.nanoTime();
+
+    // 创建自动重发的发布者（内部开启发布者确认模式）
+    try (RetryingPublisher publisher = new RetryingPublisher(channel, MAX_PUBLISH_ATTEMPTS,
+        RETRY_BASE_BACKOFF_MILLIS, RETRY_MAX_BACKOFF_MILLIS, RETRY_CONFIRM_TIMEOUT_MILLIS)) {
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        String message = "自动重发确认消息 - " + i;
+        publisher.publish("", QUEUE_NAME, null, message.getBytes());
+      }
+
+      // 等待所有消息确认成功或永久失败
+      if (!publisher.awaitCompletion(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        System.err.println("等待确认超时");
+      }
+
+      long endTime = System.nanoTime();
+      System.out.printf("发送 %d 条消息耗时: %.2f 毫秒\n",
+          MESSAGE_COUNT, (endTime - startTime) / 1000000.0);
+      publisher.printStats();
+      publisher.getLatencyHistogram().printSummary("自动重发的异步确认");
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+
+    RabbitMQUtils.closeConnection(connection);
+  }
+
+  /**
+   * 记录一批消息的确认延迟：每条消息的延迟是从它发布到整批确认的时间
+   */
+  private static void recordBatch(LatencyHistogram histogram, long[] publishNanos, int count) {
+    long confirmedNanos = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      histogram.record(confirmedNanos - publishNanos[i]);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package com.rabbitmq.demo.confirm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * 未确认消息跟踪器
+ *
+ * 专门用于跟踪发布者确认模式下的未确认序列号（publish seqNo）：
+ * 1. 序列号由通道单调递增分配，因此可以用环形位图按 seqNo 取模定位，不需要排序集合
+ * 2. 每个序列号只占1个bit，发布和确认都不会装箱 Long，也不会产生垃圾对象
+ * 3. 单条确认是 O(1) 的一次 CAS；批量确认（multiple=true）按64位字清除，
+ *    不再像 TreeSet.headSet().clear() 那样逐个删除节点
+ * 4. 全程无锁：发布线程调用 add()，连接线程调用 confirm()，两者只通过原子操作交互
+ *
+ * 注意事项：
+ * - 容量必须大于同时在途的未确认消息数，超出时 add() 会抛出 IllegalStateException
+ * - 序列号必须单调递增（通道的 getNextPublishSeqNo() 满足这一点）
+ * - confirm() 应只由一个线程调用（确认回调总是在连接的同一个线程上执行）
+ * - 环形槽位会被复用：序列号 s 和 s + capacity 共用一个bit，只有当前存活窗口
+ *   (highestAdded - capacity, highestAdded] 内的序列号才能由bit唯一确定，清除时只清除窗口内的序列号
+ */
+public class ConfirmTracker {
+  // 环形位图，每个 long 记录64个序列号
+  private final AtomicLongArray words;
+  // 容量（2的幂）
+  private final long capacity;
+  // 取模掩码
+  private final long mask;
+  // 当前未确认的消息数
+  private final AtomicLong outstanding = new AtomicLong();
+  // 已添加的最大序列号，add() 先更新它再设置bit
+  private final AtomicLong highestAdded = new AtomicLong();
+  // 批量确认已清除到的序列号
+  private final AtomicLong clearedUpTo = new AtomicLong();
+
+  /**
+   * 创建跟踪器
+   *
+   * @param capacity 最大在途未确认消息数，会向上取整为2的幂且至少为64
+   */
+  public ConfirmTracker(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("容量必须大于0");
+    }
+    long size = Math.max(64, Long.highestOneBit(capacity - 1L) << 1);
+    this.capacity = size;
+    this.mask = size - 1;
+    this.words = new AtomicLongArray((int) (size >>> 6));
+  }
+
+  /**
+   * 记录一条已发布（或即将发布）的消息
+   * 应在 basicPublish 之前调用，避免确认先于记录到达
+   *
+   * @param seqNo 发布序列号
+   */
+  public void add(long seqNo) {
+    long bit = 1L << (seqNo & 63);
+    int index = wordIndex(seqNo);
+    if ((words.get(index) & bit) != 0) {
+      throw new IllegalStateException("未确认消息数超出跟踪器容量: " + capacity);
+    }
+    // 先发布最大序列号再设置bit：confirm() 看到这个bit时一定也能看到新的存活窗口
+    highestAdded.accumulateAndGet(seqNo, Math::max);
+    outstanding.incrementAndGet();
+    long previous = words.getAndAccumulate(index, bit, (a, b) -> a | b);
+    if ((previous & bit) != 0) {
+      outstanding.decrementAndGet();
+      throw new IllegalStateException("未确认消息数超出跟踪器容量: " + capacity);
+    }
+  }
+
+  /**
+   * 处理一次确认（ack 或 nack）
+   *
+   * @param seqNo    确认的序列号
+   * @param multiple 是否确认所有小于等于 seqNo 的消息
+   * @return 本次被移除的消息数
+   */
+  public int confirm(long seqNo, boolean multiple) {
+    return confirm(seqNo, multiple, null);
+  }
+
+  /**
+   * 处理一次确认（ack 或 nack），并逐个回调被移除的序列号
+   *
+   * @param seqNo    确认的序列号
+   * @param multiple 是否确认所有小于等于 seqNo 的消息
+   * @param removed  接收被移除的序列号，为 null 时不回调
+   * @return 本次被移除的消息数
+   */
+  public int confirm(long seqNo, boolean multiple, LongConsumer removed) {
+    if (!multiple) {
+      int count = clear(seqNo, seqNo, removed);
+      if (count > 0) {
+        outstanding.addAndGet(-count);
+      }
+      return count;
+    }
+
+    // 未确认的序列号一定落在存活窗口 (highestAdded - capacity, highestAdded] 内：
+    // 更早的序列号 t 如果仍未确认，t + capacity 就无法添加。窗口内不大于 seqNo 的部分才需要清除，
+    // 被单条确认过的 t 的槽位可能已被 t + capacity 复用，不能按 (seqNo - capacity, seqNo] 清除
+    long from = Math.max(clearedUpTo.get() + 1, highestAdded.get() - capacity + 1);
+    int count = 0;
+    long start = from;
+    while (start <= seqNo) {
+      long end = Math.min(seqNo, start | 63);
+      count += clear(start, end, removed);
+      start = end + 1;
+    }
+    if (count > 0) {
+      outstanding.addAndGet(-count);
+    }
+
+    long cleared;
+    while (seqNo > (cleared = clearedUpTo.get())) {
+      if (clearedUpTo.compareAndSet(cleared, seqNo)) {
+        break;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * 判断某条消息是否仍未确认
+   *
+   * @param seqNo 发布序列号
+   * @return 是否未确认
+   */
+  public boolean contains(long seqNo) {
+    long highest = highestAdded.get();
+    if (seqNo <= highest - capacity || seqNo > highest) {
+      return false;
+    }
+    return (words.get(wordIndex(seqNo)) & (1L << (seqNo & 63))) != 0;
+  }
+
+  /**
+   * 按序列号从小到大遍历当前所有未确认的消息
+   *
+   * @param action 接收未确认的序列号
+   */
+  public void forEachOutstanding(LongConsumer action) {
+    long highest = highestAdded.get();
+    long seqNo = Math.max(clearedUpTo.get() + 1, highest - capacity + 1);
+    while (seqNo <= highest) {
+      long word = words.get(wordIndex(seqNo)) >>> (seqNo & 63);
+      if (word == 0) {
+        // 跳到下一个字的开头
+        seqNo = (seqNo | 63) + 1;
+        continue;
+      }
+      seqNo += Long.numberOfTrailingZeros(word);
+      if (seqNo > highest) {
+        break;
+      }
+      action.accept(seqNo);
+      seqNo++;
+    }
+  }
+
+  /**
+   * @return 当前未确认的消息数
+   */
+  public long size() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return 是否所有消息都已确认
+   */
+  public boolean isEmpty() {
+    return outstanding.get() == 0;
+  }
+
+  /**
+   * @return 跟踪器容量
+   */
+  public long capacity() {
+    return capacity;
+  }
+
+  private int wordIndex(long seqNo) {
+    return (int) ((seqNo & mask) >>> 6);
+  }
+
+  /**
+   * 清除同一个字中序列号 [from, to] 对应且仍在存活窗口内的bit，返回实际被清除（原来为1）的bit数
+   * 先读字再读最大序列号：读到的每个bit对应的 add() 都已发布了最大序列号，
+   * 因此窗口内的bit都属于 [from, to] 中的序列号，而不是复用槽位的更新序列号。
+   * 先回调再清除，保证回调期间对应的环形槽位不会被新消息复用
+   */
+  private int clear(long from, long to, LongConsumer removed) {
+    int index = wordIndex(from);
+    long word = words.get(index);
+    long start = Math.max(from, highestAdded.get() - capacity + 1);
+    if (start > to) {
+      return 0;
+    }
+    int span = (int) (to - start + 1);
+    long bits = span == 64 ? -1L : ((1L << span) - 1) << (start & 63);
+    long cleared = word & bits;
+    if (cleared == 0) {
+      return 0;
+    }
+    if (removed != null) {
+      long base = from & ~63L;
+      for (long remaining = cleared; remaining != 0; remaining &= remaining - 1) {
+        removed.accept(base + Long.numberOfTrailingZeros(remaining));
+      }
+    }
+    // add() 只会设置空闲的bit，不会与这里要清除的bit冲突
+    words.getAndAccumulate(index, ~cleared, (a, b) -> a & b);
+    return Long.bitCount(cleared);
+  }
+}
@@ -0,0 +1,260 @@
+package com.rabbitmq.demo.confirm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 未确认消息跟踪器基准测试
+ *
+ * 不需要启动RabbitMQ服务器，用两个线程模拟异步确认模式：
+ * 1. 发布线程按顺序添加序列号（相当于 basicPublish 后记录未确认消息）
+ * 2. 确认线程模拟Broker的确认节奏：大部分为 multiple=true 的批量确认，穿插单条确认
+ * 3. 在途消息数被限制在 WINDOW 以内，与真实的Broker行为一致
+ *
+ * 分别对 synchronizedSortedSet(TreeSet) 和 ConfirmTracker 运行多轮，
+ * 前几轮作为预热，输出后续各轮的吞吐量（百万次/秒）
+ *
+ * 测量前先做正确性检查：单条确认与批量确认交替、环形槽位被复用时，ConfirmTracker 的结果必须与 TreeSet 一致，
+ * 基于它的 ConfirmBarrier 也不能遗漏未确认的消息，否则抛出 IllegalStateException
+ */
+public class ConfirmTrackerBenchmark {
+  // 每轮的消息数
+  private static final int MESSAGE_COUNT = 5_000_000;
+  // 最大在途未确认消息数
+  private static final int WINDOW = 4096;
+  // 预热轮数
+  private static final int WARMUP_ROUNDS = 3;
+  // 测量轮数
+  private static final int MEASURE_ROUNDS = 5;
+
+  /**
+   * 被测的跟踪实现
+   */
+  interface Tracker {
+    void add(long seqNo);
+
+    void confirm(long seqNo, boolean multiple);
+
+    boolean isEmpty();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    System.out.println("=== 未确认消息跟踪器基准测试 ===");
+    System.out.println("消息数: " + MESSAGE_COUNT + ", 在途窗口: " + WINDOW);
+    verifyWrapAround();
+    verifyMixedConfirms();
+    verifyBarrier();
+    System.out.println("正确性检查通过");
+
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+      boolean warmup = round < WARMUP_ROUNDS;
+
+      final SortedSet<Long> treeSet = Collections.synchronizedSortedSet(new TreeSet<>());
+      double treeSetRate = run(new Tracker() {
+        @Override
+        public void add(long seqNo) {
+          treeSet.add(seqNo);
+        }
+
+        @Override
+        public void confirm(long seqNo, boolean multiple) {
+          if (multiple) {
+            treeSet.headSet(seqNo + 1).clear();
+          } else {
+            treeSet.remove(seqNo);
+          }
+        }
+
+        @Override
+        public boolean isEmpty() {
+          return treeSet.isEmpty();
+        }
+      });
+
+      final ConfirmTracker confirmTracker = new ConfirmTracker(WINDOW);
+      double trackerRate = run(new Tracker() {
+        @Override
+        public void add(long seqNo) {
+          confirmTracker.add(seqNo);
+        }
+
+        @Override
+        public void confirm(long seqNo, boolean multiple) {
+          confirmTracker.confirm(seqNo, multiple);
+        }
+
+        @Override
+        public boolean isEmpty() {
+          return confirmTracker.isEmpty();
+        }
+      });
+
+      System.out.printf("%s第 %d 轮: TreeSet %.2f 百万次/秒, ConfirmTracker %.2f 百万次/秒 (%.1fx)\n",
+          warmup ? "[预热] " : "", round + 1, treeSetRate, trackerRate, trackerRate / treeSetRate);
+    }
+  }
+
+  /**
+   * 单条确认后槽位被新消息复用，再收到批量确认时不能清除仍未确认的新消息
+   */
+  static void verifyWrapAround() {
+    ConfirmTracker tracker = new ConfirmTracker(64);
+    for (long seqNo = 1; seqNo <= 40; seqNo++) {
+      tracker.add(seqNo);
+    }
+    for (long seqNo = 1; seqNo <= 39; seqNo++) {
+      tracker.confirm(seqNo, false);
+    }
+    for (long seqNo = 41; seqNo <= 100; seqNo++) {
+      tracker.add(seqNo);
+    }
+    tracker.confirm(80, true);
+    if (tracker.size() != 20 || !tracker.contains(90) || tracker.contains(80)) {
+      throw new IllegalStateException("批量确认清除了仍未确认的消息: size=" + tracker.size());
+    }
+    List<Long> outstanding = new ArrayList<>();
+    tracker.forEachOutstanding(outstanding::add);
+    if (outstanding.size() != 20 || outstanding.get(0) != 81 || outstanding.get(19) != 100) {
+      throw new IllegalStateException("遍历的未确认消息不正确: " + outstanding);
+    }
+  }
+
+  /**
+   * ConfirmBarrier 在同样的槽位复用场景下不能提前放行，awaitAll() 返回的未确认序列号必须完整
+   */
+  static void verifyBarrier() {
+    ConfirmBarrier barrier = new ConfirmBarrier(64);
+    for (long seqNo = 1; seqNo <= 40; seqNo++) {
+      barrier.register(seqNo);
+    }
+    for (long seqNo = 1; seqNo <= 39; seqNo++) {
+      barrier.onAck(seqNo, false);
+    }
+    for (long seqNo = 41; seqNo <= 100; seqNo++) {
+      barrier.register(seqNo);
+    }
+    barrier.onAck(80, true);
+    List<Long> failed;
+    try {
+      failed = barrier.awaitAll(0, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    if (barrier.getOutstandingCount() != 20 || failed.size() != 20 || failed.get(0) != 81
+        || failed.get(19) != 100) {
+      throw new IllegalStateException("确认屏障遗漏了未确认的消息: " + failed);
+    }
+    barrier.onNack(90, false);
+    barrier.onAck(100, true);
+    try {
+      failed = barrier.awaitAll(0, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    if (barrier.getOutstandingCount() != 0 || !failed.equals(Collections.singletonList(90L))) {
+      throw new IllegalStateException("确认屏障返回的 nack 不正确: " + failed);
+    }
+  }
+
+  /**
+   * 随机交替单条确认（乱序）和批量确认，逐步与 TreeSet 对照
+   */
+  static void verifyMixedConfirms() {
+    Random random = new Random(42);
+    int capacity = 256;
+    ConfirmTracker tracker = new ConfirmTracker(capacity);
+    TreeSet<Long> expected = new TreeSet<>();
+    long next = 1;
+    for (int step = 0; step < 1_000_000; step++) {
+      int action = random.nextInt(4);
+      if (action < 2 && (expected.isEmpty() || next - expected.first() < capacity)) {
+        tracker.add(next);
+        expected.add(next++);
+      } else if (action == 2 && !expected.isEmpty()) {
+        // 单条确认任意一条未确认的消息
+        Long seqNo = expected.ceiling(expected.first() + random.nextInt((int) (next - expected.first())));
+        if (seqNo != null) {
+          expected.remove(seqNo);
+          tracker.confirm(seqNo, false);
+        }
+      } else if (action == 3 && !expected.isEmpty()) {
+        long seqNo = expected.first() + random.nextInt((int) (next - expected.first()));
+        int removed = expected.headSet(seqNo, true).size();
+        expected.headSet(seqNo, true).clear();
+        if (tracker.confirm(seqNo, true) != removed) {
+          throw new IllegalStateException("批量确认 " + seqNo + " 移除的消息数不正确");
+        }
+      }
+      if (tracker.size() != expected.size()) {
+        throw new IllegalStateException("第 " + step + " 步未确认消息数不一致: " + tracker.size() + " != " + expected.size());
+      }
+    }
+    List<Long> outstanding = new ArrayList<>();
+    tracker.forEachOutstanding(outstanding::add);
+    if (!outstanding.equals(new ArrayList<>(expected))) {
+      throw new IllegalStateException("遍历的未确认消息与 TreeSet 不一致");
+    }
+  }
+
+  /**
+   * 运行一轮测试
+   *
+   * @return 吞吐量（百万条消息/秒）
+   */
+  private static double run(Tracker tracker) throws InterruptedException {
+    final PaddedCounter publishedCounter = new PaddedCounter();
+    final PaddedCounter confirmedCounter = new PaddedCounter();
+
+    Thread confirmer = new Thread(() -> {
+      long next = 1;
+      while (next <= MESSAGE_COUNT) {
+        long available = publishedCounter.value;
+        if (available < next) {
+          Thread.yield();
+          continue;
+        }
+        // 每8条消息中前3条单条确认，其余通过一次批量确认覆盖
+        long batchEnd = Math.min(available, next + 7);
+        for (long seqNo = next; seqNo < batchEnd && seqNo < next + 3; seqNo++) {
+          tracker.confirm(seqNo, false);
+        }
+        tracker.confirm(batchEnd, true);
+        next = batchEnd + 1;
+        confirmedCounter.value = batchEnd;
+      }
+    }, "confirmer");
+
+    long start = System.nanoTime();
+    confirmer.start();
+    for (long seqNo = 1; seqNo <= MESSAGE_COUNT; seqNo++) {
+      while (seqNo - confirmedCounter.value > WINDOW) {
+        Thread.yield();
+      }
+      tracker.add(seqNo);
+      publishedCounter.value = seqNo;
+    }
+    confirmer.join();
+    long elapsed = System.nanoTime() - start;
+
+    if (!tracker.isEmpty()) {
+      throw new IllegalStateException("仍有未确认的消息");
+    }
+    return MESSAGE_COUNT / (elapsed / 1000.0);
+  }
+
+  /**
+   * 避免两个计数器落在同一缓存行上互相干扰
+   */
+  private static final class PaddedCounter {
+    long p1, p2, p3, p4, p5, p6, p7;
+    volatile long value;
+    long q1, q2, q3, q4, q5, q6, q7;
+  }
+}
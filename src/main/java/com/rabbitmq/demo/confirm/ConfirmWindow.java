@@ -0,0 +1,375 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.demo.utils.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * 发布者确认的在途窗口（背压）
+ *
+ * 限制同时未确认的消息数和字节数，窗口满时让发布线程阻塞或让出CPU：
+ * 1. 发布前调用 acquire() 占用窗口，窗口已满时等待确认释放空间
+ * 2. ConfirmCallback 中调用 onAck()/onNack() 释放窗口
+ * 3. 当前在途消息数、字节数、峰值以及发布线程被阻塞的次数和时长都可以随时读取
+ * 4. 同时统计每条消息从发布到确认的延迟，平均值、最大值和分位数直方图都可以随时读取
+ *
+ * 这样客户端堆内存和Broker端的未确认消息都被限制在窗口大小以内，
+ * 不会因为一次性发布大量消息而触发Broker的内存告警。
+ */
+public class ConfirmWindow {
+  /**
+   * 单条消息得到确认时的回调，在连接线程上调用，不能执行耗时操作
+   */
+  public interface MessageConfirmListener {
+    /**
+     * @param seqNo        发布序列号
+     * @param ack          true 表示 ack，false 表示 nack
+     * @param latencyNanos 从 acquire() 到确认的延迟（纳秒）
+     */
+    void onConfirmed(long seqNo, boolean ack, long latencyNanos);
+  }
+
+  /**
+   * 窗口满时发布线程的等待方式
+   */
+  public enum WaitStrategy {
+    // 阻塞在条件变量上，由确认回调唤醒
+    BLOCK,
+    // 自旋并调用 Thread.yield()，延迟更低但会占用CPU
+    YIELD
+  }
+
+  // 最大在途消息数
+  private final int maxInFlight;
+  // 最大在途字节数
+  private final long maxInFlightBytes;
+  // 等待方式
+  private final WaitStrategy waitStrategy;
+
+  // 未确认消息跟踪器
+  private final ConfirmTracker tracker;
+  // 按序列号记录的消息大小（与跟踪器使用相同的环形下标）
+  private final int[] sizes;
+  private final int sizeMask;
+  // 按序列号记录的发布时间
+  private final long[] publishNanos;
+  // 当前在途字节数
+  private final AtomicLong inFlightBytes = new AtomicLong();
+  // 确认时释放字节数并统计延迟的回调，预先创建避免每次确认分配对象
+  private final LongConsumer releaseAcked;
+  private final LongConsumer releaseNacked;
+  // 单条消息的确认回调（可选）
+  private volatile MessageConfirmListener messageConfirmListener;
+  // 已确认（ack 或 nack）的消息数
+  private final AtomicLong confirmedCount = new AtomicLong();
+  // 发布到确认的总延迟（纳秒）
+  private final AtomicLong totalLatencyNanos = new AtomicLong();
+  // 发布到确认的最大延迟（纳秒）
+  private final AtomicLong maxLatencyNanos = new AtomicLong();
+  // 发布到确认的延迟直方图
+  private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+  // 峰值在途消息数
+  private volatile long peakInFlight;
+  // 峰值在途字节数
+  private volatile long peakInFlightBytes;
+  // 发布线程因窗口已满而等待的次数
+  private final AtomicLong blockedCount = new AtomicLong();
+  // 发布线程因窗口已满而等待的总时长（纳秒）
+  private final AtomicLong blockedNanos = new AtomicLong();
+  // 被 nack 的消息数
+  private final AtomicLong nackedCount = new AtomicLong();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition spaceAvailable = lock.newCondition();
+  // 等待空位或等待窗口清空的线程数，只在持有 lock 时修改；只有在有线程等待时确认回调才需要加锁唤醒
+  private volatile int waiters;
+
+  /**
+   * 创建在途窗口
+   *
+   * @param maxInFlight      最大在途消息数
+   * @param maxInFlightBytes 最大在途字节数
+   * @param waitStrategy     窗口满时的等待方式
+   */
+  public ConfirmWindow(int maxInFlight, long maxInFlightBytes, WaitStrategy waitStrategy) {
+    if (maxInFlight <= 0 || maxInFlightBytes <= 0) {
+      throw new IllegalArgumentException("窗口大小必须大于0");
+    }
+    this.maxInFlight = maxInFlight;
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.waitStrategy = waitStrategy;
+    this.tracker = new ConfirmTracker(maxInFlight);
+    this.sizes = new int[(int) tracker.capacity()];
+    this.sizeMask = sizes.length - 1;
+    this.publishNanos = new long[sizes.length];
+    this.releaseAcked = seqNo -> releaseMessage(seqNo, true);
+    this.releaseNacked = seqNo -> releaseMessage(seqNo, false);
+  }
+
+  /**
+   * 占用窗口，窗口已满时等待，应在 basicPublish 之前调用
+   * 单条消息超过 maxInFlightBytes 时，等窗口清空后仍允许发送
+   *
+   * @param seqNo 发布序列号
+   * @param bytes 消息体大小
+   * @throws InterruptedException 等待时被中断
+   */
+  public void acquire(long seqNo, int bytes) throws InterruptedException {
+    if (!hasSpace(seqNo, bytes)) {
+      awaitSpace(seqNo, bytes);
+    }
+
+    sizes[(int) (seqNo & sizeMask)] = bytes;
+    publishNanos[(int) (seqNo & sizeMask)] = System.nanoTime();
+    long currentBytes = inFlightBytes.addAndGet(bytes);
+    tracker.add(seqNo);
+
+    long currentCount = tracker.size();
+    if (currentCount > peakInFlight) {
+      peakInFlight = currentCount;
+    }
+    if (currentBytes > peakInFlightBytes) {
+      peakInFlightBytes = currentBytes;
+    }
+  }
+
+  /**
+   * 在 ack 回调中调用
+   *
+   * @param deliveryTag 确认的序列号
+   * @param multiple    是否批量确认
+   */
+  public void onAck(long deliveryTag, boolean multiple) {
+    release(deliveryTag, multiple, releaseAcked);
+  }
+
+  /**
+   * 在 nack 回调中调用
+   *
+   * @param deliveryTag 否定确认的序列号
+   * @param multiple    是否批量否定确认
+   */
+  public void onNack(long deliveryTag, boolean multiple) {
+    nackedCount.addAndGet(release(deliveryTag, multiple, releaseNacked));
+  }
+
+  /**
+   * 等待窗口中的消息全部得到确认
+   *
+   * @param timeout 最长等待时间
+   * @param unit    时间单位
+   * @return 是否在超时前全部确认
+   * @throws InterruptedException 等待时被中断
+   */
+  public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      // 先声明正在等待再检查窗口，保证确认回调不会错过唤醒
+      waiters++;
+      while (!tracker.isEmpty()) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = spaceAvailable.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      waiters--;
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 设置单条消息的确认回调
+   *
+   * @param listener 确认回调，为 null 时取消
+   */
+  public void setMessageConfirmListener(MessageConfirmListener listener) {
+    this.messageConfirmListener = listener;
+  }
+
+  /**
+   * @return 环形下标的槽位数，在途消息的序列号按 seqNo % 槽位数 定位且不会冲突
+   */
+  public int getSlotCount() {
+    return sizes.length;
+  }
+
+  private int release(long deliveryTag, boolean multiple, LongConsumer releaseMessage) {
+    int removed = tracker.confirm(deliveryTag, multiple, releaseMessage);
+    if (removed > 0 && waiters > 0) {
+      lock.lock();
+      try {
+        spaceAvailable.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return removed;
+  }
+
+  private void releaseMessage(long seqNo, boolean ack) {
+    int index = (int) (seqNo & sizeMask);
+    inFlightBytes.addAndGet(-sizes[index]);
+
+    long latency = System.nanoTime() - publishNanos[index];
+    confirmedCount.incrementAndGet();
+    totalLatencyNanos.addAndGet(latency);
+    long max;
+    while (latency > (max = maxLatencyNanos.get())) {
+      if (maxLatencyNanos.compareAndSet(max, latency)) {
+        break;
+      }
+    }
+    latencyHistogram.record(latency);
+
+    MessageConfirmListener listener = messageConfirmListener;
+    if (listener != null) {
+      listener.onConfirmed(seqNo, ack, latency);
+    }
+  }
+
+  private boolean hasSpace(long seqNo, int bytes) {
+    long count = tracker.size();
+    if (count >= maxInFlight) {
+      return false;
+    }
+    // 确认乱序到达时，环形下标可能仍被一条很早的消息占用
+    if (tracker.contains(seqNo - tracker.capacity())) {
+      return false;
+    }
+    return count == 0 || inFlightBytes.get() + bytes <= maxInFlightBytes;
+  }
+
+  private void awaitSpace(long seqNo, int bytes) throws InterruptedException {
+    blockedCount.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      if (waitStrategy == WaitStrategy.YIELD) {
+        while (!hasSpace(seqNo, bytes)) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          Thread.yield();
+        }
+        return;
+      }
+
+      lock.lock();
+      try {
+        // 先声明正在等待再检查窗口，保证确认回调不会错过唤醒
+        waiters++;
+        while (!hasSpace(seqNo, bytes)) {
+          spaceAvailable.await();
+        }
+      } finally {
+        waiters--;
+        lock.unlock();
+      }
+    } finally {
+      blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return 当前在途（未确认）的消息数
+   */
+  public long getInFlightCount() {
+    return tracker.size();
+  }
+
+  /**
+   * @return 当前在途（未确认）的字节数
+   */
+  public long getInFlightBytes() {
+    return inFlightBytes.get();
+  }
+
+  /**
+   * @return 峰值在途消息数
+   */
+  public long getPeakInFlightCount() {
+    return peakInFlight;
+  }
+
+  /**
+   * @return 峰值在途字节数
+   */
+  public long getPeakInFlightBytes() {
+    return peakInFlightBytes;
+  }
+
+  /**
+   * @return 发布线程因窗口已满而等待的次数
+   */
+  public long getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  /**
+   * @return 发布线程因窗口已满而等待的总时长（毫秒）
+   */
+  public double getBlockedMillis() {
+    return blockedNanos.get() / 1000000.0;
+  }
+
+  /**
+   * @return 被 nack 的消息数
+   */
+  public long getNackedCount() {
+    return nackedCount.get();
+  }
+
+  /**
+   * @return 已确认（ack 或 nack）的消息数
+   */
+  public long getConfirmedCount() {
+    return confirmedCount.get();
+  }
+
+  /**
+   * @return 发布到确认的总延迟（纳秒）
+   */
+  public long getTotalLatencyNanos() {
+    return totalLatencyNanos.get();
+  }
+
+  /**
+   * @return 发布到确认的平均延迟（毫秒）
+   */
+  public double getAverageLatencyMillis() {
+    long count = confirmedCount.get();
+    return count == 0 ? 0 : totalLatencyNanos.get() / 1000000.0 / count;
+  }
+
+  /**
+   * @return 发布到确认的最大延迟（毫秒）
+   */
+  public double getMaxLatencyMillis() {
+    return maxLatencyNanos.get() / 1000000.0;
+  }
+
+  /**
+   * @return 发布到确认的延迟直方图
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /**
+   * 打印窗口的实时状态
+   */
+  public void printStats() {
+    System.out.printf("[在途窗口] 在途: %d/%d 条, %d/%d 字节, 峰值: %d 条, %d 字节, "
+            + "阻塞: %d 次, %.2f 毫秒, nack: %d, 确认延迟: 平均 %.3f 毫秒, 最大 %.3f 毫秒\n",
+        getInFlightCount(), maxInFlight, getInFlightBytes(), maxInFlightBytes,
+        getPeakInFlightCount(), getPeakInFlightBytes(), getBlockedCount(), getBlockedMillis(),
+        getNackedCount(), getAverageLatencyMillis(), getMaxLatencyMillis());
+  }
+}
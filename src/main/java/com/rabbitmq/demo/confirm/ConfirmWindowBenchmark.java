@@ -0,0 +1,160 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在途窗口基准测试
+ *
+ * 需要本地启动RabbitMQ服务器。用不同的窗口大小运行带在途窗口的异步确认模式，
+ * 最后一行使用与消息总数相同的窗口，相当于不限制在途消息数。
+ *
+ * 连接 Broker 之前先用模拟的确认线程检查窗口本身：单条确认乱序到达并与批量确认交替时，
+ * 在途消息数不能超过 maxInFlight，awaitEmpty() 返回时所有消息都必须已经确认。
+ *
+ * 预期结果：
+ * - 窗口很小时，吞吐量受确认往返时间限制
+ * - 窗口增大到能覆盖一个往返时间内的发布量后，吞吐量趋于平稳
+ * - 继续增大窗口不会带来更高的吞吐量，只会增加客户端和Broker的内存占用
+ */
+public class ConfirmWindowBenchmark {
+  // 队列名称（与 ConfirmPublisher 一致）
+  private static final String QUEUE_NAME = "confirm_queue";
+  // 每轮发送的消息数
+  private static final int MESSAGE_COUNT = 200_000;
+  // 测试的窗口大小
+  private static final int[] WINDOW_SIZES = {1, 8, 64, 512, 4096, 32768, MESSAGE_COUNT};
+  // 在途字节数上限（足够大，只由消息数限制窗口）
+  private static final long MAX_IN_FLIGHT_BYTES = Long.MAX_VALUE;
+  // 正确性检查中 awaitEmpty() 允许的最长等待时间（毫秒）
+  private static final long AWAIT_EMPTY_MAX_MILLIS = 5000;
+
+  public static void main(String[] args) throws IOException, TimeoutException {
+    System.out.println("=== 在途窗口基准测试 ===");
+    try {
+      verifyMixedConfirms(1000, 500_000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    System.out.println("正确性检查通过");
+
+    // 预热一轮，避免JIT和连接建立影响第一组结果
+    ConfirmPublisher.windowedAsyncConfirm(MESSAGE_COUNT / 10, 1024, MAX_IN_FLIGHT_BYTES,
+        ConfirmWindow.WaitStrategy.BLOCK);
+    purgeQueue();
+
+    StringBuilder report = new StringBuilder();
+    for (int windowSize : WINDOW_SIZES) {
+      System.out.println("\n--- 窗口大小: " + windowSize + " ---");
+      double elapsedMillis = ConfirmPublisher.windowedAsyncConfirm(MESSAGE_COUNT, windowSize,
+          MAX_IN_FLIGHT_BYTES, ConfirmWindow.WaitStrategy.BLOCK);
+      report.append(String.format("窗口 %7d: %10.0f 条/秒\n", windowSize,
+          MESSAGE_COUNT / (elapsedMillis / 1000.0)));
+
+      // 清空队列，避免积压的消息影响下一轮
+      purgeQueue();
+    }
+
+    System.out.println("\n=== 结果汇总 ===");
+    System.out.print(report);
+  }
+
+  /**
+   * 发布线程通过窗口发布，模拟的确认线程随机单条确认任意在途消息或批量确认到任意位置，
+   * 期间检查在途峰值，并在每一批结束时检查 awaitEmpty() 返回后没有遗漏的未确认消息
+   *
+   * @param maxInFlight  最大在途消息数
+   * @param messageCount 消息数
+   */
+  static void verifyMixedConfirms(int maxInFlight, int messageCount) throws InterruptedException {
+    ConfirmWindow window = new ConfirmWindow(maxInFlight, Long.MAX_VALUE, ConfirmWindow.WaitStrategy.BLOCK);
+    ConcurrentLinkedQueue<Long> published = new ConcurrentLinkedQueue<>();
+    // 模拟的 Broker 尚未确认的消息数，与窗口的统计互相独立
+    AtomicLong unconfirmedByBroker = new AtomicLong();
+    Thread confirmer = new Thread(() -> {
+      Random random = new Random(42);
+      TreeSet<Long> outstanding = new TreeSet<>();
+      while (!Thread.currentThread().isInterrupted()) {
+        Long seqNo;
+        while ((seqNo = published.poll()) != null) {
+          outstanding.add(seqNo);
+        }
+        if (outstanding.isEmpty()) {
+          Thread.yield();
+          continue;
+        }
+        long first = outstanding.first();
+        long span = outstanding.last() - first + 1;
+        // 大多是靠近队首的单条确认，偶尔批量确认到任意位置：
+        // 单条确认过的槽位会在下一次批量确认之前被新消息复用
+        if (random.nextInt(64) == 0) {
+          long target = first + (long) (random.nextDouble() * span);
+          Set<Long> acked = outstanding.headSet(target, true);
+          unconfirmedByBroker.addAndGet(-acked.size());
+          acked.clear();
+          window.onAck(target, true);
+        } else {
+          long target = outstanding.ceiling(first + random.nextInt((int) Math.min(span, 16)));
+          outstanding.remove(target);
+          unconfirmedByBroker.decrementAndGet();
+          window.onAck(target, false);
+        }
+      }
+    }, "simulated-broker");
+    confirmer.start();
+    try {
+      long seqNo = 1;
+      for (int batch = 0; batch < 10; batch++) {
+        for (int i = 0; i < messageCount / 10; i++, seqNo++) {
+          window.acquire(seqNo, 1);
+          unconfirmedByBroker.incrementAndGet();
+          published.add(seqNo);
+          // 窗口先于模拟的 Broker 记录、晚于它移除，因此窗口的在途数不会少于 Broker 未确认的消息数
+          long inFlight = window.getInFlightCount();
+          if (inFlight > maxInFlight || inFlight < unconfirmedByBroker.get()) {
+            throw new IllegalStateException("在途消息数不正确: 窗口 " + inFlight + ", Broker 未确认 "
+                + unconfirmedByBroker.get());
+          }
+        }
+        long awaitStart = System.nanoTime();
+        if (!window.awaitEmpty(30, TimeUnit.SECONDS)) {
+          throw new IllegalStateException("等待确认超时，仍有 " + window.getInFlightCount() + " 条未确认");
+        }
+        // 模拟的 Broker 很快就能确认完，等待这么久说明错过了唤醒，一直睡到超时才重新检查
+        long awaitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - awaitStart);
+        if (awaitMillis > AWAIT_EMPTY_MAX_MILLIS) {
+          throw new IllegalStateException("awaitEmpty() 等待了 " + awaitMillis + " 毫秒，可能错过了唤醒");
+        }
+        // awaitEmpty() 返回时模拟的 Broker 也必须已经确认了全部消息
+        if (unconfirmedByBroker.get() != 0) {
+          throw new IllegalStateException("awaitEmpty() 提前返回，仍有 " + unconfirmedByBroker.get() + " 条未确认");
+        }
+      }
+      if (window.getPeakInFlightCount() > maxInFlight) {
+        throw new IllegalStateException("在途峰值超过窗口: " + window.getPeakInFlightCount());
+      }
+    } finally {
+      confirmer.interrupt();
+      confirmer.join();
+    }
+  }
+
+  private static void purgeQueue() throws IOException, TimeoutException {
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+    channel.queuePurge(QUEUE_NAME);
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+  }
+}
@@ -0,0 +1,207 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 可靠发布者
+ *
+ * 基于发布者确认，为每条消息返回一个 CompletableFuture：
+ * 1. publish() 发送消息后立即返回，不阻塞等待确认
+ * 2. Broker 的 ack 回调完成对应的 future，nack 回调以 NackException 异常完成
+ * 3. multiple=true 的确认会一次性完成所有小于等于 deliveryTag 的 future
+ * 4. 通道关闭时，所有尚未确认的 future 都以异常完成，调用方不会无限等待
+ *
+ * 这样业务代码可以连续发布成千上万条消息，再通过 thenRun/allOf 等方式组合确认结果，
+ * 而不必像 singleConfirm()/batchConfirm() 那样调用阻塞的 waitForConfirms()。
+ *
+ * 注意事项：
+ * - 通道不是线程安全的，publish() 内部加锁保证序列号与发布顺序一致
+ * - future 在连接的回调线程上完成，耗时的后续处理应使用 thenApplyAsync 等异步方法
+ */
+public class ReliablePublisher implements AutoCloseable {
+  // 队列名称（与 ConfirmPublisher 一致）
+  private static final String QUEUE_NAME = "confirm_queue";
+  // 发送消息数量
+  private static final int MESSAGE_COUNT = 1000;
+
+  // 发布通道
+  private final Channel channel;
+  // 等待确认的 future，按序列号排序以便处理 multiple=true 的确认
+  private final ConcurrentNavigableMap<Long, CompletableFuture<Long>> pending = new ConcurrentSkipListMap<>();
+
+  /**
+   * 消息被 Broker 否定确认（nack）
+   */
+  public static class NackException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long deliveryTag;
+
+    public NackException(long deliveryTag) {
+      super("消息确认失败，deliveryTag: " + deliveryTag);
+      this.deliveryTag = deliveryTag;
+    }
+
+    public long getDeliveryTag() {
+      return deliveryTag;
+    }
+  }
+
+  /**
+   * 在给定通道上创建可靠发布者，通道会被切换到确认模式
+   *
+   * @param channel 发布通道
+   * @throws IOException IO 异常
+   */
+  public ReliablePublisher(Channel channel) throws IOException {
+    this.channel = channel;
+    channel.confirmSelect();
+    channel.addConfirmListener(new ConfirmListener() {
+      @Override
+      public void handleAck(long deliveryTag, boolean multiple) {
+        complete(deliveryTag, multiple, true);
+      }
+
+      @Override
+      public void handleNack(long deliveryTag, boolean multiple) {
+        complete(deliveryTag, multiple, false);
+      }
+    });
+    channel.addShutdownListener(this::failPending);
+  }
+
+  /**
+   * 发布消息
+   *
+   * @param exchange   交换机名称
+   * @param routingKey 路由键
+   * @param props      消息属性
+   * @param body       消息体
+   * @return 在 Broker 确认后完成的 future，结果为该消息的发布序列号
+   * @throws IOException IO 异常
+   */
+  public CompletableFuture<Long> publish(String exchange, String routingKey, AMQP.BasicProperties props,
+      byte[] body) throws IOException {
+    synchronized (channel) {
+      long seqNo = channel.getNextPublishSeqNo();
+      CompletableFuture<Long> future = new CompletableFuture<>();
+      // 先登记再发布，避免确认先于登记到达
+      pending.put(seqNo, future);
+      try {
+        channel.basicPublish(exchange, routingKey, props, body);
+      } catch (IOException | RuntimeException e) {
+        pending.remove(seqNo);
+        throw e;
+      }
+      return future;
+    }
+  }
+
+  /**
+   * @return 尚未确认的消息数
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * 关闭发布通道，尚未确认的 future 会以异常完成
+   */
+  @Override
+  public void close() {
+    RabbitMQUtils.closeChannel(channel);
+  }
+
+  private void complete(long deliveryTag, boolean multiple, boolean ack) {
+    if (multiple) {
+      // 完成所有小于等于 deliveryTag 的 future
+      Iterator<Map.Entry<Long, CompletableFuture<Long>>> it =
+          pending.headMap(deliveryTag, true).entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Long, CompletableFuture<Long>> entry = it.next();
+        it.remove();
+        complete(entry.getKey(), entry.getValue(), ack);
+      }
+    } else {
+      CompletableFuture<Long> future = pending.remove(deliveryTag);
+      if (future != null) {
+        complete(deliveryTag, future, ack);
+      }
+    }
+  }
+
+  private static void complete(long seqNo, CompletableFuture<Long> future, boolean ack) {
+    if (ack) {
+      future.complete(seqNo);
+    } else {
+      future.completeExceptionally(new NackException(seqNo));
+    }
+  }
+
+  private void failPending(ShutdownSignalException cause) {
+    for (Long seqNo : pending.keySet()) {
+      CompletableFuture<Long> future = pending.remove(seqNo);
+      if (future != null) {
+        future.completeExceptionally(cause);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+    System.out.println("=== RabbitMQ 可靠发布者演示 ===");
+
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+
+    // 声明队列
+    channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+
+    long startTime = System.nanoTime();
+
+    try (ReliablePublisher publisher = new ReliablePublisher(channel)) {
+      // 连续发布，不等待确认
+      List<CompletableFuture<Long>> futures = new ArrayList<>(MESSAGE_COUNT);
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        String message = "可靠发布消息 - " + i;
+        CompletableFuture<Long> future = publisher.publish("", QUEUE_NAME, null, message.getBytes());
+        // 单条消息的确认结果可以单独处理
+        future.exceptionally(e -> {
+          System.err.println(e.getMessage());
+          return null;
+        });
+        futures.add(future);
+      }
+
+      // 组合所有消息的确认结果
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+          .get(30, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      System.err.println("部分消息确认失败: " + e.getCause().getMessage());
+    } catch (TimeoutException e) {
+      System.err.println("等待确认超时");
+    }
+
+    long endTime = System.nanoTime();
+    System.out.printf("发送并确认 %d 条消息耗时: %.2f 毫秒\n",
+        MESSAGE_COUNT, (endTime - startTime) / 1000000.0);
+
+    RabbitMQUtils.closeConnection(connection);
+  }
+}
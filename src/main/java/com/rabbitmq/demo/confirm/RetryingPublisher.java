@@ -0,0 +1,343 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.demo.utils.LatencyHistogram;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 自动重发的异步确认发布者
+ *
+ * 在异步确认的基础上保留每条未确认消息的内容和属性：
+ * 1. 收到 nack，或超过 confirmTimeout 仍未收到确认时，消息会被重新发布
+ * 2. 重发前按指数退避并加入随机抖动等待，避免大量消息同时重发
+ * 3. 每条消息最多发布 maxAttempts 次，超过后计为永久失败
+ * 4. 重发在后台调度线程上进行，不会阻塞主发布循环
+ * 5. 记录每条消息从第一次发布到最终确认成功的延迟（包括重发耗时）
+ *
+ * 注意事项：
+ * - 超时重发的消息之后仍可能收到原来的确认，因此语义是“至少一次”，消费端需要幂等
+ * - 主发布线程与调度线程共用一个通道，发布时对通道加锁
+ */
+public class RetryingPublisher implements AutoCloseable {
+  // 发布通道
+  private final Channel channel;
+  // 每条消息的最大发布次数（包括第一次）
+  private final int maxAttempts;
+  // 首次重发的退避时间（毫秒）
+  private final long baseBackoffMillis;
+  // 最大退避时间（毫秒）
+  private final long maxBackoffMillis;
+  // 确认超时时间（纳秒）
+  private final long confirmTimeoutNanos;
+
+  // 未确认的消息，按序列号排序以便处理 multiple=true 的确认和超时扫描
+  private final ConcurrentNavigableMap<Long, OutstandingMessage> outstanding = new ConcurrentSkipListMap<>();
+  // 重发和超时扫描的调度线程
+  private final ScheduledExecutorService scheduler;
+
+  // 首次发布的消息数
+  private final AtomicLong publishedCount = new AtomicLong();
+  // 最终确认成功的消息数
+  private final AtomicLong ackedCount = new AtomicLong();
+  // 收到的 nack 数
+  private final AtomicLong nackedCount = new AtomicLong();
+  // 确认超时数
+  private final AtomicLong timedOutCount = new AtomicLong();
+  // 重发次数
+  private final AtomicLong retryCount = new AtomicLong();
+  // 永久失败的消息数
+  private final AtomicLong permanentFailureCount = new AtomicLong();
+  // 第一次发布到最终确认成功的延迟直方图
+  private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+  // 尚未得到最终结果（确认成功或永久失败）的消息数
+  private final AtomicLong unresolved = new AtomicLong();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition resolved = lock.newCondition();
+
+  /**
+   * 一条未确认的消息
+   */
+  private static final class OutstandingMessage {
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties props;
+    final byte[] body;
+    // 已发布次数
+    int attempts;
+    // 第一次发布的时间
+    long firstPublishedAtNanos;
+    // 最近一次发布的时间
+    volatile long publishedAtNanos;
+
+    OutstandingMessage(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.props = props;
+      this.body = body;
+    }
+  }
+
+  /**
+   * 创建自动重发的发布者，通道会被切换到确认模式
+   *
+   * @param channel              发布通道
+   * @param maxAttempts          每条消息的最大发布次数（包括第一次）
+   * @param baseBackoffMillis    首次重发的退避时间（毫秒），之后每次翻倍
+   * @param maxBackoffMillis     最大退避时间（毫秒）
+   * @param confirmTimeoutMillis 确认超时时间（毫秒）
+   * @throws IOException IO 异常
+   */
+  public RetryingPublisher(Channel channel, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+      long confirmTimeoutMillis) throws IOException {
+    if (maxAttempts <= 0) {
+      throw new IllegalArgumentException("最大发布次数必须大于0");
+    }
+    this.channel = channel;
+    this.maxAttempts = maxAttempts;
+    this.baseBackoffMillis = baseBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.confirmTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "confirm-retry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long scanIntervalMillis = Math.max(1, confirmTimeoutMillis / 2);
+    scheduler.scheduleWithFixedDelay(this::expireTimedOut, scanIntervalMillis, scanIntervalMillis,
+        TimeUnit.MILLISECONDS);
+
+    channel.confirmSelect();
+    channel.addConfirmListener(new ConfirmListener() {
+      @Override
+      public void handleAck(long deliveryTag, boolean multiple) {
+        onConfirm(deliveryTag, multiple, true);
+      }
+
+      @Override
+      public void handleNack(long deliveryTag, boolean multiple) {
+        onConfirm(deliveryTag, multiple, false);
+      }
+    });
+  }
+
+  /**
+   * 发布消息，确认失败或超时时自动重发
+   *
+   * @param exchange   交换机名称
+   * @param routingKey 路由键
+   * @param props      消息属性
+   * @param body       消息体
+   * @throws IOException IO 异常
+   */
+  public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws IOException {
+    OutstandingMessage message = new OutstandingMessage(exchange, routingKey, props, body);
+    unresolved.incrementAndGet();
+    publishedCount.incrementAndGet();
+    try {
+      send(message);
+    } catch (IOException | RuntimeException e) {
+      resolve();
+      throw e;
+    }
+  }
+
+  /**
+   * 等待所有消息得到最终结果（确认成功或永久失败）
+   *
+   * @param timeout 最长等待时间
+   * @param unit    时间单位
+   * @return 是否在超时前全部得到结果
+   * @throws InterruptedException 等待时被中断
+   */
+  public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+    long remaining = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (unresolved.get() > 0) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = resolved.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void send(OutstandingMessage message) throws IOException {
+    synchronized (channel) {
+      long seqNo = channel.getNextPublishSeqNo();
+      message.attempts++;
+      message.publishedAtNanos = System.nanoTime();
+      if (message.attempts == 1) {
+        message.firstPublishedAtNanos = message.publishedAtNanos;
+      }
+      // 先登记再发布，避免确认先于登记到达
+      outstanding.put(seqNo, message);
+      try {
+        channel.basicPublish(message.exchange, message.routingKey, message.props, message.body);
+      } catch (IOException | RuntimeException e) {
+        outstanding.remove(seqNo);
+        throw e;
+      }
+    }
+  }
+
+  private void onConfirm(long deliveryTag, boolean multiple, boolean ack) {
+    if (multiple) {
+      for (Map.Entry<Long, OutstandingMessage> entry : outstanding.headMap(deliveryTag, true).entrySet()) {
+        // 超时扫描可能已经移除了这条消息，只处理本次真正移除的
+        if (outstanding.remove(entry.getKey(), entry.getValue())) {
+          onConfirm(entry.getValue(), ack);
+        }
+      }
+    } else {
+      OutstandingMessage message = outstanding.remove(deliveryTag);
+      if (message != null) {
+        onConfirm(message, ack);
+      }
+    }
+  }
+
+  private void onConfirm(OutstandingMessage message, boolean ack) {
+    if (ack) {
+      ackedCount.incrementAndGet();
+      latencyHistogram.record(System.nanoTime() - message.firstPublishedAtNanos);
+      resolve();
+    } else {
+      nackedCount.incrementAndGet();
+      scheduleRetry(message);
+    }
+  }
+
+  /**
+   * 扫描超过确认超时时间的消息并安排重发
+   */
+  private void expireTimedOut() {
+    long deadline = System.nanoTime() - confirmTimeoutNanos;
+    for (Map.Entry<Long, OutstandingMessage> entry : outstanding.entrySet()) {
+      OutstandingMessage message = entry.getValue();
+      if (message.publishedAtNanos - deadline > 0) {
+        // 序列号递增，后面的消息发布得更晚，不会超时
+        break;
+      }
+      if (outstanding.remove(entry.getKey(), message)) {
+        timedOutCount.incrementAndGet();
+        scheduleRetry(message);
+      }
+    }
+  }
+
+  private void scheduleRetry(OutstandingMessage message) {
+    if (message.attempts >= maxAttempts) {
+      permanentFailureCount.incrementAndGet();
+      System.err.println("消息重发 " + message.attempts + " 次后仍失败，放弃: "
+          + message.exchange + "/" + message.routingKey);
+      resolve();
+      return;
+    }
+
+    // 指数退避，在 [delay/2, delay] 范围内随机抖动
+    long delay = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(message.attempts - 1, 30));
+    long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    try {
+      scheduler.schedule(() -> retry(message), jittered, TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      // 调度线程已关闭
+      permanentFailureCount.incrementAndGet();
+      resolve();
+    }
+  }
+
+  private void retry(OutstandingMessage message) {
+    retryCount.incrementAndGet();
+    try {
+      send(message);
+    } catch (IOException | RuntimeException e) {
+      System.err.println("重发消息失败: " + e.getMessage());
+      scheduleRetry(message);
+    }
+  }
+
+  private void resolve() {
+    if (unresolved.decrementAndGet() == 0) {
+      lock.lock();
+      try {
+        resolved.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return 首次发布的消息数
+   */
+  public long getPublishedCount() {
+    return publishedCount.get();
+  }
+
+  /**
+   * @return 最终确认成功的消息数
+   */
+  public long getAckedCount() {
+    return ackedCount.get();
+  }
+
+  /**
+   * @return 重发次数
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * @return 永久失败的消息数
+   */
+  public long getPermanentFailureCount() {
+    return permanentFailureCount.get();
+  }
+
+  /**
+   * @return 第一次发布到最终确认成功的延迟直方图
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /**
+   * 打印重发统计信息
+   */
+  public void printStats() {
+    System.out.printf("[自动重发] 发布: %d, 确认成功: %d, nack: %d, 超时: %d, 重发: %d, 永久失败: %d, 未确认: %d\n",
+        publishedCount.get(), ackedCount.get(), nackedCount.get(), timedOutCount.get(), retryCount.get(),
+        permanentFailureCount.get(), outstanding.size());
+  }
+
+  /**
+   * 停止重发并关闭发布通道
+   */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    RabbitMQUtils.closeChannel(channel);
+  }
+}
@@ -0,0 +1,295 @@
+package com.rabbitmq.demo.confirm;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.demo.utils.LatencyHistogram;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程分条（striped）确认发布者
+ *
+ * 单个通道的确认流水线和单个线程都会限制发布吞吐量，本类把消息分散到多个通道上并行发布：
+ * 1. 创建 N 个分条（stripe），每个分条有自己的通道、发布线程和在途窗口
+ * 2. N 个通道均匀分布在 M 个连接上
+ * 3. publish() 把消息放入某个分条的队列，由该分条的发布线程发送并跟踪确认
+ * 4. 开启按路由键排序时，相同路由键的消息总是进入同一个分条，保证它们的发布顺序；
+ *    否则按轮询方式分配
+ * 5. 最后汇总所有分条的吞吐量和确认延迟
+ */
+public class StripedConfirmPublisher implements AutoCloseable {
+  // 队列名称（与 ConfirmPublisher 一致）
+  private static final String QUEUE_NAME = "confirm_queue";
+  // 发送消息数量
+  private static final int MESSAGE_COUNT = 100_000;
+  // 分条数
+  private static final int STRIPES = 4;
+  // 连接数
+  private static final int CONNECTIONS = 2;
+  // 每个分条的最大在途消息数
+  private static final int MAX_IN_FLIGHT_PER_STRIPE = 1000;
+  // 每个分条待发送队列的容量
+  private static final int STRIPE_QUEUE_CAPACITY = 1024;
+  // 分条队列已满时每次等待的时间（毫秒），超时后重新检查分条是否已失败
+  private static final long OFFER_RETRY_MILLIS = 100;
+  // 按路由键排序演示使用的交换机、路由键前缀和不同路由键的个数
+  private static final String ORDERED_EXCHANGE_NAME = "striped_order_exchange";
+  private static final String ORDERED_ROUTING_KEY_PREFIX = "order.";
+  private static final int ORDER_KEYS = 64;
+
+  // 通知发布线程退出的标记消息
+  private static final PendingPublish STOP = new PendingPublish(null, null, null, null);
+
+  private final List<Connection> connections = new ArrayList<>();
+  private final List<Stripe> stripes = new ArrayList<>();
+  // 是否按路由键选择分条
+  private final boolean orderByRoutingKey;
+  // 轮询分配的计数器
+  private final AtomicInteger nextStripe = new AtomicInteger();
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * 一条待发送的消息
+   */
+  private static final class PendingPublish {
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties props;
+    final byte[] body;
+
+    PendingPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.props = props;
+      this.body = body;
+    }
+  }
+
+  /**
+   * 一个分条：一个通道 + 一个发布线程 + 一个在途窗口
+   */
+  private static final class Stripe implements Runnable {
+    final int index;
+    final Channel channel;
+    final ConfirmWindow window;
+    final BlockingQueue<PendingPublish> queue = new ArrayBlockingQueue<>(STRIPE_QUEUE_CAPACITY);
+    final Thread thread;
+    final AtomicLong publishedCount = new AtomicLong();
+    volatile Exception failure;
+
+    Stripe(int index, Channel channel, int maxInFlight) throws IOException {
+      this.index = index;
+      this.channel = channel;
+      this.window = new ConfirmWindow(maxInFlight, Long.MAX_VALUE, ConfirmWindow.WaitStrategy.BLOCK);
+      channel.confirmSelect();
+      channel.addConfirmListener(window::onAck, window::onNack);
+      this.thread = new Thread(this, "striped-publisher-" + index);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          PendingPublish message = queue.take();
+          if (message == STOP) {
+            return;
+          }
+          window.acquire(channel.getNextPublishSeqNo(), message.body.length);
+          channel.basicPublish(message.exchange, message.routingKey, message.props, message.body);
+          publishedCount.incrementAndGet();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException | RuntimeException e) {
+        failure = e;
+        System.err.println("[分条 " + index + "] 发布失败: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * 创建分条发布者并启动所有发布线程
+   *
+   * @param stripeCount          分条数（通道数和发布线程数）
+   * @param connectionCount      连接数
+   * @param maxInFlightPerStripe 每个分条的最大在途消息数
+   * @param orderByRoutingKey    是否让相同路由键的消息总是使用同一个分条
+   * @throws IOException      IO 异常
+   * @throws TimeoutException 超时异常
+   */
+  public StripedConfirmPublisher(int stripeCount, int connectionCount, int maxInFlightPerStripe,
+      boolean orderByRoutingKey) throws IOException, TimeoutException {
+    if (stripeCount <= 0 || connectionCount <= 0) {
+      throw new IllegalArgumentException("分条数和连接数必须大于0");
+    }
+    this.orderByRoutingKey = orderByRoutingKey;
+    for (int i = 0; i < Math.min(connectionCount, stripeCount); i++) {
+      connections.add(RabbitMQUtils.getConnection());
+    }
+    for (int i = 0; i < stripeCount; i++) {
+      Channel channel = connections.get(i % connections.size()).createChannel();
+      stripes.add(new Stripe(i, channel, maxInFlightPerStripe));
+    }
+    for (Stripe stripe : stripes) {
+      stripe.thread.start();
+    }
+  }
+
+  /**
+   * 提交一条消息，分条队列已满时阻塞；等待期间分条失败退出时抛出异常，不会无限等待
+   *
+   * @param exchange   交换机名称
+   * @param routingKey 路由键，按路由键排序时不能为 null
+   * @param props      消息属性
+   * @param body       消息体
+   * @throws InterruptedException 等待时被中断
+   */
+  public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body)
+      throws InterruptedException {
+    if (orderByRoutingKey && routingKey == null) {
+      throw new IllegalArgumentException("按路由键排序时路由键不能为 null");
+    }
+    int index = orderByRoutingKey
+        ? (routingKey.hashCode() & Integer.MAX_VALUE) % stripes.size()
+        : (nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.size();
+    Stripe stripe = stripes.get(index);
+    PendingPublish message = new PendingPublish(exchange, routingKey, props, body);
+    while (true) {
+      // 发布线程可能在任何时候失败退出，之后不会再消费队列
+      if (stripe.failure != null || !stripe.thread.isAlive()) {
+        throw new IllegalStateException("分条 " + index + " 已失败或已停止", stripe.failure);
+      }
+      if (stripe.queue.offer(message, OFFER_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * 停止接收新消息，等待所有分条发送完毕并得到确认
+   *
+   * @param timeout 最长等待时间
+   * @param unit    时间单位
+   * @return 是否在超时前全部确认；有分条发布失败时返回 false
+   * @throws InterruptedException 等待时被中断
+   */
+  public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Stripe stripe : stripes) {
+      // 已失败退出的分条不会再消费队列，不能无限等待
+      if (!stripe.queue.offer(STOP, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    for (Stripe stripe : stripes) {
+      stripe.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+      // 发布失败的分条退出时队列中可能还有消息，窗口为空也不代表全部发送完毕
+      if (stripe.thread.isAlive() || stripe.failure != null
+          || !stripe.window.awaitEmpty(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 打印所有分条的汇总报告
+   */
+  public void printReport() {
+    double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+    long published = 0;
+    long confirmed = 0;
+    long nacked = 0;
+    long totalLatencyNanos = 0;
+    double maxLatencyMillis = 0;
+    LatencyHistogram latencies = new LatencyHistogram();
+
+    System.out.println("[分条发布] 各分条统计:");
+    for (Stripe stripe : stripes) {
+      ConfirmWindow window = stripe.window;
+      System.out.printf("  分条 %d: 发布 %d 条, 确认延迟 平均 %.3f 毫秒, 最大 %.3f 毫秒, 阻塞 %d 次\n",
+          stripe.index, stripe.publishedCount.get(), window.getAverageLatencyMillis(),
+          window.getMaxLatencyMillis(), window.getBlockedCount());
+      published += stripe.publishedCount.get();
+      confirmed += window.getConfirmedCount();
+      nacked += window.getNackedCount();
+      totalLatencyNanos += window.getTotalLatencyNanos();
+      maxLatencyMillis = Math.max(maxLatencyMillis, window.getMaxLatencyMillis());
+      latencies.add(window.getLatencyHistogram());
+    }
+
+    System.out.printf("[分条发布] 汇总: %d 个分条 / %d 个连接, 发布 %d 条, 确认 %d 条, nack %d 条, "
+            + "吞吐量 %.0f 条/秒, 确认延迟 平均 %.3f 毫秒, 最大 %.3f 毫秒\n",
+        stripes.size(), connections.size(), published, confirmed, nacked, published / elapsedSeconds,
+        confirmed == 0 ? 0 : totalLatencyNanos / 1000000.0 / confirmed, maxLatencyMillis);
+    latencies.printSummary("分条发布 确认延迟");
+  }
+
+  /**
+   * 停止所有发布线程并关闭通道和连接
+   */
+  @Override
+  public void close() {
+    for (Stripe stripe : stripes) {
+      stripe.thread.interrupt();
+      RabbitMQUtils.closeChannel(stripe.channel);
+    }
+    for (Connection connection : connections) {
+      RabbitMQUtils.closeConnection(connection);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+    System.out.println("=== RabbitMQ 多线程分条确认发布演示 ===");
+
+    // 声明队列；按路由键排序演示的消息经过主题交换机路由到同一个队列
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+    channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+    channel.exchangeDeclare(ORDERED_EXCHANGE_NAME, BuiltinExchangeType.TOPIC);
+    channel.queueBind(QUEUE_NAME, ORDERED_EXCHANGE_NAME, ORDERED_ROUTING_KEY_PREFIX + "#");
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+
+    System.out.println("\n--- 轮询分配分条 ---");
+    try (StripedConfirmPublisher publisher = new StripedConfirmPublisher(STRIPES, CONNECTIONS,
+        MAX_IN_FLIGHT_PER_STRIPE, false)) {
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        String message = "分条确认消息 - " + i;
+        publisher.publish("", QUEUE_NAME, null, message.getBytes());
+      }
+
+      if (!publisher.awaitCompletion(30, TimeUnit.SECONDS)) {
+        System.err.println("等待确认超时");
+      }
+      publisher.printReport();
+    }
+
+    // 相同路由键（同一个订单）的消息总是进入同一个分条，按提交顺序发布
+    System.out.println("\n--- 按路由键分配分条（" + ORDER_KEYS + " 个路由键） ---");
+    try (StripedConfirmPublisher publisher = new StripedConfirmPublisher(STRIPES, CONNECTIONS,
+        MAX_IN_FLIGHT_PER_STRIPE, true)) {
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        String routingKey = ORDERED_ROUTING_KEY_PREFIX + (i % ORDER_KEYS);
+        String message = "分条确认消息 - " + routingKey + " #" + (i / ORDER_KEYS);
+        publisher.publish(ORDERED_EXCHANGE_NAME, routingKey, null, message.getBytes());
+      }
+
+      if (!publisher.awaitCompletion(30, TimeUnit.SECONDS)) {
+        System.err.println("等待确认超时");
+      }
+      publisher.printReport();
+    }
+  }
+}
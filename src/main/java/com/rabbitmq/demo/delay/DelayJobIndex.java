@@ -0,0 +1,170 @@
+package com.rabbitmq.demo.delay;
+
+/**
+ * 延迟任务索引：任务 id -> 当前有效的定时任务
+ *
+ * 时间轮中的定时任务无法被其他线程直接删除，DelayScheduler 用本索引判断一个定时任务是否仍然有效：
+ * 1. 安排任务时登记 id 和定时任务；取消时删除登记；重新安排时把登记替换为新的定时任务
+ * 2. 被取消或被替换的定时任务留在时间轮中成为墓碑，到期时 removeIfCurrent() 返回 false，直接丢弃，
+ *    不会发布，下游的交换机、队列和消费者都不会看到它
+ * 3. 使用开放寻址（线性探测）的 long 键数组和值数组，不为每个任务创建 Long 和 Map.Entry 对象，
+ *    装载因子不超过 1/2 时每个任务约占 24 到 32 字节；删除时把后续的键前移，不留删除标记
+ *
+ * 注意事项：
+ * - 任务 id 必须大于0，0 表示空槽
+ * - 所有方法都加锁，可以在任意线程上调用；临界区只有几次数组访问
+ */
+class DelayJobIndex {
+  // 最小容量
+  private static final int MIN_CAPACITY = 16;
+
+  // 任务 id，0 表示空槽
+  private long[] keys;
+  // 当前有效的定时任务
+  private DelayScheduler.TimerEntry[] values;
+  // 登记的任务数
+  private int size;
+
+  DelayJobIndex(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+    keys = new long[capacity];
+    values = new DelayScheduler.TimerEntry[capacity];
+  }
+
+  /**
+   * 登记或替换任务的定时任务
+   */
+  synchronized void put(DelayScheduler.TimerEntry entry) {
+    if ((size + 1) * 2L > keys.length) {
+      resize(keys.length * 2);
+    }
+    int slot = find(entry.id);
+    if (keys[slot] == 0) {
+      keys[slot] = entry.id;
+      size++;
+    }
+    values[slot] = entry;
+  }
+
+  /**
+   * @return 任务当前有效的定时任务，不存在时返回 null
+   */
+  synchronized DelayScheduler.TimerEntry get(long id) {
+    int slot = find(id);
+    return keys[slot] == 0 ? null : values[slot];
+  }
+
+  /**
+   * 删除任务的登记
+   *
+   * @return 被删除的定时任务，不存在时返回 null
+   */
+  synchronized DelayScheduler.TimerEntry remove(long id) {
+    int slot = find(id);
+    if (keys[slot] == 0) {
+      return null;
+    }
+    DelayScheduler.TimerEntry removed = values[slot];
+    delete(slot);
+    return removed;
+  }
+
+  /**
+   * 定时任务仍是该任务当前有效的定时任务时删除登记
+   *
+   * @return 是否删除；返回 false 表示该定时任务已被取消或替换（墓碑）
+   */
+  synchronized boolean removeIfCurrent(DelayScheduler.TimerEntry entry) {
+    int slot = find(entry.id);
+    if (keys[slot] == 0 || values[slot] != entry) {
+      return false;
+    }
+    delete(slot);
+    return true;
+  }
+
+  /**
+   * 任务仍然登记着时用新的定时任务替换
+   *
+   * @return 是否替换
+   */
+  synchronized boolean replace(long id, DelayScheduler.TimerEntry replacement) {
+    int slot = find(id);
+    if (keys[slot] == 0) {
+      return false;
+    }
+    values[slot] = replacement;
+    return true;
+  }
+
+  /**
+   * 判断定时任务是否仍是当前有效的定时任务
+   */
+  synchronized boolean isCurrent(DelayScheduler.TimerEntry entry) {
+    int slot = find(entry.id);
+    return keys[slot] != 0 && values[slot] == entry;
+  }
+
+  /**
+   * @return 登记的任务数
+   */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * 查找键所在的槽，不存在时返回探测序列中的第一个空槽
+   */
+  private int find(long id) {
+    int mask = keys.length - 1;
+    int slot = hash(id) & mask;
+    while (keys[slot] != 0 && keys[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * 删除槽并把探测序列中后面的键前移，保证查找不会在空槽处提前停止
+   */
+  private void delete(int slot) {
+    int mask = keys.length - 1;
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != 0) {
+      int home = hash(keys[next]) & mask;
+      // next 的理想位置不在 (hole, next] 区间内时，可以移到空洞
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = 0;
+    values[hole] = null;
+    size--;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    DelayScheduler.TimerEntry[] oldValues = values;
+    keys = new long[capacity];
+    values = new DelayScheduler.TimerEntry[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int hash(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
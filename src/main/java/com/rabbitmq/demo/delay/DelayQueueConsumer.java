@@ -7,6 +7,7 @@ import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.demo.utils.AckCoalescer;
 import com.rabbitmq.demo.utils.RabbitMQUtils;
 
 import java.io.IOException;
@@ -20,6 +21,7 @@ import java.util.concurrent.TimeoutException;
  * 1. 从延迟队列（死信队列）接收消息
  * 2. 这些消息是经过指定延迟时间后才被转发到延迟队列的
  * 3. 消费者接收到的消息已经是延迟处理的消息
+ * 4. 通过 AckCoalescer 合并确认，多条消息只发送一个 multiple=true 的确认帧
  *
  * 注意事项：
  * - 消费者需要声明与生产者相同的延迟交换机和延迟队列
@@ -32,6 +34,10 @@ public class DelayQueueConsumer {
   private static final String DELAY_QUEUE_NAME = "delay_queue";
   // 延迟路由键
   private static final String DELAY_ROUTING_KEY = "delay_routing_key";
+  // 连续完成多少条消息后合并确认一次
+  private static final int ACK_BATCH_SIZE = 50;
+  // 已完成的消息最多等待多久被确认（毫秒）
+  private static final long ACK_MAX_DELAY_MILLIS = 100;
 
   public static void main(String[] args) throws IOException, TimeoutException {
     System.out.println("=== RabbitMQ 延迟队列模式 - 消费者 ===");
@@ -54,6 +60,9 @@ public class DelayQueueConsumer {
     System.out.println("注意：这些消息是经过指定延迟时间后才到达的");
     System.out.println("========================================\n");
 
+    // 合并确认（消费者没有设置预取数，不会因为等待确认而收不到新消息）
+    final AckCoalescer ackCoalescer = new AckCoalescer(channel, ACK_BATCH_SIZE, ACK_MAX_DELAY_MILLIS);
+
     // 定义延迟队列消费者
     Consumer consumer = new DefaultConsumer(channel) {
       @Override
@@ -75,8 +84,8 @@ public class DelayQueueConsumer {
           e.printStackTrace();
         }
 
-        // 确认消息
-        channel.basicAck(deliveryTag, false);
+        // 确认消息（合并后发送）
+        ackCoalescer.ack(deliveryTag);
       }
     };
 
@@ -90,6 +99,9 @@ public class DelayQueueConsumer {
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
+      // 关闭通道前发送所有待确认的消息
+      ackCoalescer.close();
+      ackCoalescer.printStats();
       // 关闭通道和连接
       RabbitMQUtils.closeChannel(channel);
       RabbitMQUtils.closeConnection(connection);
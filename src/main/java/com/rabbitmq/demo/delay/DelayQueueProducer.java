@@ -29,6 +29,8 @@ import java.util.concurrent.TimeoutException;
  * - 消息TTL可以设置在队列级别或消息级别
  * - 队列级别TTL：所有消息都有相同的过期时间
  * - 消息级别TTL：每个消息可以设置不同的过期时间
+ * - 消息级别TTL只在消息到达队首时才检查，先发送的长延迟消息会挡住后面的短延迟消息；
+ *   使用 tiered 参数运行时改用 TieredDelayQueue 发送同样的消息，延迟误差不超过分级粒度
  */
 public class DelayQueueProducer {
   // 延迟交换机（死信交换机）名称
@@ -37,6 +39,9 @@ public class DelayQueueProducer {
   private static final String DELAY_QUEUE_NAME = "delay_queue";
   // 延迟路由键
   private static final String DELAY_ROUTING_KEY = "delay_routing_key";
+  // 分级延迟队列的延迟粒度（毫秒）和分级数（最大延迟约29小时）
+  private static final long TIER_GRANULARITY_MILLIS = 100;
+  private static final int TIER_COUNT = 20;
 
   public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
     System.out.println("=== RabbitMQ 延迟队列模式 - 生产者 ===");
@@ -55,6 +60,13 @@ public class DelayQueueProducer {
     // 3. 将延迟队列绑定到延迟交换机
     channel.queueBind(DELAY_QUEUE_NAME, DELAY_EXCHANGE_NAME, DELAY_ROUTING_KEY);
 
+    if (args.length > 0 && "tiered".equals(args[0])) {
+      publishTiered(channel);
+      RabbitMQUtils.closeChannel(channel);
+      RabbitMQUtils.closeConnection(connection);
+      return;
+    }
+
     // 4. 声明临时队列参数
     Map<String, Object> tempQueueArgs = new HashMap<>();
     // 设置死信交换机
@@ -109,4 +121,24 @@ public class DelayQueueProducer {
     RabbitMQUtils.closeChannel(channel);
     RabbitMQUtils.closeConnection(connection);
   }
-}
\ No newline at end of file
+
+  /**
+   * 通过分级延迟队列发送与默认模式相同的三条消息，2秒消息不会被先发送的10秒消息挡住
+   */
+  private static void publishTiered(Channel channel) throws IOException, InterruptedException {
+    TieredDelayQueue delayQueue = new TieredDelayQueue(channel, DELAY_EXCHANGE_NAME, TIER_GRANULARITY_MILLIS,
+        TIER_COUNT);
+    delayQueue.declareTopology();
+    System.out.println("分级延迟队列已准备完成: 粒度 " + TIER_GRANULARITY_MILLIS + "ms, 最大延迟 "
+        + delayQueue.getMaxDelayMillis() + "ms");
+
+    long[] delays = {5000, 10000, 2000};
+    for (int i = 0; i < delays.length; i++) {
+      String message = (delays[i] / 1000) + "秒延迟消息 - 定时任务" + (i + 1);
+      delayQueue.publish(DELAY_ROUTING_KEY, null, message.getBytes(), delays[i]);
+      System.out.println("发送消息: '" + message + "' (延迟: " + delays[i] + "ms)");
+      TimeUnit.SECONDS.sleep(1);
+    }
+    System.out.println("\n所有延迟消息发送完成！每条消息都会在自己的延迟时间到达后被投递");
+  }
+}
@@ -0,0 +1,863 @@
+package com.rabbitmq.demo.delay;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内延迟调度器（分层时间轮）
+ *
+ * 亚秒到分钟级、速率很高的延迟消息如果每条都经过一次 TTL 队列，Broker 的往返开销太大，精度也不够。
+ * 本类把延迟消息保存在进程内的分层时间轮中，到期时发布到 delay_exchange：
+ * 1. 时间轮共 LEVELS 层，每层 2^WHEEL_BITS 个槽，第 l 层的一个槽跨 tick × 256^l 毫秒；
+ *    到期刻度与当前刻度最高的不同字节决定放在哪一层，插入和到期都是 O(1)
+ * 2. 当前刻度的低 8×l 位回到0时，把第 l 层对应槽中的定时任务重新放入更低的层（级联），
+ *    第0层的槽到达时发布其中的消息
+ * 3. 任何线程调用 schedule() 只把定时任务放进无锁的收件队列，由唯一的时钟线程放入时间轮并发布，
+ *    时间轮和通道都只有时钟线程访问，不需要加锁
+ * 4. 待触发的定时任务数达到上限时 schedule() 阻塞等待，堆内存占用有上界
+ * 5. 发布通道使用发布确认模式：消息发布后先记在待确认表中，Broker 确认（ack）后才算发布完成、释放名额；
+ *    Broker 拒绝（nack）或发布失败的消息在 RETRY_DELAY_MILLIS 后重新发布
+ * 6. 指定日志文件时，时钟线程把新的定时任务（SCHEDULE）和 Broker 已确认的定时任务（FIRED）追加到日志，
+ *    每个刻度写出一次；重新启动时回放日志，未发布的定时任务重新放入时间轮，已过期的立即发布；
+ *    日志中的记录远多于待触发的定时任务时，把待触发的定时任务重写到新文件后原子替换（压缩）
+ * 7. schedule() 返回的任务 id 可以用于 cancel() 取消和 reschedule() 重新安排：DelayJobIndex 记录每个任务
+ *    当前有效的定时任务，被取消或替换的定时任务留在时间轮中作为墓碑，到期时检查索引后直接丢弃，
+ *    不会发布到 Broker，消费者也不会收到需要丢弃的过期任务
+ *
+ * 日志记录格式：
+ * - SCHEDULE：[类型 byte][id long][到期时间 long][路由键长度 int][路由键][消息体长度 int][消息体]
+ *   （重新安排时用同一个 id 再写一条，回放时以最后一条为准）
+ * - FIRED：[类型 byte][id long]
+ * - CANCEL：[类型 byte][id long]
+ * - ID_HIGH_WATER：[类型 byte][id long]，压缩时写在新文件开头，记录已分配过的最大任务 id；
+ *   重新启动时任务 id 从所有记录（包括已发布、已取消和这条记录）中的最大 id 之后继续分配，
+ *   旧的 id 不会被重新使用，过期的 cancel(id) 或 reschedule(id) 不会误操作其他任务
+ *
+ * 注意事项：
+ * - 到期刻度向上取整，消息不会提前发布，延迟误差不超过一个刻度加上发布耗时
+ * - 日志每个刻度写入操作系统一次，进程崩溃时最多丢失最后一个刻度内新增的定时任务；防止断电丢失需要 fsync
+ * - 恢复是“至少一次”语义：FIRED 记录只在 Broker 确认后写出，发布后、确认前连接或进程出错的消息
+ *   不会丢失，在重启后再发布一次（可能重复）；关闭时最多等待 CLOSE_CONFIRM_TIMEOUT_MILLIS 让在途消息得到确认
+ * - 通道关闭后待确认的消息不会再得到确认，它们一直占用名额，直到重新启动后从日志恢复
+ * - 到期时间使用系统时钟，系统时钟回拨时消息会相应推迟
+ * - 墓碑到期前仍占用待触发数的名额；正在发布的任务已从索引中移除，此时 cancel() 返回 false
+ * - 时钟线程因写日志失败或意外异常退出时，调度器进入失败状态并视为已关闭：schedule()、cancel()、
+ *   reschedule() 抛出 IllegalStateException（原因为导致退出的异常），等待空位的调用方也会被唤醒，
+ *   不会无限期阻塞；已写入日志的定时任务在下次启动时恢复
+ */
+public class DelayScheduler implements AutoCloseable {
+  // 目标交换机名称（与 DelayQueueProducer 一致）
+  public static final String DELAY_EXCHANGE_NAME = "delay_exchange";
+  // 每层时间轮的槽数为 2^WHEEL_BITS
+  private static final int WHEEL_BITS = 8;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final long WHEEL_MASK = WHEEL_SIZE - 1;
+  // 层数，8层×8位覆盖全部64位刻度
+  private static final int LEVELS = 8;
+  // 日志记录类型
+  private static final byte RECORD_SCHEDULE = 1;
+  private static final byte RECORD_FIRED = 2;
+  private static final byte RECORD_CANCEL = 3;
+  private static final byte RECORD_ID_HIGH_WATER = 4;
+  // 收件队列中表示“取消记录”的到期时间，只用于把 CANCEL 记录交给时钟线程写入日志
+  private static final long CANCEL_MARKER = Long.MIN_VALUE;
+  // 日志记录数超过该值且超过待触发数的 COMPACT_RATIO 倍时压缩日志
+  private static final long COMPACT_MIN_RECORDS = 1_000_000;
+  private static final int COMPACT_RATIO = 4;
+  // 没有待触发的定时任务时时钟线程最长停放时间（毫秒）
+  private static final long IDLE_PARK_MILLIS = 100;
+  // 时钟线程每次推进刻度前最多从收件队列取出的定时任务数
+  private static final int MAX_DRAIN = 4096;
+  // 发布失败后重试的间隔（毫秒）
+  private static final long RETRY_DELAY_MILLIS = 1000;
+  // 关闭时等待在途消息得到确认的最长时间（毫秒）
+  private static final long CLOSE_CONFIRM_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * 定时任务，在时间轮的槽中组成单向链表
+   */
+  static final class TimerEntry {
+    final long id;
+    final long dueAt;
+    final String routingKey;
+    final byte[] body;
+    long dueTick;
+    TimerEntry next;
+
+    TimerEntry(long id, long dueAt, String routingKey, byte[] body) {
+      this.id = id;
+      this.dueAt = dueAt;
+      this.routingKey = routingKey;
+      this.body = body;
+    }
+  }
+
+  // 发布通道，只有时钟线程使用（确认回调在连接的线程上执行，只访问下面的并发容器）
+  private final Channel channel;
+  // 已发布、等待 Broker 确认的定时任务（发布序列号 -> 定时任务）
+  private final ConcurrentSkipListMap<Long, TimerEntry> unconfirmed = new ConcurrentSkipListMap<>();
+  // Broker 已确认或拒绝的定时任务，由时钟线程写 FIRED 记录或重新安排
+  private final ConcurrentLinkedQueue<TimerEntry> acked = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<TimerEntry> nacked = new ConcurrentLinkedQueue<>();
+  // 刻度长度（毫秒）
+  private final long tickMillis;
+  // 待触发的定时任务数上限
+  private final int maxPending;
+  // 时间轮：slots[层][槽] 为链表头
+  private final TimerEntry[][] slots = new TimerEntry[LEVELS][WHEEL_SIZE];
+  // 当前刻度，只有时钟线程访问
+  private long currentTick;
+  // 本刻度到期的定时任务，只有时钟线程访问
+  private final List<TimerEntry> dueEntries = new ArrayList<>();
+  // 新的定时任务，由时钟线程放入时间轮
+  private final ConcurrentLinkedQueue<TimerEntry> inbox = new ConcurrentLinkedQueue<>();
+  // 待触发的定时任务数（包括收件队列中的）
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  // 待触发数达到上限时调用方等待的监视器和等待的调用方数
+  private final Object notFull = new Object();
+  private final AtomicInteger waitingCallers = new AtomicInteger();
+  // 定时任务 id
+  private final AtomicLong idSequence = new AtomicLong();
+  // 任务 id -> 当前有效的定时任务
+  private final DelayJobIndex index = new DelayJobIndex(1024);
+  // 日志，为 null 时不持久化
+  private final Journal journal;
+  // 从日志恢复的定时任务数
+  private final int recoveredCount;
+  private final Thread ticker;
+  private volatile boolean tickerIdle;
+  private volatile boolean closed;
+  // 导致时钟线程退出的异常，为 null 表示正常运行或正常关闭
+  private volatile Throwable failure;
+
+  // 统计信息
+  private volatile long firedCount;
+  private volatile long publishFailedCount;
+  private volatile long nackedCount;
+  private volatile long cascadedCount;
+  private volatile long compactionCount;
+  private final AtomicLong cancelledCount = new AtomicLong();
+  private final AtomicLong rescheduledCount = new AtomicLong();
+  private volatile long tombstoneCount;
+
+  /**
+   * 创建调度器，指定日志文件时先回放其中未发布的定时任务，然后启动时钟线程
+   *
+   * @param channel     发布通道，创建后不能再被其他线程使用；调度器会把它设为发布确认模式
+   * @param journalFile 日志文件，为 null 时不持久化
+   * @param tickMillis  刻度长度（毫秒）
+   * @param maxPending  待触发的定时任务数上限
+   * @throws IOException 读取日志或设置发布确认模式失败
+   */
+  public DelayScheduler(Channel channel, Path journalFile, long tickMillis, int maxPending) throws IOException {
+    if (tickMillis <= 0 || maxPending <= 0) {
+      throw new IllegalArgumentException("刻度长度和待触发数上限必须大于0");
+    }
+    this.channel = channel;
+    channel.confirmSelect();
+    channel.addConfirmListener((deliveryTag, multiple) -> settle(deliveryTag, multiple, acked),
+        (deliveryTag, multiple) -> settle(deliveryTag, multiple, nacked));
+    this.tickMillis = tickMillis;
+    this.maxPending = maxPending;
+    this.currentTick = System.currentTimeMillis() / tickMillis;
+    if (journalFile != null) {
+      Map<Long, TimerEntry> recovered = new LinkedHashMap<>();
+      long[] highestId = new long[1];
+      long records = Journal.replay(journalFile, recovered, highestId);
+      for (TimerEntry entry : recovered.values()) {
+        index.put(entry);
+        insert(entry);
+      }
+      idSequence.set(highestId[0]);
+      pendingCount.set(recovered.size());
+      this.recoveredCount = recovered.size();
+      this.journal = new Journal(journalFile, records);
+    } else {
+      this.recoveredCount = 0;
+      this.journal = null;
+    }
+    this.ticker = new Thread(this::runTicker, "delay-scheduler-ticker");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * 安排一条延迟消息，可以在任意线程上调用，待触发数达到上限时等待
+   *
+   * @param routingKey  到期后在 delay_exchange 上使用的路由键
+   * @param body        消息体
+   * @param delayMillis 延迟（毫秒）
+   * @return 定时任务 id
+   */
+  public long schedule(String routingKey, byte[] body, long delayMillis) {
+    if (delayMillis < 0) {
+      throw new IllegalArgumentException("延迟不能为负数: " + delayMillis);
+    }
+    reserveSlot();
+    TimerEntry entry = new TimerEntry(idSequence.incrementAndGet(), System.currentTimeMillis() + delayMillis,
+        routingKey, body);
+    index.put(entry);
+    enqueue(entry);
+    return entry.id;
+  }
+
+  /**
+   * 取消还没有发布的任务
+   *
+   * @param id 任务 id
+   * @return 是否取消；任务不存在、已经发布或正在发布时返回 false
+   */
+  public boolean cancel(long id) {
+    ensureOpen();
+    if (index.remove(id) == null) {
+      return false;
+    }
+    cancelledCount.incrementAndGet();
+    if (journal != null) {
+      enqueue(new TimerEntry(id, CANCEL_MARKER, null, null));
+    }
+    return true;
+  }
+
+  /**
+   * 把还没有发布的任务改为从现在起 newDelayMillis 后发布，任务 id 不变
+   *
+   * @param id             任务 id
+   * @param newDelayMillis 新的延迟（毫秒）
+   * @return 是否重新安排；任务不存在、已经发布或正在发布时返回 false
+   */
+  public boolean reschedule(long id, long newDelayMillis) {
+    if (newDelayMillis < 0) {
+      throw new IllegalArgumentException("延迟不能为负数: " + newDelayMillis);
+    }
+    ensureOpen();
+    TimerEntry current = index.get(id);
+    if (current == null) {
+      return false;
+    }
+    // 新的定时任务占一个名额，原来的定时任务成为墓碑，到期时释放名额
+    reserveSlot();
+    TimerEntry replacement = new TimerEntry(id, System.currentTimeMillis() + newDelayMillis, current.routingKey,
+        current.body);
+    if (!index.replace(id, replacement)) {
+      pendingCount.decrementAndGet();
+      return false;
+    }
+    rescheduledCount.incrementAndGet();
+    enqueue(replacement);
+    return true;
+  }
+
+  private void enqueue(TimerEntry entry) {
+    inbox.add(entry);
+    if (tickerIdle) {
+      LockSupport.unpark(ticker);
+    }
+  }
+
+  /**
+   * 调度器已关闭或时钟线程已失败退出时抛出异常，不再接受新的操作
+   */
+  private void ensureOpen() {
+    Throwable cause = failure;
+    if (cause != null) {
+      throw new IllegalStateException("调度器时钟线程已失败退出", cause);
+    }
+    if (closed) {
+      throw new IllegalStateException("调度器已关闭");
+    }
+  }
+
+  private void reserveSlot() {
+    while (true) {
+      ensureOpen();
+      int current = pendingCount.get();
+      if (current < maxPending) {
+        if (!pendingCount.compareAndSet(current, current + 1)) {
+          continue;
+        }
+        if (closed) {
+          // 与 close() 并发：时钟线程可能已经退出，撤销占位
+          pendingCount.decrementAndGet();
+          ensureOpen();
+        }
+        return;
+      }
+      synchronized (notFull) {
+        waitingCallers.incrementAndGet();
+        try {
+          while (pendingCount.get() >= maxPending && !closed) {
+            notFull.wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("等待调度器空位时被中断", e);
+        } finally {
+          waitingCallers.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void runTicker() {
+    try {
+      while (!closed) {
+        drainInbox(MAX_DRAIN);
+        long nowTick = System.currentTimeMillis() / tickMillis;
+        if (pendingCount.get() == 0 && inbox.isEmpty()) {
+          // 时间轮为空，直接跳到当前刻度
+          currentTick = Math.max(currentTick, nowTick);
+        }
+        while (currentTick < nowTick) {
+          advance();
+        }
+        publishDue();
+        drainConfirms();
+        if (journal != null) {
+          journal.flush();
+          if (journal.recordCount > COMPACT_MIN_RECORDS
+              && journal.recordCount > (long) COMPACT_RATIO * pendingCount.get()) {
+            journal.compact(pendingEntries(), idSequence.get());
+            compactionCount++;
+          }
+        }
+        if (inbox.isEmpty()) {
+          park();
+        }
+      }
+      // 关闭时把收件队列中的定时任务写入日志，下次启动时恢复
+      drainInbox(Integer.MAX_VALUE);
+      // 等待在途消息的确认，没有得到确认的消息不写 FIRED，下次启动时重新发布
+      awaitConfirms();
+      drainConfirms();
+      if (journal != null) {
+        journal.close();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * 时钟线程异常退出：记录原因并关闭调度器，唤醒等待空位的调用方，之后的操作都会抛出异常
+   */
+  private void fail(Throwable cause) {
+    failure = cause;
+    closed = true;
+    System.err.println("[延迟调度器] 时钟线程异常退出，调度器已停止: " + cause);
+    synchronized (notFull) {
+      notFull.notifyAll();
+    }
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException | RuntimeException e) {
+        System.err.println("[延迟调度器] 关闭日志失败: " + e.getMessage());
+      }
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+  }
+
+  private void park() {
+    if (pendingCount.get() == 0) {
+      tickerIdle = true;
+      if (inbox.isEmpty() && !closed) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MILLIS));
+      }
+      tickerIdle = false;
+    } else {
+      long nextTickAt = (currentTick + 1) * tickMillis;
+      long waitMillis = nextTickAt - System.currentTimeMillis();
+      if (waitMillis > 0) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(waitMillis));
+      }
+    }
+  }
+
+  /**
+   * 把收件队列中的定时任务放入时间轮
+   *
+   * @param limit 最多放入的数量，大量定时任务同时到达时分批放入，中间照常推进刻度，到期的消息不会被拖延
+   */
+  private void drainInbox(int limit) throws IOException {
+    TimerEntry entry;
+    for (int i = 0; i < limit && (entry = inbox.poll()) != null; i++) {
+      if (entry.dueAt == CANCEL_MARKER) {
+        journal.writeCancel(entry.id);
+        continue;
+      }
+      if (journal != null) {
+        journal.writeSchedule(entry);
+      }
+      insert(entry);
+    }
+  }
+
+  /**
+   * 把定时任务放入时间轮：到期刻度与当前刻度最高的不同字节决定层数
+   */
+  private void insert(TimerEntry entry) {
+    entry.dueTick = (entry.dueAt + tickMillis - 1) / tickMillis;
+    if (entry.dueTick <= currentTick) {
+      dueEntries.add(entry);
+      return;
+    }
+    int level = (63 - Long.numberOfLeadingZeros(entry.dueTick ^ currentTick)) / WHEEL_BITS;
+    int slot = (int) ((entry.dueTick >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+    entry.next = slots[level][slot];
+    slots[level][slot] = entry;
+  }
+
+  /**
+   * 前进一个刻度：先从高到低级联低位回到0的层，再取出第0层当前槽中的定时任务
+   */
+  private void advance() {
+    long tick = ++currentTick;
+    int top = 0;
+    while (top + 1 < LEVELS && (tick & ((1L << ((top + 1) * WHEEL_BITS)) - 1)) == 0) {
+      top++;
+    }
+    for (int level = top; level >= 1; level--) {
+      int slot = (int) ((tick >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+      TimerEntry entry = slots[level][slot];
+      slots[level][slot] = null;
+      while (entry != null) {
+        TimerEntry next = entry.next;
+        entry.next = null;
+        insert(entry);
+        cascadedCount++;
+        entry = next;
+      }
+    }
+    int slot = (int) (tick & WHEEL_MASK);
+    TimerEntry entry = slots[0][slot];
+    slots[0][slot] = null;
+    while (entry != null) {
+      TimerEntry next = entry.next;
+      entry.next = null;
+      dueEntries.add(entry);
+      entry = next;
+    }
+  }
+
+  private void publishDue() {
+    if (dueEntries.isEmpty()) {
+      return;
+    }
+    List<TimerEntry> retries = null;
+    int tombstones = 0;
+    for (TimerEntry entry : dueEntries) {
+      // 先从索引中移除再发布，发布过程中 cancel() 返回 false，不会出现“取消成功但已发布”
+      if (!index.removeIfCurrent(entry)) {
+        // 已被取消或重新安排的墓碑，直接丢弃
+        tombstones++;
+        continue;
+      }
+      // 发布成功的定时任务在 Broker 确认后由 drainConfirms() 写 FIRED 并释放名额
+      if (!publish(entry)) {
+        if (retries == null) {
+          retries = new ArrayList<>();
+        }
+        retries.add(entry);
+      }
+    }
+    dueEntries.clear();
+    if (retries != null) {
+      for (TimerEntry entry : retries) {
+        retry(entry);
+      }
+    }
+    tombstoneCount += tombstones;
+    release(tombstones);
+  }
+
+  /**
+   * 在 RETRY_DELAY_MILLIS 后重新发布；日志中的 SCHEDULE 记录仍然有效，重试不需要再写日志
+   */
+  private void retry(TimerEntry entry) {
+    long retryAt = (currentTick + 1) * tickMillis + RETRY_DELAY_MILLIS;
+    TimerEntry retry = new TimerEntry(entry.id, retryAt, entry.routingKey, entry.body);
+    index.put(retry);
+    insert(retry);
+  }
+
+  /**
+   * 释放名额，唤醒等待空位的调用方
+   */
+  private void release(int count) {
+    if (count == 0) {
+      return;
+    }
+    int remaining = pendingCount.addAndGet(-count);
+    if (remaining < maxPending && waitingCallers.get() > 0) {
+      synchronized (notFull) {
+        notFull.notifyAll();
+      }
+    }
+  }
+
+  private boolean publish(TimerEntry entry) {
+    Map<String, Object> headers = Collections.singletonMap(TieredDelayQueue.DUE_AT_HEADER, entry.dueAt);
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder().deliveryMode(2).headers(headers).build();
+    long seqNo = channel.getNextPublishSeqNo();
+    // 先登记再发布，确认回调可能在 basicPublish 返回之前到达
+    unconfirmed.put(seqNo, entry);
+    try {
+      channel.basicPublish(DELAY_EXCHANGE_NAME, entry.routingKey, props, entry.body);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      unconfirmed.remove(seqNo);
+      if (publishFailedCount++ == 0) {
+        System.err.println("[延迟调度器] 发布失败，稍后重试: " + e.getMessage());
+      }
+      return false;
+    }
+  }
+
+  /**
+   * 确认回调（在连接的线程上执行）：把得到确认或拒绝的定时任务交给时钟线程
+   */
+  private void settle(long deliveryTag, boolean multiple, ConcurrentLinkedQueue<TimerEntry> settled) {
+    if (multiple) {
+      Map<Long, TimerEntry> confirmed = unconfirmed.headMap(deliveryTag, true);
+      settled.addAll(confirmed.values());
+      confirmed.clear();
+    } else {
+      TimerEntry entry = unconfirmed.remove(deliveryTag);
+      if (entry != null) {
+        settled.add(entry);
+      }
+    }
+    if (tickerIdle) {
+      LockSupport.unpark(ticker);
+    }
+  }
+
+  /**
+   * Broker 确认的定时任务写 FIRED 并释放名额，拒绝的定时任务稍后重新发布
+   */
+  private void drainConfirms() throws IOException {
+    int fired = 0;
+    TimerEntry entry;
+    while ((entry = acked.poll()) != null) {
+      fired++;
+      if (journal != null) {
+        journal.writeFired(entry.id);
+      }
+    }
+    while ((entry = nacked.poll()) != null) {
+      if (nackedCount++ == 0) {
+        System.err.println("[延迟调度器] Broker 拒绝了消息，稍后重试");
+      }
+      retry(entry);
+    }
+    firedCount += fired;
+    release(fired);
+  }
+
+  /**
+   * 关闭时等待在途消息的确认
+   */
+  private void awaitConfirms() {
+    if (unconfirmed.isEmpty() || !channel.isOpen()) {
+      return;
+    }
+    try {
+      channel.waitForConfirms(CLOSE_CONFIRM_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (TimeoutException | RuntimeException e) {
+      System.err.println("[延迟调度器] 关闭时还有 " + unconfirmed.size() + " 条消息没有得到确认，下次启动时重新发布");
+    }
+  }
+
+  /**
+   * 收集待确认和时间轮中仍然有效的定时任务（不含墓碑），用于压缩日志，只在时钟线程中调用
+   */
+  private List<TimerEntry> pendingEntries() {
+    List<TimerEntry> entries = new ArrayList<>(index.size() + unconfirmed.size());
+    // 已发布但还没有得到确认的定时任务也要保留，否则压缩后崩溃会丢失
+    entries.addAll(unconfirmed.values());
+    for (TimerEntry entry : dueEntries) {
+      if (index.isCurrent(entry)) {
+        entries.add(entry);
+      }
+    }
+    for (TimerEntry[] level : slots) {
+      for (TimerEntry head : level) {
+        for (TimerEntry entry = head; entry != null; entry = entry.next) {
+          if (index.isCurrent(entry)) {
+            entries.add(entry);
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return 时间轮、收件队列和待确认表中的定时任务数（包括还没到期的墓碑），即占用的名额
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * @return 还没有发布也没有取消的任务数
+   */
+  public int getJobCount() {
+    return index.size();
+  }
+
+  /**
+   * @return 已发布并得到 Broker 确认的定时任务数
+   */
+  public long getFiredCount() {
+    return firedCount;
+  }
+
+  /**
+   * @return 启动时从日志恢复的定时任务数
+   */
+  public int getRecoveredCount() {
+    return recoveredCount;
+  }
+
+  /**
+   * @return 导致时钟线程退出的异常，正常运行或正常关闭时为 null
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * 打印调度统计信息
+   */
+  public void printStats() {
+    System.out.printf("[延迟调度器] 任务: %d, 占用名额: %d, 已发布: %d, 待确认: %d, 取消: %d, 重新安排: %d, "
+            + "丢弃墓碑: %d, 发布失败: %d, Broker拒绝: %d, 级联: %d, 恢复: %d, 日志压缩: %d\n",
+        index.size(), pendingCount.get(), firedCount, unconfirmed.size(), cancelledCount.get(), rescheduledCount.get(),
+        tombstoneCount, publishFailedCount, nackedCount, cascadedCount, recoveredCount, compactionCount);
+  }
+
+  /**
+   * 停止时钟线程，未触发的定时任务保留在日志中，下次启动时恢复；不关闭通道
+   */
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (notFull) {
+      notFull.notifyAll();
+    }
+    LockSupport.unpark(ticker);
+    try {
+      ticker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * 追加写入的日志，只有时钟线程使用
+   */
+  private static final class Journal {
+    private final Path file;
+    private DataOutputStream out;
+    // 日志中的记录数
+    long recordCount;
+
+    Journal(Path file, long recordCount) throws IOException {
+      this.file = file;
+      this.recordCount = recordCount;
+      this.out = open(file);
+    }
+
+    private static DataOutputStream open(Path file) throws IOException {
+      return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE), 64 * 1024));
+    }
+
+    void writeSchedule(TimerEntry entry) throws IOException {
+      writeSchedule(out, entry);
+      recordCount++;
+    }
+
+    private static void writeSchedule(DataOutputStream out, TimerEntry entry) throws IOException {
+      byte[] routingKey = entry.routingKey.getBytes(StandardCharsets.UTF_8);
+      out.writeByte(RECORD_SCHEDULE);
+      out.writeLong(entry.id);
+      out.writeLong(entry.dueAt);
+      out.writeInt(routingKey.length);
+      out.write(routingKey);
+      out.writeInt(entry.body.length);
+      out.write(entry.body);
+    }
+
+    void writeFired(long id) throws IOException {
+      out.writeByte(RECORD_FIRED);
+      out.writeLong(id);
+      recordCount++;
+    }
+
+    void writeCancel(long id) throws IOException {
+      out.writeByte(RECORD_CANCEL);
+      out.writeLong(id);
+      recordCount++;
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    /**
+     * 把已分配的最大任务 id 和待触发的定时任务写入临时文件，刷盘后原子替换日志
+     */
+    void compact(List<TimerEntry> entries, long highestId) throws IOException {
+      out.close();
+      Path temp = file.resolveSibling(file.getFileName() + ".compact");
+      try (FileChannel fileChannel = FileChannel.open(temp, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+           DataOutputStream compactOut = new DataOutputStream(new BufferedOutputStream(
+               Channels.newOutputStream(fileChannel), 64 * 1024))) {
+        // 已发布和已取消的记录被丢弃，保留它们的 id 上界
+        compactOut.writeByte(RECORD_ID_HIGH_WATER);
+        compactOut.writeLong(highestId);
+        for (TimerEntry entry : entries) {
+          writeSchedule(compactOut, entry);
+        }
+        compactOut.flush();
+        fileChannel.force(true);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      recordCount = entries.size() + 1;
+      out = open(file);
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+
+    /**
+     * 回放日志，得到未发布的定时任务；末尾写了一半的记录（崩溃时）被截掉
+     *
+     * @param highestId 输出参数，highestId[0] 为所有记录中出现过的最大任务 id
+     * @return 日志中完整的记录数
+     */
+    static long replay(Path file, Map<Long, TimerEntry> pending, long[] highestId) throws IOException {
+      if (!Files.exists(file)) {
+        return 0;
+      }
+      long records = 0;
+      long validLength = 0;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+          64 * 1024))) {
+        while (true) {
+          int type = in.read();
+          if (type < 0) {
+            break;
+          }
+          if (type == RECORD_SCHEDULE) {
+            long id = in.readLong();
+            long dueAt = in.readLong();
+            byte[] routingKey = new byte[in.readInt()];
+            in.readFully(routingKey);
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            pending.put(id, new TimerEntry(id, dueAt, new String(routingKey, StandardCharsets.UTF_8), body));
+            highestId[0] = Math.max(highestId[0], id);
+            validLength += 1 + 8 + 8 + 4 + routingKey.length + 4 + body.length;
+          } else if (type == RECORD_FIRED || type == RECORD_CANCEL) {
+            long id = in.readLong();
+            pending.remove(id);
+            highestId[0] = Math.max(highestId[0], id);
+            validLength += 1 + 8;
+          } else if (type == RECORD_ID_HIGH_WATER) {
+            highestId[0] = Math.max(highestId[0], in.readLong());
+            validLength += 1 + 8;
+          } else {
+            System.err.println("[延迟调度器] 日志在偏移 " + validLength + " 处损坏，忽略之后的内容");
+            break;
+          }
+          records++;
+        }
+      } catch (EOFException e) {
+        // 最后一条记录不完整
+      }
+      if (validLength < Files.size(file)) {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          fileChannel.truncate(validLength);
+        }
+      }
+      return records;
+    }
+  }
+
+  public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+    System.out.println("=== RabbitMQ 延迟队列模式 - 进程内延迟调度器 ===");
+
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+    // 与 DelayQueueConsumer 一致的延迟交换机和延迟队列
+    channel.exchangeDeclare(DELAY_EXCHANGE_NAME, BuiltinExchangeType.DIRECT, true);
+    channel.queueDeclare("delay_queue", true, false, false, null);
+    channel.queueBind("delay_queue", DELAY_EXCHANGE_NAME, "delay_routing_key");
+
+    DelayScheduler scheduler = new DelayScheduler(channel, Paths.get("delay-scheduler.journal"), 1, 1_000_000);
+    if (scheduler.getRecoveredCount() > 0) {
+      System.out.println("从日志恢复了 " + scheduler.getRecoveredCount() + " 条未发布的延迟消息");
+    }
+    long[] delays = {5000, 10000, 2000};
+    long[] ids = new long[delays.length];
+    for (int i = 0; i < delays.length; i++) {
+      String message = (delays[i] / 1000) + "秒延迟消息 - 定时任务" + (i + 1);
+      ids[i] = scheduler.schedule("delay_routing_key", message.getBytes(), delays[i]);
+      System.out.println("安排消息 #" + ids[i] + ": '" + message + "' (延迟: " + delays[i] + "ms)");
+    }
+
+    // 取消10秒的任务，消费者不会收到它；5秒的任务提前到1秒后发布
+    System.out.println("取消任务 #" + ids[1] + ": " + scheduler.cancel(ids[1]));
+    System.out.println("任务 #" + ids[0] + " 改为1秒后发布: " + scheduler.reschedule(ids[0], 1000));
+
+    // 等待全部发布（中途结束进程时，未发布的消息会在下次启动时恢复）
+    while (scheduler.getJobCount() > 0) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    scheduler.close();
+    scheduler.printStats();
+
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+  }
+}
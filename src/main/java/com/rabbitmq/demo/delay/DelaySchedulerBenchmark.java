@@ -0,0 +1,224 @@
+package com.rabbitmq.demo.delay;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.demo.utils.LatencyHistogram;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 延迟调度器基准测试
+ *
+ * 不需要启动RabbitMQ服务器，用替身通道代替真实通道，在 basicPublish 中按消息头 delay-due-at 记录延迟误差，
+ * 并立即确认（ack）发布的消息。
+ * 依次测量：
+ * 1. 容量：安排 CAPACITY_TIMERS 个不会在测试期间到期的定时任务，输出安排速率和每个定时任务占用的堆内存
+ * 2. 吞吐量与延迟误差：多个线程以 SCHEDULE_RATE 的总速率安排延迟在 0 到 MAX_DELAY_MILLIS 之间均匀分布的定时任务，
+ *    分别在不写日志和写日志时输出发布速率和延迟误差分位数
+ * 3. 恢复：写日志时关闭调度器，重新创建调度器回放日志，输出恢复的定时任务数和耗时
+ * 4. 取消：安排后立即取消一半的任务，输出取消速率，并确认被取消的任务没有一条被发布
+ *
+ * 预期结果：
+ * - 安排和到期都是 O(1)，发布速率不随待触发的定时任务数增加而下降
+ * - 延迟误差的中位数在一个刻度以内；尾部主要来自 GC 停顿（新生代回收时要复制大量仍待触发的定时任务，
+ *   可以用 -Xlog:gc 对照）和压缩日志时时钟线程的停顿，而不是时间轮本身
+ * - 写日志使每个定时任务多两次顺序写入，发布速率基本不变
+ */
+public class DelaySchedulerBenchmark {
+  // 容量测试的定时任务数
+  private static final int CAPACITY_TIMERS = 2_000_000;
+  // 吞吐量测试的定时任务数
+  private static final int THROUGHPUT_TIMERS = 1_000_000;
+  // 安排定时任务的线程数
+  private static final int SCHEDULER_THREADS = 4;
+  // 吞吐量测试中安排定时任务的总速率（个/秒）
+  private static final int SCHEDULE_RATE = 200_000;
+  // 吞吐量测试的最大延迟（毫秒）
+  private static final long MAX_DELAY_MILLIS = 5_000;
+  // 刻度长度（毫秒）
+  private static final long TICK_MILLIS = 1;
+  // 消息体大小（字节）
+  private static final int BODY_SIZE = 32;
+
+  // 替身通道记录的延迟误差和发布数
+  private static volatile LatencyHistogram lateness = new LatencyHistogram();
+  private static final AtomicLong published = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    System.out.println("=== 延迟调度器基准测试（替身通道） ===");
+    Channel channel = standInChannel();
+    Path journal = Files.createTempFile("delay-scheduler", ".journal");
+    try {
+      measureCapacity(channel);
+      measureThroughput(channel, null);
+      Files.deleteIfExists(journal);
+      measureThroughput(channel, journal);
+      Files.deleteIfExists(journal);
+      measureRecovery(channel, journal);
+      Files.deleteIfExists(journal);
+      measureCancellation(channel);
+    } finally {
+      Files.deleteIfExists(journal);
+    }
+  }
+
+  private static void measureCapacity(Channel channel) throws Exception {
+    System.out.println("\n--- 容量: " + CAPACITY_TIMERS + " 个待触发的定时任务 ---");
+    long heapBefore = usedHeap();
+    DelayScheduler scheduler = new DelayScheduler(channel, null, TICK_MILLIS, CAPACITY_TIMERS);
+    long start = System.nanoTime();
+    scheduleAll(scheduler, CAPACITY_TIMERS, 60_000, 120_000, 0);
+    double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+    // 等待时钟线程把收件队列中的定时任务放入时间轮
+    TimeUnit.MILLISECONDS.sleep(500);
+    long heapAfter = usedHeap();
+    System.out.printf("安排速率: %.0f 个/秒, 待触发: %d, 每个定时任务占用堆内存约 %d 字节（消息体 %d 字节）\n",
+        CAPACITY_TIMERS / seconds, scheduler.getPendingCount(), (heapAfter - heapBefore) / CAPACITY_TIMERS,
+        BODY_SIZE);
+    scheduler.close();
+  }
+
+  private static void measureThroughput(Channel channel, Path journal) throws Exception {
+    System.out.println("\n--- 吞吐量与延迟误差: " + THROUGHPUT_TIMERS + " 个定时任务, 延迟 0-" + MAX_DELAY_MILLIS
+        + " 毫秒, " + (journal == null ? "不写日志" : "写日志") + " ---");
+    lateness = new LatencyHistogram();
+    published.set(0);
+    DelayScheduler scheduler = new DelayScheduler(channel, journal, TICK_MILLIS, THROUGHPUT_TIMERS);
+    long start = System.nanoTime();
+    scheduleAll(scheduler, THROUGHPUT_TIMERS, 0, MAX_DELAY_MILLIS, SCHEDULE_RATE);
+    double scheduleSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+    while (published.get() < THROUGHPUT_TIMERS) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    double totalSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+    System.out.printf("安排速率: %.0f 个/秒, 全部发布耗时 %.2f 秒, 平均发布速率 %.0f 条/秒\n",
+        THROUGHPUT_TIMERS / scheduleSeconds, totalSeconds, THROUGHPUT_TIMERS / totalSeconds);
+    lateness.printSummary("延迟误差");
+    scheduler.close();
+    scheduler.printStats();
+    if (journal != null) {
+      System.out.printf("日志大小: %.1f MB\n", Files.size(journal) / 1024.0 / 1024.0);
+    }
+  }
+
+  private static void measureRecovery(Channel channel, Path journal) throws Exception {
+    System.out.println("\n--- 恢复: 关闭时有 " + THROUGHPUT_TIMERS + " 个待触发的定时任务 ---");
+    DelayScheduler scheduler = new DelayScheduler(channel, journal, TICK_MILLIS, THROUGHPUT_TIMERS);
+    scheduleAll(scheduler, THROUGHPUT_TIMERS, 60_000, 120_000, 0);
+    scheduler.close();
+    long start = System.nanoTime();
+    DelayScheduler recovered = new DelayScheduler(channel, journal, TICK_MILLIS, THROUGHPUT_TIMERS);
+    System.out.printf("恢复 %d 个定时任务, 耗时 %.0f 毫秒, 日志 %.1f MB\n", recovered.getRecoveredCount(),
+        (System.nanoTime() - start) / 1_000_000.0, Files.size(journal) / 1024.0 / 1024.0);
+    recovered.close();
+  }
+
+  private static void measureCancellation(Channel channel) throws Exception {
+    System.out.println("\n--- 取消: 安排 " + THROUGHPUT_TIMERS + " 个定时任务后取消一半 ---");
+    lateness = new LatencyHistogram();
+    published.set(0);
+    DelayScheduler scheduler = new DelayScheduler(channel, null, TICK_MILLIS, THROUGHPUT_TIMERS);
+    long[] ids = new long[THROUGHPUT_TIMERS];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = scheduler.schedule("bench", new byte[BODY_SIZE], 5_000 + ThreadLocalRandom.current().nextLong(1_000));
+    }
+    long start = System.nanoTime();
+    int cancelled = 0;
+    for (int i = 0; i < ids.length; i += 2) {
+      if (scheduler.cancel(ids[i])) {
+        cancelled++;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+    while (scheduler.getPendingCount() > 0) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    System.out.printf("取消 %d 个, 取消速率 %.0f 个/秒, 发布 %d 条（应为 %d）\n", cancelled, cancelled / seconds,
+        published.get(), THROUGHPUT_TIMERS - cancelled);
+    scheduler.close();
+    scheduler.printStats();
+  }
+
+  /**
+   * 多个线程安排延迟在 [minDelay, maxDelay) 之间均匀分布的定时任务
+   *
+   * @param rate 总速率（个/秒），为0时不限速
+   */
+  private static void scheduleAll(DelayScheduler scheduler, int count, long minDelay, long maxDelay, int rate)
+      throws InterruptedException {
+    Thread[] threads = new Thread[SCHEDULER_THREADS];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        for (int j = 0; j < count / SCHEDULER_THREADS; j++) {
+          scheduler.schedule("bench", new byte[BODY_SIZE], minDelay + random.nextLong(maxDelay - minDelay));
+          if (rate > 0 && j % 1000 == 999) {
+            // 每1000个检查一次进度，超前时等待
+            long expectedNanos = (j + 1) * 1_000_000_000L / (rate / SCHEDULER_THREADS);
+            long aheadNanos = expectedNanos - (System.nanoTime() - start);
+            if (aheadNanos > 0) {
+              LockSupport.parkNanos(aheadNanos);
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * 替身通道：basicPublish 按消息头中的预定到期时间记录延迟误差，然后立即确认；
+   * 多个调度器先后使用同一个替身通道时，确认交给最后注册的调度器
+   */
+  private static Channel standInChannel() {
+    AtomicLong nextSeqNo = new AtomicLong(1);
+    ConfirmCallback[] ackCallback = new ConfirmCallback[1];
+    return (Channel) Proxy.newProxyInstance(DelaySchedulerBenchmark.class.getClassLoader(),
+        new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "basicPublish":
+              AMQP.BasicProperties props = (AMQP.BasicProperties) args[2];
+              long dueAt = (Long) props.getHeaders().get(TieredDelayQueue.DUE_AT_HEADER);
+              lateness.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - dueAt));
+              published.incrementAndGet();
+              ackCallback[0].handle(nextSeqNo.getAndIncrement(), false);
+              return null;
+            case "getNextPublishSeqNo":
+              return nextSeqNo.get();
+            case "addConfirmListener":
+              ackCallback[0] = (ConfirmCallback) args[0];
+              return null;
+            case "isOpen":
+              return true;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            case "toString":
+              return "StandInChannel";
+            default:
+              return null;
+          }
+        });
+  }
+}
@@ -0,0 +1,169 @@
+package com.rabbitmq.demo.delay;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.demo.utils.LatencyHistogram;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * 分级延迟队列的延迟误差基准测试
+ *
+ * 默认模式不需要启动RabbitMQ服务器，按 Broker 的过期规则模拟两种实现在随机延迟组合下的延迟误差（实际投递时间 - 预定时间）：
+ * 1. 单队列 + 消息级别 TTL（DelayQueueProducer 的做法）：消息只在队首过期，后面的消息要等前面的消息过期
+ * 2. 分级延迟队列（TieredDelayQueue）：每级队列的 TTL 相同，先进先出即按过期顺序
+ * 每次死信转发计入固定的转发耗时（HOP_OVERHEAD_MICROS）。
+ *
+ * 使用 live 参数时连接本地 RabbitMQ 实际测量：java TieredDelayBenchmark live [消息数] [最大延迟毫秒]
+ *
+ * 预期结果：
+ * - 单队列的延迟误差随延迟组合中长延迟的比例和发送速率增大，没有上限
+ * - 分级延迟队列的最大延迟误差不超过 粒度 + 级数 × 转发耗时，与延迟组合无关
+ */
+public class TieredDelayBenchmark {
+  // 模拟的消息数
+  private static final int MESSAGE_COUNT = 200_000;
+  // 模拟的发送速率（条/秒）
+  private static final int PUBLISH_RATE = 2_000;
+  // 模拟的每次死信转发耗时（微秒）
+  private static final long HOP_OVERHEAD_MICROS = 500;
+  // 模拟的分级数
+  private static final int TIER_COUNT = 24;
+  // 比较的延迟粒度（毫秒）
+  private static final long[] GRANULARITIES = {10, 100, 1000};
+  // 直方图可跟踪的最大误差
+  private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.DAYS.toNanos(1);
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && "live".equals(args[0])) {
+      int count = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+      long maxDelayMillis = args.length > 2 ? Long.parseLong(args[2]) : 30_000;
+      runLive(count, maxDelayMillis);
+      return;
+    }
+    System.out.println("=== 分级延迟队列延迟误差基准测试（模拟） ===");
+    System.out.printf("消息数 %d, 发送速率 %d 条/秒, 每次死信转发 %.1f 毫秒\n", MESSAGE_COUNT, PUBLISH_RATE,
+        HOP_OVERHEAD_MICROS / 1000.0);
+    Random random = new Random(42);
+    simulate("均匀分布 0-10 秒", () -> (long) (random.nextDouble() * 10_000_000));
+    simulate("双峰 90% 1 秒 / 10% 60 秒", () -> random.nextDouble() < 0.9 ? 1_000_000 : 60_000_000);
+    simulate("对数均匀 100 毫秒-1 小时", () -> (long) (100_000 * Math.pow(36_000, random.nextDouble())));
+  }
+
+  private static void simulate(String mix, LongSupplier delayMicros) {
+    System.out.println("\n--- 延迟组合: " + mix + " ---");
+    long[] publishAt = new long[MESSAGE_COUNT];
+    long[] delays = new long[MESSAGE_COUNT];
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      publishAt[i] = i * 1_000_000L / PUBLISH_RATE;
+      delays[i] = delayMicros.getAsLong();
+    }
+    report("单队列 + 消息TTL", simulateSingleQueue(publishAt, delays), 0);
+    for (long granularity : GRANULARITIES) {
+      long[] hops = new long[1];
+      LatencyHistogram lateness = simulateTiered(publishAt, delays, granularity * 1000, hops);
+      report("分级, 粒度 " + granularity + " 毫秒", lateness, hops[0] / (double) MESSAGE_COUNT);
+    }
+  }
+
+  /**
+   * 单队列：消息只在队首过期，投递时间 = max(自己的到期时间, 前一条消息的投递时间)
+   */
+  private static LatencyHistogram simulateSingleQueue(long[] publishAt, long[] delays) {
+    LatencyHistogram lateness = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    long lastRelease = 0;
+    for (int i = 0; i < publishAt.length; i++) {
+      long due = publishAt[i] + delays[i];
+      lastRelease = Math.max(due, lastRelease);
+      lateness.record((lastRelease + HOP_OVERHEAD_MICROS - due) * 1000);
+    }
+    return lateness;
+  }
+
+  /**
+   * 分级延迟队列：按时间顺序处理消息进入各级队列的事件，每级队列同样只在队首过期
+   */
+  private static LatencyHistogram simulateTiered(long[] publishAt, long[] delays, long granularityMicros,
+      long[] hops) {
+    LatencyHistogram lateness = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    long[] lastRelease = new long[TIER_COUNT];
+    // 事件：{时间, 消息下标, 剩余的二进制位}
+    PriorityQueue<long[]> events = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+    for (int i = 0; i < publishAt.length; i++) {
+      long units = (delays[i] + granularityMicros - 1) / granularityMicros;
+      events.add(new long[]{publishAt[i], i, units});
+    }
+    while (!events.isEmpty()) {
+      long[] event = events.poll();
+      int index = (int) event[1];
+      long remaining = event[2];
+      if (remaining == 0) {
+        long due = publishAt[index] + delays[index];
+        lateness.record((event[0] + HOP_OVERHEAD_MICROS - due) * 1000);
+        continue;
+      }
+      // 路由到最高的为 1 的位对应的队列
+      int tier = 63 - Long.numberOfLeadingZeros(remaining);
+      long release = Math.max(event[0] + (granularityMicros << tier), lastRelease[tier]);
+      lastRelease[tier] = release;
+      hops[0]++;
+      event[0] = release + HOP_OVERHEAD_MICROS;
+      event[2] = remaining & ~(1L << tier);
+      events.add(event);
+    }
+    return lateness;
+  }
+
+  private static void report(String name, LatencyHistogram lateness, double averageHops) {
+    System.out.printf("[%-22s] 延迟误差: %s%s\n", name, lateness.formatPercentiles(),
+        averageHops == 0 ? "" : String.format(", 平均经过 %.1f 级", averageHops));
+  }
+
+  /**
+   * 连接本地 RabbitMQ，发送随机延迟的消息并测量实际延迟误差
+   */
+  private static void runLive(int count, long maxDelayMillis)
+      throws IOException, TimeoutException, InterruptedException {
+    System.out.println("=== 分级延迟队列延迟误差基准测试（实际 Broker） ===");
+    Connection connection = RabbitMQUtils.getConnection();
+    Channel channel = connection.createChannel();
+    channel.exchangeDeclare("delay_exchange", BuiltinExchangeType.DIRECT, true);
+    String routingKey = "tiered_benchmark_" + System.nanoTime();
+    String queue = channel.queueDeclare().getQueue();
+    channel.queueBind(queue, "delay_exchange", routingKey);
+
+    TieredDelayQueue delayQueue = new TieredDelayQueue(channel, "delay_exchange", 100, 20);
+    delayQueue.declareTopology();
+
+    LatencyHistogram lateness = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    CountDownLatch received = new CountDownLatch(count);
+    DeliverCallback deliverCallback = (consumerTag, delivery) -> {
+      long dueAt = ((Number) delivery.getProperties().getHeaders().get(TieredDelayQueue.DUE_AT_HEADER)).longValue();
+      lateness.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - dueAt));
+      received.countDown();
+    };
+    channel.basicConsume(queue, true, deliverCallback, consumerTag -> { });
+
+    Random random = new Random();
+    for (int i = 0; i < count; i++) {
+      delayQueue.publish(routingKey, null, ("消息 " + i).getBytes(), (long) (random.nextDouble() * maxDelayMillis));
+    }
+    System.out.printf("已发送 %d 条消息，最大延迟 %d 毫秒，等待到期...\n", count, maxDelayMillis);
+    if (!received.await(maxDelayMillis + 60_000, TimeUnit.MILLISECONDS)) {
+      System.out.println("超时，仍有 " + received.getCount() + " 条消息未收到");
+    }
+    lateness.printSummary("延迟误差");
+
+    RabbitMQUtils.closeChannel(channel);
+    RabbitMQUtils.closeConnection(connection);
+  }
+}
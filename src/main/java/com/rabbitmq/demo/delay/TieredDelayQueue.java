@@ -0,0 +1,203 @@
+package com.rabbitmq.demo.delay;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 分级延迟队列
+ *
+ * DelayQueueProducer 在同一个队列里为每条消息设置不同的 expiration，而 RabbitMQ 只在消息到达队首时才让它过期：
+ * 先发送的10秒消息排在队首时，后发送的2秒消息要等10秒消息过期后才能被转发，延迟的误差没有上限。
+ * 本类改为一组固定的分级队列，每一级用队列级别的 x-message-ttl，同一级中所有消息的 TTL 相同，
+ * 先进入的消息一定先过期，不会出现队首阻塞：
+ * 1. 第 i 级队列的 TTL 为 granularity × 2^i，共 tierCount 级
+ * 2. 发送时把延迟向上取整为 granularity 的整数倍 n，n 的每个二进制位用一个消息头（delay-bit-i = 1 或 0）表示
+ * 3. 消息先发到入口 headers 交换机，按消息头路由到最高位对应的分级队列；
+ *    该级队列过期后通过死信交换机进入下一个 headers 交换机，再路由到下一个为 1 的位对应的队列，
+ *    所有位都走完后路由到目标交换机，整个级联由 Broker 完成，不需要客户端转发
+ * 4. 消息的路由键在死信转发中保持不变，最终由目标交换机按原路由键投递
+ *
+ * 延迟误差：
+ * - 向上取整最多晚 granularity，永远不会提前
+ * - 每经过一级增加一次死信转发的耗时，最多经过 tierCount 级（n 的二进制中 1 的个数）
+ * - 因此最大延迟误差 = granularity + 级数 × 单次转发耗时，与同时排队的其他消息的延迟无关
+ *
+ * 注意事项：
+ * - 最大延迟为 granularity × (2^tierCount - 1)，超过时抛出 IllegalArgumentException
+ * - 以 x- 开头的消息头不参与 headers 交换机的匹配，所以位消息头不使用 x- 前缀
+ * - 拓扑按目标交换机和粒度命名，粒度不同的实例使用不同的队列，不会因 x-message-ttl 不一致而声明失败
+ * - 消息自带的 expiration 会被清除，否则会和队列级别的 TTL 叠加
+ * - 与通道一样，本类的实例不能被多个线程同时使用
+ */
+public class TieredDelayQueue {
+  // 表示延迟二进制位的消息头前缀
+  static final String BIT_HEADER_PREFIX = "delay-bit-";
+  // 记录预定到期时间（毫秒时间戳）的消息头，消费者可以用它计算实际延迟误差
+  public static final String DUE_AT_HEADER = "delay-due-at";
+  // 最多支持的分级数
+  private static final int MAX_TIERS = 32;
+
+  // 发布通道
+  private final Channel channel;
+  // 目标交换机，消息到期后按原路由键投递到这里
+  private final String targetExchange;
+  // 延迟粒度（毫秒），即第0级队列的 TTL
+  private final long granularityMillis;
+  // 分级数
+  private final int tierCount;
+  // 拓扑名称前缀
+  private final String prefix;
+
+  /**
+   * 创建分级延迟队列，需要先调用 declareTopology() 声明拓扑
+   *
+   * @param channel           发布通道
+   * @param targetExchange    目标交换机
+   * @param granularityMillis 延迟粒度（毫秒）
+   * @param tierCount         分级数
+   */
+  public TieredDelayQueue(Channel channel, String targetExchange, long granularityMillis, int tierCount) {
+    if (granularityMillis <= 0) {
+      throw new IllegalArgumentException("延迟粒度必须大于0");
+    }
+    if (tierCount <= 0 || tierCount > MAX_TIERS) {
+      throw new IllegalArgumentException("分级数必须在 1 到 " + MAX_TIERS + " 之间");
+    }
+    this.channel = channel;
+    this.targetExchange = targetExchange;
+    this.granularityMillis = granularityMillis;
+    this.tierCount = tierCount;
+    this.prefix = targetExchange + ".tier." + granularityMillis + "ms";
+  }
+
+  /**
+   * 声明分级队列和级联交换机，可以重复调用
+   *
+   * 第 k 个级联交换机（第 k 级队列过期后进入）只看第 0 到 k-1 位：
+   * - 对每个 j < k，绑定到第 j 级队列，条件是第 j 位为 1 且第 j+1 到 k-1 位为 0（下一个为 1 的最高位）
+   * - 第 0 到 k-1 位全为 0 时，绑定到目标交换机
+   * 入口交换机相当于 k = tierCount。
+   *
+   * @throws IOException 声明失败
+   */
+  public void declareTopology() throws IOException {
+    for (int k = 0; k <= tierCount; k++) {
+      String exchange = cascadeExchange(k);
+      channel.exchangeDeclare(exchange, BuiltinExchangeType.HEADERS, true);
+      for (int j = 0; j < k; j++) {
+        Map<String, Object> match = matchAll();
+        match.put(bitHeader(j), "1");
+        for (int higher = j + 1; higher < k; higher++) {
+          match.put(bitHeader(higher), "0");
+        }
+        channel.queueBind(tierQueue(j), exchange, "", match);
+      }
+      Map<String, Object> done = matchAll();
+      for (int bit = 0; bit < k; bit++) {
+        done.put(bitHeader(bit), "0");
+      }
+      channel.exchangeBind(targetExchange, exchange, "", done);
+      if (k < tierCount) {
+        // 第 k 级队列：队列级别 TTL，过期后进入第 k 个级联交换机（先声明交换机再声明队列）
+        Map<String, Object> queueArgs = new HashMap<>();
+        queueArgs.put("x-message-ttl", tierTtlMillis(k));
+        queueArgs.put("x-dead-letter-exchange", exchange);
+        channel.queueDeclare(tierQueue(k), true, false, false, queueArgs);
+      }
+    }
+  }
+
+  /**
+   * 发送延迟消息
+   *
+   * @param routingKey  到期后在目标交换机上使用的路由键
+   * @param props       消息属性，可以为 null
+   * @param body        消息体
+   * @param delayMillis 延迟（毫秒）
+   * @throws IOException              发布失败
+   * @throws IllegalArgumentException 延迟为负数或超过最大延迟
+   */
+  public void publish(String routingKey, AMQP.BasicProperties props, byte[] body, long delayMillis)
+      throws IOException {
+    long units = toUnits(delayMillis);
+    if (props == null) {
+      props = new AMQP.BasicProperties.Builder().deliveryMode(2).build();
+    }
+    Map<String, Object> headers = props.getHeaders() == null
+        ? new HashMap<>() : new HashMap<>(props.getHeaders());
+    headers.put(DUE_AT_HEADER, System.currentTimeMillis() + delayMillis);
+    if (units == 0) {
+      // 不需要延迟，直接发到目标交换机
+      channel.basicPublish(targetExchange, routingKey, props.builder().headers(headers).build(), body);
+      return;
+    }
+    for (int bit = 0; bit < tierCount; bit++) {
+      headers.put(bitHeader(bit), ((units >>> bit) & 1) == 1 ? "1" : "0");
+    }
+    AMQP.BasicProperties tieredProps = props.builder().headers(headers).expiration(null).build();
+    channel.basicPublish(cascadeExchange(tierCount), routingKey, tieredProps, body);
+  }
+
+  /**
+   * 把延迟向上取整为粒度的整数倍
+   *
+   * @return 粒度的倍数
+   */
+  long toUnits(long delayMillis) {
+    if (delayMillis < 0) {
+      throw new IllegalArgumentException("延迟不能为负数: " + delayMillis);
+    }
+    long units = (delayMillis + granularityMillis - 1) / granularityMillis;
+    if (units > maxUnits()) {
+      throw new IllegalArgumentException("延迟 " + delayMillis + "ms 超过最大延迟 " + getMaxDelayMillis() + "ms");
+    }
+    return units;
+  }
+
+  private long maxUnits() {
+    return (1L << tierCount) - 1;
+  }
+
+  /**
+   * @return 支持的最大延迟（毫秒）
+   */
+  public long getMaxDelayMillis() {
+    return granularityMillis * maxUnits();
+  }
+
+  /**
+   * @return 第 tier 级队列的 TTL（毫秒）
+   */
+  public long tierTtlMillis(int tier) {
+    return granularityMillis << tier;
+  }
+
+  /**
+   * @return 第 tier 级队列的名称
+   */
+  public String tierQueue(int tier) {
+    return prefix + "." + tierTtlMillis(tier);
+  }
+
+  /**
+   * @return 第 k 级队列过期后进入的级联交换机名称，k = tierCount 时为入口交换机
+   */
+  String cascadeExchange(int k) {
+    return k == tierCount ? prefix + ".entry" : prefix + ".after." + tierTtlMillis(k);
+  }
+
+  static String bitHeader(int bit) {
+    return String.format("%s%02d", BIT_HEADER_PREFIX, bit);
+  }
+
+  private static Map<String, Object> matchAll() {
+    Map<String, Object> args = new HashMap<>();
+    args.put("x-match", "all");
+    return args;
+  }
+}
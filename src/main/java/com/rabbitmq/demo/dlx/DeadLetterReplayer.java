@@ -0,0 +1,442 @@
+package com.rabbitmq.demo.dlx;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+import com.rabbitmq.demo.workqueue.LoadGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 死信批量重放工具
+ *
+ * DLXConsumer 只是打印并确认死信。故障恢复后需要把大量死信送回原来的交换机和路由键，本类按配置批量重放：
+ * 1. 消费死信队列，从 x-death 的第一条记录（最近一次死信）取出原交换机、原路由键、死信原因和原队列
+ * 2. 符合过滤条件（原因、原队列）的消息按令牌桶限速后发布到原交换机，使用异步发布确认，
+ *    目标 Broker 确认后才逐条确认（multiple=false）死信队列中的原消息
+ * 3. 不符合条件、没有来源信息的消息以及 dryRun=true 时的所有消息都不确认、不重新发布，
+ *    结束时取消消费并关闭通道，这些消息按原来的顺序回到死信队列，内容和消息头都不变
+ * 4. 启动时记录死信队列中的消息数，处理这么多条投递后停止；连续 idle 秒没有新投递时也会停止
+ * 5. 发布时设置 mandatory=true，原交换机没有匹配的绑定而被退回的消息，以及被目标拒绝（basic.nack）的消息，
+ *    同样留在死信队列中，不会丢失
+ * 6. 每秒输出重放速率、未确认的发布数、已重放、已保留、无法路由和死信队列剩余的消息数，
+ *    结束时按 原队列/原因 输出统计
+ *
+ * 参数格式为 key=value，例如：
+ * queue=dlx_queue rate=2000 reason=rejected,expired from=main_queue max=50000 dryRun=true
+ *
+ * 注意事项：
+ * - 留在原处的消息在结束前一直未确认，因此预取数等于本次处理的消息数（超过 65535 时不限），
+ *   客户端内存随处理的消息数增长，死信很多时用 max 分批处理
+ * - 只使用 x-death 第一条记录的第一个路由键，CC/BCC 的路由键不会重放
+ * - 重放是“至少一次”语义：目标确认之后、死信确认之前进程崩溃时，这条消息会在下一次运行时再重放一次
+ * - 重放的消息保留原来的消息属性和 x-death，另外带有 replay-seq 消息头，用于对应被退回的消息
+ * - 死信的确认不使用 AckCoalescer 合并：留在原处的消息始终不确认，multiple=true 的确认会把它们一起确认掉，
+ *   只要有一条消息被保留，之后就无法再合并
+ */
+public class DeadLetterReplayer implements AutoCloseable {
+    // 发布序号，被退回时用于找到对应的死信
+    static final String REPLAY_SEQ_HEADER = "replay-seq";
+    // 进度输出间隔（毫秒）
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
+    // basic.qos 能设置的最大预取数
+    private static final int MAX_PREFETCH = 65535;
+    // 结束时等待未确认发布的最长时间（毫秒）
+    private static final long DRAIN_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * 重放参数
+     */
+    public static final class Options {
+        // 死信队列名称
+        String queue = "dlx_queue";
+        // 重放速率（条/秒），0 表示不限速
+        long rate = 1000;
+        // 只重放这些死信原因，空集合表示不限
+        Set<String> reasons = Collections.emptySet();
+        // 只重放来自这些队列的死信，空集合表示不限
+        Set<String> fromQueues = Collections.emptySet();
+        // 最多处理的消息数，0 表示处理启动时队列中的全部消息
+        long max;
+        // 只统计，不重放
+        boolean dryRun;
+        // 连续多少秒没有新投递时停止
+        long idleSeconds = 10;
+
+        /**
+         * 解析 key=value 形式的参数
+         *
+         * @param args 参数
+         * @return 重放参数
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("参数格式应为 key=value: " + arg);
+                }
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "queue":
+                        options.queue = value;
+                        break;
+                    case "rate":
+                        options.rate = Long.parseLong(value);
+                        break;
+                    case "reason":
+                        options.reasons = splitList(value);
+                        break;
+                    case "from":
+                        options.fromQueues = splitList(value);
+                        break;
+                    case "max":
+                        options.max = Long.parseLong(value);
+                        break;
+                    case "dryRun":
+                        options.dryRun = Boolean.parseBoolean(value);
+                        break;
+                    case "idle":
+                        options.idleSeconds = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("未知参数: " + key);
+                }
+            }
+            if (options.rate < 0 || options.max < 0 || options.idleSeconds <= 0) {
+                throw new IllegalArgumentException("速率、消息数或空闲时间不合法");
+            }
+            return options;
+        }
+
+        private static Set<String> splitList(String value) {
+            Set<String> items = new HashSet<>(Arrays.asList(value.split(",")));
+            items.remove("");
+            return items;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("死信队列: %s, 速率: %s, 原因: %s, 原队列: %s, 最多: %s%s",
+                    queue, rate == 0 ? "不限" : rate + " 条/秒",
+                    reasons.isEmpty() ? "全部" : String.join(",", reasons),
+                    fromQueues.isEmpty() ? "全部" : String.join(",", fromQueues),
+                    max == 0 ? "全部" : String.valueOf(max), dryRun ? ", 只统计（dryRun）" : "");
+        }
+    }
+
+    /**
+     * 死信的来源：原交换机、原路由键、死信原因和原队列
+     */
+    static final class Origin {
+        final String exchange;
+        final String routingKey;
+        final String reason;
+        final String queue;
+
+        Origin(String exchange, String routingKey, String reason, String queue) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.reason = reason;
+            this.queue = queue;
+        }
+    }
+
+    // 重放参数
+    private final Options options;
+    private final Connection connection;
+    // 消费死信队列的通道、发布通道和查询队列深度的通道
+    private Channel consumeChannel;
+    private Channel publishChannel;
+    private Channel monitorChannel;
+    private String consumerTag;
+    // 限速令牌桶，只在消费线程上使用
+    private final LoadGenerator.TokenBucket bucket;
+
+    // 未确认的发布：发布序号 -> 死信投递标签
+    private final ConcurrentNavigableMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+    // 被退回的发布序号，退回总是先于对应的 basic.ack 到达
+    private final Set<Long> returned = ConcurrentHashMap.newKeySet();
+    // 本次最多处理的首次投递数
+    private volatile long budget;
+    // 已占用处理名额的投递数，在处理之前增加
+    private final AtomicLong deliveredCount = new AtomicLong();
+    // 已处理完的投递数，在登记未确认的发布之后增加，isFinished() 据此判断是否处理完
+    private final AtomicLong processedCount = new AtomicLong();
+    private volatile long lastDeliveryNanos = System.nanoTime();
+    // 发布失败的原因，发布失败后停止处理
+    private volatile Exception failure;
+
+    // 统计信息（已保留：不符合条件或 dryRun 而留在原处的消息数）
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong keptCount = new AtomicLong();
+    private final AtomicLong unroutableCount = new AtomicLong();
+    private final AtomicLong nackedCount = new AtomicLong();
+    private final AtomicLong noOriginCount = new AtomicLong();
+    // 按 原队列/原因 统计的消息数
+    private final Map<String, AtomicLong> breakdown = new ConcurrentHashMap<>();
+
+    /**
+     * 创建重放工具
+     *
+     * @param connection RabbitMQ 连接
+     * @param options    重放参数
+     */
+    public DeadLetterReplayer(Connection connection, Options options) {
+        this.connection = connection;
+        this.options = options;
+        this.bucket = options.rate == 0 || options.dryRun ? null : new LoadGenerator.TokenBucket(options.rate);
+    }
+
+    /**
+     * 重放死信队列中的消息，结束后输出统计
+     *
+     * @throws IOException          IO 异常
+     * @throws InterruptedException 等待时被中断
+     */
+    public void run() throws IOException, InterruptedException {
+        monitorChannel = connection.createChannel();
+        long initialDepth = queueDepth();
+        if (initialDepth < 0) {
+            throw new IOException("死信队列不存在: " + options.queue);
+        }
+        budget = options.max == 0 ? initialDepth : Math.min(options.max, initialDepth);
+        System.out.println("[重放] " + options);
+        System.out.println("[重放] 死信队列中有 " + initialDepth + " 条消息，本次处理 " + budget + " 条");
+        if (budget == 0) {
+            return;
+        }
+
+        if (!options.dryRun) {
+            publishChannel = connection.createChannel();
+            publishChannel.confirmSelect();
+            publishChannel.addConfirmListener(new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+                    for (Map.Entry<Long, Long> entry : settle(deliveryTag, multiple)) {
+                        if (returned.remove(entry.getKey())) {
+                            // 原交换机没有匹配的绑定，死信留在原处
+                            unroutableCount.incrementAndGet();
+                        } else {
+                            replayedCount.incrementAndGet();
+                            consumeChannel.basicAck(entry.getValue(), false);
+                        }
+                    }
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) {
+                    for (Map.Entry<Long, Long> entry : settle(deliveryTag, multiple)) {
+                        // 目标拒绝，死信留在原处，下一次运行时再试
+                        returned.remove(entry.getKey());
+                        nackedCount.incrementAndGet();
+                    }
+                }
+            });
+            publishChannel.addReturnListener(returnMessage -> {
+                Object seq = returnMessage.getProperties().getHeaders() == null ? null
+                        : returnMessage.getProperties().getHeaders().get(REPLAY_SEQ_HEADER);
+                if (seq instanceof Number) {
+                    returned.add(((Number) seq).longValue());
+                }
+            });
+        }
+
+        consumeChannel = connection.createChannel();
+        // 留在原处的消息一直占用预取额度，预取数不小于本次处理的消息数才不会中途停顿
+        consumeChannel.basicQos(budget > MAX_PREFETCH ? 0 : (int) budget);
+        consumerTag = consumeChannel.basicConsume(options.queue, false, new DefaultConsumer(consumeChannel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                    byte[] body) throws IOException {
+                lastDeliveryNanos = System.nanoTime();
+                // 达到本次处理数后（或发布失败后）不再处理，之后投递的消息在关闭通道时回到队列
+                if (failure != null || deliveredCount.incrementAndGet() > budget) {
+                    return;
+                }
+                handle(envelope, properties, body);
+                // 发布已经登记到 pending 之后才计入已处理，isFinished() 不会在最后一条发布确认之前结束
+                processedCount.incrementAndGet();
+            }
+        });
+
+        long startNanos = System.nanoTime();
+        long lastReplayed = 0;
+        long lastNanos = startNanos;
+        while (!isFinished()) {
+            TimeUnit.MILLISECONDS.sleep(REPORT_INTERVAL_MILLIS);
+            long now = System.nanoTime();
+            long replayed = replayedCount.get();
+            System.out.printf("[重放] 速率: %.0f 条/秒, 未确认: %d, 已重放: %d, 已保留: %d, 无法路由: %d, 队列剩余: %d\n",
+                    (replayed - lastReplayed) / ((now - lastNanos) / 1_000_000_000.0), pending.size(), replayed,
+                    keptCount.get(), unroutableCount.get(), queueDepth());
+            lastReplayed = replayed;
+            lastNanos = now;
+        }
+        printReport(System.nanoTime() - startNanos);
+    }
+
+    private boolean isFinished() {
+        if (failure != null) {
+            System.err.println("[重放] 发布失败，停止重放: " + failure.getMessage());
+            return true;
+        }
+        if (!pending.isEmpty()) {
+            // 等待未确认的发布，超时后放弃（关闭通道后这些死信会回到队列）
+            return System.nanoTime() - lastDeliveryNanos > TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        }
+        return processedCount.get() >= budget
+                || System.nanoTime() - lastDeliveryNanos > TimeUnit.SECONDS.toNanos(options.idleSeconds);
+    }
+
+    /**
+     * 按来源和过滤条件重放一条死信，不重放的消息不确认，留在原处
+     */
+    private void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        Origin origin = origin(properties);
+        if (origin == null) {
+            noOriginCount.incrementAndGet();
+            breakdown.computeIfAbsent("(无来源)", key -> new AtomicLong()).incrementAndGet();
+            return;
+        }
+        breakdown.computeIfAbsent(origin.queue + "/" + origin.reason, key -> new AtomicLong()).incrementAndGet();
+        boolean matched = (options.reasons.isEmpty() || options.reasons.contains(origin.reason))
+                && (options.fromQueues.isEmpty() || options.fromQueues.contains(origin.queue));
+        if (!matched || options.dryRun) {
+            keptCount.incrementAndGet();
+            return;
+        }
+        if (bucket != null) {
+            bucket.acquire();
+        }
+        publish(envelope.getDeliveryTag(), origin, properties, body);
+    }
+
+    /**
+     * 发布到原交换机，记录发布序号和死信投递标签的对应关系；
+     * 发布失败时死信留在原处，并停止处理后续消息（发布通道通常已经关闭）
+     */
+    private void publish(long deliveryTag, Origin origin, AMQP.BasicProperties properties, byte[] body) {
+        Map<String, Object> headers = properties.getHeaders() == null
+                ? new HashMap<>() : new HashMap<>(properties.getHeaders());
+        // 只有消费线程发布，发布序号和 basicPublish 之间不会插入其他发布
+        long seq = publishChannel.getNextPublishSeqNo();
+        headers.put(REPLAY_SEQ_HEADER, seq);
+        // 先登记再发布，确认可能在 basicPublish 返回前到达
+        pending.put(seq, deliveryTag);
+        try {
+            publishChannel.basicPublish(origin.exchange, origin.routingKey, true,
+                    properties.builder().headers(headers).build(), body);
+        } catch (IOException | RuntimeException e) {
+            pending.remove(seq);
+            failure = e;
+        }
+    }
+
+    /**
+     * 取出确认覆盖的未确认发布
+     */
+    private List<Map.Entry<Long, Long>> settle(long seq, boolean multiple) {
+        Map<Long, Long> settled = multiple ? pending.headMap(seq, true) : pending.subMap(seq, true, seq, true);
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>(settled.entrySet());
+        settled.clear();
+        return entries;
+    }
+
+    /**
+     * 从 x-death 的第一条记录读取来源
+     *
+     * @return 来源，无法确定时返回 null
+     */
+    static Origin origin(AMQP.BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        Object deaths = headers.get("x-death");
+        if (deaths instanceof List && !((List<?>) deaths).isEmpty() && ((List<?>) deaths).get(0) instanceof Map) {
+            Map<?, ?> death = (Map<?, ?>) ((List<?>) deaths).get(0);
+            Object routingKeys = death.get("routing-keys");
+            if (death.get("exchange") != null && routingKeys instanceof List && !((List<?>) routingKeys).isEmpty()) {
+                return new Origin(String.valueOf(death.get("exchange")), String.valueOf(((List<?>) routingKeys).get(0)),
+                        String.valueOf(death.get("reason")), String.valueOf(death.get("queue")));
+            }
+        }
+        return null;
+    }
+
+    private long queueDepth() {
+        try {
+            return monitorChannel.queueDeclarePassive(options.queue).getMessageCount();
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.println("\n=== 重放结果" + (options.dryRun ? "（只统计）" : "") + " ===");
+        System.out.printf("已重放: %d 条 (%.0f 条/秒), 已保留: %d, 无法路由: %d, 目标拒绝: %d, 无来源: %d, 耗时: %.2f 秒\n",
+                replayedCount.get(), replayedCount.get() / seconds, keptCount.get(), unroutableCount.get(),
+                nackedCount.get(), noOriginCount.get(), seconds);
+        System.out.println("按 原队列/原因 统计:");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(breakdown).entrySet()) {
+            System.out.printf("  %-40s %d\n", entry.getKey(), entry.getValue().get());
+        }
+        if (!pending.isEmpty()) {
+            System.out.println("仍有 " + pending.size() + " 条发布未确认，对应的死信会回到死信队列");
+        }
+        long left = keptCount.get() + unroutableCount.get() + nackedCount.get() + noOriginCount.get();
+        if (left > 0) {
+            System.out.println(left + " 条消息未重放，关闭通道后按原顺序留在死信队列中");
+        }
+    }
+
+    /**
+     * 取消消费并关闭通道，不关闭连接；未确认的消息回到死信队列
+     */
+    @Override
+    public void close() {
+        if (consumerTag != null) {
+            try {
+                consumeChannel.basicCancel(consumerTag);
+            } catch (IOException | RuntimeException e) {
+                // 通道已关闭
+            }
+        }
+        RabbitMQUtils.closeChannel(consumeChannel);
+        RabbitMQUtils.closeChannel(publishChannel);
+        RabbitMQUtils.closeChannel(monitorChannel);
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+        System.out.println("=== RabbitMQ 死信队列模式 - 死信批量重放 ===");
+        Options options = Options.parse(args);
+        Connection connection = RabbitMQUtils.getConnection();
+        try (DeadLetterReplayer replayer = new DeadLetterReplayer(connection, options)) {
+            replayer.run();
+        } finally {
+            RabbitMQUtils.closeConnection(connection);
+        }
+    }
+}
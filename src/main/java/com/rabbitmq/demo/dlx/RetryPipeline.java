@@ -0,0 +1,324 @@
+package com.rabbitmq.demo.dlx;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+import com.rabbitmq.demo.workqueue.WorkerPoolConsumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 指数退避重试管道
+ *
+ * DLXMainQueueConsumer 把处理失败的消息直接拒绝到死信队列（演示死信本身），而用 basicNack(requeue=true)
+ * 把消息放回队首时，无法处理的“毒消息”会被立即重新投递，形成死循环。本类在死信拓扑上实现可复用的重试管道
+ * （QuorumQueueConsumer 使用本类处理失败的消息）：
+ * 1. 每个重试级别一个延迟队列 "<队列>.retry.<TTL>ms"，TTL 依次为 initialDelay × 2^i，
+ *    过期后通过死信（默认交换机 + x-dead-letter-routing-key）进入重试工作队列 "<队列>.retry.work"
+ * 2. 处理失败时读取 x-death 中本管道各重试队列的过期次数，得到已经重试的次数 n：
+ *    n < maxRetries 时把消息发布到第 n 级延迟队列，否则发布到停车场队列 "<队列>.parking-lot"
+ * 3. 转发的消息得到 Broker 确认后才确认原消息，进程在两者之间崩溃时消息会多处理一次，不会丢失
+ * 4. 主队列和重试工作队列各用一个通道、各自的预取数消费，重试的消息不会回到主队列，
+ *    不会和新消息争抢主队列的预取名额和队首位置
+ * 5. 进入停车场的消息带有 retry-attempts 和 retry-last-error 消息头，便于排查后人工重放
+ *
+ * 注意事项：
+ * - RabbitMQ 3.13 起 Broker 不再信任客户端重新发布时携带的 x-death，转发时另外写入 retry-count 消息头，
+ *   重试次数取两者中较大的一个
+ * - 每次失败都要等待一次发布确认，失败的消息很多时会降低该通道的消费速率，但不影响另一个通道
+ * - 主队列由调用方声明，本类不修改主队列的参数
+ */
+public class RetryPipeline implements AutoCloseable {
+    // 记录转发次数的消息头
+    static final String RETRY_COUNT_HEADER = "retry-count";
+    // 停车场消息的附加消息头
+    static final String RETRY_ATTEMPTS_HEADER = "retry-attempts";
+    static final String RETRY_LAST_ERROR_HEADER = "retry-last-error";
+    // 等待发布确认的最长时间（毫秒）
+    private static final long CONFIRM_TIMEOUT_MILLIS = 5000;
+
+    // 主队列名称
+    private final String queue;
+    // 第一次重试的延迟（毫秒）
+    private final long initialDelayMillis;
+    // 最多重试次数，也是重试级别数
+    private final int maxRetries;
+    private final Connection connection;
+    // 消费主队列和重试工作队列的通道
+    private final List<Channel> channels = new ArrayList<>();
+
+    // 统计信息
+    private final AtomicLong succeededCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong parkedCount = new AtomicLong();
+    private final AtomicLong forwardErrorCount = new AtomicLong();
+    // 每个重试级别转发的消息数
+    private final AtomicLongArray retriedPerTier;
+
+    /**
+     * 创建重试管道
+     *
+     * @param connection         RabbitMQ 连接
+     * @param queue              主队列名称
+     * @param initialDelayMillis 第一次重试的延迟（毫秒），之后每次加倍
+     * @param maxRetries         最多重试次数，超过后进入停车场队列
+     */
+    public RetryPipeline(Connection connection, String queue, long initialDelayMillis, int maxRetries) {
+        if (initialDelayMillis <= 0 || maxRetries <= 0) {
+            throw new IllegalArgumentException("重试延迟和重试次数必须大于0");
+        }
+        this.connection = connection;
+        this.queue = queue;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxRetries = maxRetries;
+        this.retriedPerTier = new AtomicLongArray(maxRetries);
+    }
+
+    /**
+     * 声明重试延迟队列、重试工作队列和停车场队列，可以重复调用
+     *
+     * @throws IOException      声明失败
+     * @throws TimeoutException 关闭临时通道超时
+     */
+    public void declareTopology() throws IOException, TimeoutException {
+        Channel channel = connection.createChannel();
+        try {
+            channel.queueDeclare(retryWorkQueue(), true, false, false, null);
+            channel.queueDeclare(parkingLotQueue(), true, false, false, null);
+            for (int tier = 0; tier < maxRetries; tier++) {
+                Map<String, Object> args = new HashMap<>();
+                args.put("x-message-ttl", tierDelayMillis(tier));
+                // 过期后经默认交换机进入重试工作队列，而不是回到主队列
+                args.put("x-dead-letter-exchange", "");
+                args.put("x-dead-letter-routing-key", retryWorkQueue());
+                channel.queueDeclare(retryQueue(tier), true, false, false, args);
+            }
+        } finally {
+            RabbitMQUtils.closeChannel(channel);
+        }
+    }
+
+    /**
+     * 声明重试拓扑后开始消费主队列和重试工作队列
+     * （转发使用默认交换机，目标队列不存在时消息会被静默丢弃，所以消费前总是先声明）
+     *
+     * @param handler  消息处理函数，抛出异常表示处理失败
+     * @param prefetch 每个通道的预取数
+     * @throws IOException      声明或消费失败
+     * @throws TimeoutException 关闭临时通道超时
+     */
+    public void start(WorkerPoolConsumer.MessageHandler handler, int prefetch) throws IOException, TimeoutException {
+        declareTopology();
+        consume(queue, handler, prefetch);
+        consume(retryWorkQueue(), handler, prefetch);
+    }
+
+    private void consume(String source, WorkerPoolConsumer.MessageHandler handler, int prefetch)
+            throws IOException {
+        Channel channel = connection.createChannel();
+        channel.basicQos(prefetch);
+        // 转发到重试队列或停车场的消息需要确认后才能确认原消息
+        channel.confirmSelect();
+        channels.add(channel);
+        channel.basicConsume(source, false, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                    byte[] body) throws IOException {
+                Exception failure;
+                try {
+                    handler.handle(envelope, properties, body);
+                    failure = null;
+                } catch (Exception e) {
+                    failure = e;
+                }
+                if (failure == null) {
+                    succeededCount.incrementAndGet();
+                    channel.basicAck(envelope.getDeliveryTag(), false);
+                } else {
+                    failedCount.incrementAndGet();
+                    handleFailure(channel, envelope, properties, body, failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * 把失败的消息转发到下一级重试队列或停车场，确认后再确认原消息
+     */
+    private void handleFailure(Channel channel, Envelope envelope, AMQP.BasicProperties properties, byte[] body,
+            Exception failure) throws IOException {
+        int retries = retryCount(properties);
+        Map<String, Object> headers = properties.getHeaders() == null
+                ? new HashMap<>() : new HashMap<>(properties.getHeaders());
+        headers.put(RETRY_COUNT_HEADER, retries + 1);
+        String target;
+        if (retries < maxRetries) {
+            target = retryQueue(retries);
+        } else {
+            target = parkingLotQueue();
+            headers.put(RETRY_ATTEMPTS_HEADER, retries + 1);
+            headers.put(RETRY_LAST_ERROR_HEADER, String.valueOf(failure));
+        }
+        // 清除消息级别的 TTL，否则会和重试队列的 TTL 叠加
+        AMQP.BasicProperties.Builder builder = properties.builder().expiration(null).headers(headers);
+        if (properties.getDeliveryMode() == null) {
+            builder.deliveryMode(2);
+        }
+        AMQP.BasicProperties forwardProps = builder.build();
+        try {
+            channel.basicPublish("", target, forwardProps, body);
+            if (!channel.waitForConfirms(CONFIRM_TIMEOUT_MILLIS)) {
+                throw new IOException("Broker 拒绝了转发的消息");
+            }
+        } catch (IOException | InterruptedException | TimeoutException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // 转发没有得到确认，把原消息放回队列，稍后再处理
+            forwardErrorCount.incrementAndGet();
+            System.err.println("[重试管道] 转发到 " + target + " 失败: " + e.getMessage());
+            channel.basicNack(envelope.getDeliveryTag(), false, true);
+            return;
+        }
+        if (retries < maxRetries) {
+            retriedPerTier.incrementAndGet(retries);
+        } else {
+            parkedCount.incrementAndGet();
+            System.out.println("[重试管道] 重试 " + retries + " 次仍失败，已移入停车场: " + failure);
+        }
+        channel.basicAck(envelope.getDeliveryTag(), false);
+    }
+
+    /**
+     * 计算已经重试的次数：x-death 中本管道各重试队列因过期而转出的次数之和，与 retry-count 消息头取较大值
+     */
+    int retryCount(AMQP.BasicProperties properties) {
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers == null) {
+            return 0;
+        }
+        long fromDeath = 0;
+        Object deaths = headers.get("x-death");
+        if (deaths instanceof List) {
+            String prefix = queue + ".retry.";
+            for (Object death : (List<?>) deaths) {
+                if (!(death instanceof Map)) {
+                    continue;
+                }
+                Map<?, ?> entry = (Map<?, ?>) death;
+                String deadQueue = String.valueOf(entry.get("queue"));
+                if (deadQueue.startsWith(prefix) && !deadQueue.equals(retryWorkQueue())
+                        && "expired".equals(String.valueOf(entry.get("reason")))
+                        && entry.get("count") instanceof Number) {
+                    fromDeath += ((Number) entry.get("count")).longValue();
+                }
+            }
+        }
+        Object header = headers.get(RETRY_COUNT_HEADER);
+        long fromHeader = header instanceof Number ? ((Number) header).longValue() : 0;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(fromDeath, fromHeader));
+    }
+
+    /**
+     * @return 第 tier 级重试的延迟（毫秒）
+     */
+    public long tierDelayMillis(int tier) {
+        return initialDelayMillis << tier;
+    }
+
+    /**
+     * @return 第 tier 级重试延迟队列的名称
+     */
+    public String retryQueue(int tier) {
+        return queue + ".retry." + tierDelayMillis(tier) + "ms";
+    }
+
+    /**
+     * @return 重试工作队列的名称
+     */
+    public String retryWorkQueue() {
+        return queue + ".retry.work";
+    }
+
+    /**
+     * @return 停车场队列的名称
+     */
+    public String parkingLotQueue() {
+        return queue + ".parking-lot";
+    }
+
+    /**
+     * 打印重试统计信息
+     */
+    public void printStats() {
+        StringBuilder tiers = new StringBuilder();
+        for (int tier = 0; tier < maxRetries; tier++) {
+            tiers.append(tier == 0 ? "" : ", ").append(tierDelayMillis(tier)).append("ms: ")
+                    .append(retriedPerTier.get(tier));
+        }
+        System.out.printf("[重试管道] 成功: %d, 失败: %d, 各级重试 [%s], 停车场: %d, 转发失败: %d\n",
+                succeededCount.get(), failedCount.get(), tiers, parkedCount.get(), forwardErrorCount.get());
+    }
+
+    /**
+     * 关闭消费通道，不关闭连接
+     */
+    @Override
+    public void close() {
+        for (Channel channel : channels) {
+            RabbitMQUtils.closeChannel(channel);
+        }
+        channels.clear();
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+        System.out.println("=== RabbitMQ 死信队列模式 - 指数退避重试管道 ===");
+        String queueName = "retry_demo_queue";
+
+        Connection connection = RabbitMQUtils.getConnection();
+        Channel channel = connection.createChannel();
+        channel.queueDeclare(queueName, true, false, false, null);
+
+        // 第一次重试等1秒，之后2秒、4秒，3次后进入停车场
+        RetryPipeline pipeline = new RetryPipeline(connection, queueName, 1000, 3);
+
+        // 包含“毒”的消息总是失败；包含“偶尔”的消息前两次失败
+        Map<String, Integer> attempts = new HashMap<>();
+        pipeline.start((envelope, properties, body) -> {
+            String message = new String(body, "UTF-8");
+            int attempt;
+            synchronized (attempts) {
+                attempt = attempts.merge(message, 1, Integer::sum);
+            }
+            System.out.println("[重试管道] 第 " + attempt + " 次处理: '" + message + "'");
+            if (message.contains("毒") || (message.contains("偶尔") && attempt <= 2)) {
+                throw new IllegalStateException("处理失败: " + message);
+            }
+        }, 10);
+
+        String[] messages = {"正常消息", "偶尔失败的消息", "毒消息"};
+        for (String message : messages) {
+            channel.basicPublish("", queueName, MessageProperties.PERSISTENT_TEXT_PLAIN, message.getBytes("UTF-8"));
+            System.out.println("发送消息: '" + message + "'");
+        }
+
+        // 1 + 2 + 4 秒的重试延迟之后，毒消息进入停车场
+        TimeUnit.SECONDS.sleep(10);
+        pipeline.printStats();
+        pipeline.close();
+        RabbitMQUtils.closeChannel(channel);
+        RabbitMQUtils.closeConnection(connection);
+    }
+}
@@ -1,6 +1,7 @@
 package com.rabbitmq.demo.quorum;
 
 import com.rabbitmq.client.*;
+import com.rabbitmq.demo.dlx.RetryPipeline;
 import com.rabbitmq.demo.utils.RabbitMQUtils;
 
 import java.io.IOException;
@@ -17,10 +18,16 @@ import java.util.concurrent.TimeoutException;
  * 2. 支持手动确认机制，确保消息被正确处理
  * 3. 即使在节点故障切换时，也能继续消费消息
  * 4. 支持消息的公平分发机制
+ * 5. 处理失败的消息交给 RetryPipeline 按指数退避重试，多次失败后进入停车场队列，
+ *    不再用 basicNack(requeue=true) 放回队首，避免无法处理的消息被立即重新投递形成死循环
  */
 public class QuorumQueueConsumer {
     // 队列名称（必须与生产者使用的队列名称一致）
     private static final String QUEUE_NAME = "quorum_queue_example";
+    // 第一次重试的延迟（毫秒），之后每次加倍
+    private static final long RETRY_INITIAL_DELAY_MILLIS = 1000;
+    // 最多重试次数
+    private static final int MAX_RETRIES = 5;
 
     public static void main(String[] args) throws IOException, TimeoutException {
         System.out.println("=== RabbitMQ 仲裁队列消费者演示 ===");
@@ -50,52 +57,28 @@ public class QuorumQueueConsumer {
         System.out.println("按Ctrl+C退出");
         System.out.println("========================================\n");
 
-        // 配置消费者
-        DefaultConsumer consumer = new DefaultConsumer(channel) {
-            @Override
-            public void handleDelivery(String consumerTag, Envelope envelope,
-                    AMQP.BasicProperties properties, byte[] body)
-                    throws IOException {
-                // 接收到的消息
-                String message = new String(body, "UTF-8");
-
-                // 获取消息的投递标签
-                long deliveryTag = envelope.getDeliveryTag();
-
-                // 模拟消息处理延迟
-                try {
-                    System.out.println("接收到消息: '" + message + "'");
-                    System.out.println("投递标签: " + deliveryTag);
-                    System.out.println("消息路由键: " + envelope.getRoutingKey());
-                    System.out.println("正在处理消息...");
-
-                    // 模拟处理时间
-                    TimeUnit.SECONDS.sleep(1);
-
-                    System.out.println("消息处理完成: '" + message + "'");
-                    System.out.println("----------------------------------------");
-
-                    // 手动确认消息已处理完成
-                    // 第二个参数multiple设置为false，表示只确认当前消息
-                    channel.basicAck(deliveryTag, false);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-
-                    // 处理中断异常，拒绝消息并将其放回队列
-                    channel.basicNack(deliveryTag, false, true);
-                    System.out.println("消息处理失败，已放回队列: '" + message + "'");
-                }
-            }
-        };
-
-        // 设置消费者的QoS（服务质量）参数
+        // 配置消息处理函数：抛出异常表示处理失败，由重试管道转发到重试队列
+        // 重试管道确认后再 ack 原消息，处理成功时由管道 ack
+        RetryPipeline pipeline = new RetryPipeline(connection, QUEUE_NAME, RETRY_INITIAL_DELAY_MILLIS, MAX_RETRIES);
+        // 设置每个消费通道的QoS（服务质量）参数
         // 1: 每次只接收一条消息，处理完成后再接收下一条
         // 这样可以实现公平分发，避免消息堆积在单个消费者
-        channel.basicQos(1);
+        // 管道同时消费主队列和重试工作队列，各用一个通道
+        pipeline.start((envelope, properties, body) -> {
+            // 接收到的消息
+            String message = new String(body, "UTF-8");
+
+            System.out.println("接收到消息: '" + message + "'");
+            System.out.println("投递标签: " + envelope.getDeliveryTag());
+            System.out.println("消息路由键: " + envelope.getRoutingKey());
+            System.out.println("正在处理消息...");
+
+            // 模拟处理时间；被中断时抛出异常，消息进入重试队列，稍后再处理
+            TimeUnit.SECONDS.sleep(1);
 
-        // 注册消费者到队列
-        // 第三个参数autoAck设置为false，表示手动确认消息
-        channel.basicConsume(QUEUE_NAME, false, consumer);
+            System.out.println("消息处理完成: '" + message + "'");
+            System.out.println("----------------------------------------");
+        }, 1);
 
         // 保持消费者运行，等待消息
         System.out.println("消费者正在运行，等待消息...");
@@ -109,6 +92,8 @@ public class QuorumQueueConsumer {
         }
 
         // 关闭通道和连接
+        pipeline.printStats();
+        pipeline.close();
         RabbitMQUtils.closeChannel(channel);
         RabbitMQUtils.closeConnection(connection);
     }
@@ -0,0 +1,329 @@
+package com.rabbitmq.demo.runner;
+
+import com.rabbitmq.demo.utils.ChannelPool;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 多角色运行器
+ *
+ * 每个示例类都有自己的 main 方法，run_examples.bat 为每个角色启动一个 JVM，每个 JVM 都要付出启动、
+ * JIT 预热、堆内存和一个连接的开销。本类在一个 JVM 中按角色列表运行多个示例：
+ * 1. 角色列表形如 "2×WorkQueueConsumer1, 1×TopicConsumer2, 1×DLXConsumer"，乘号可以写成 ×、x 或 *，
+ *    数量省略时为 1；类名后可以用冒号追加传给 main 的参数，例如 "1×WorkQueueProducer:load:rate=500"
+ * 2. 类名可以写简单类名（在各示例包中查找）或全限定类名
+ * 3. 每个角色实例在自己的线程中运行原来的 main 方法，示例代码不需要修改：
+ *    RabbitMQUtils.getConnection() 在角色线程中返回 RoleContext 的连接代理，通道从共享的通道池借出
+ * 4. 每个角色的消费回调在它自己的线程池中执行，并单独统计投递、发布、确认和回调耗时，定期打印
+ * 5. 按回车或 Ctrl+C 时优雅关闭：唤醒等待 System.in 的角色让它们执行自己的清理代码，
+ *    再取消各角色剩余的消费者、等待回调执行完、打印统计信息，最后关闭通道池
+ *
+ * 注意事项：
+ * - 角色共用一个 System.in，运行期间 System.in 被替换为只在关闭时返回结束的输入流
+ * - 调用 System.exit() 的角色会结束整个进程
+ * - 共享池的连接数有限（参见 RabbitMQUtils），角色打开的通道总数不能超过池容量
+ */
+public class MultiRoleRunner {
+    // 查找简单类名时依次尝试的示例包
+    private static final List<String> EXAMPLE_PACKAGES = Arrays.asList(
+            "basic", "workqueue", "pubsub", "routing", "topic", "headers", "confirm", "delay", "dlx",
+            "priority", "quorum", "mirror");
+    // 角色规格：[数量 ×] 类名 [:参数...]
+    private static final Pattern ROLE_SPEC = Pattern.compile("(?:(\\d+)\\s*[×xX*]\\s*)?([\\w.$]+)((?::[^:]*)*)");
+    // 每个角色执行消费回调的线程数（同一通道的回调仍按顺序执行）
+    private static final int ROLE_CALLBACK_THREADS = 2;
+    // 统计信息的打印间隔（秒）
+    private static final int STATS_INTERVAL_SECONDS = 10;
+    // 关闭时等待角色 main 方法返回的最长时间（毫秒）
+    private static final long ROLE_JOIN_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * 解析后的角色
+     */
+    static final class RoleSpec {
+        final int count;
+        final Class<?> mainClass;
+        final String[] args;
+
+        RoleSpec(int count, Class<?> mainClass, String[] args) {
+            this.count = count;
+            this.mainClass = mainClass;
+            this.args = args;
+        }
+    }
+
+    /**
+     * 一个正在运行的角色实例
+     */
+    private static final class RoleInstance {
+        final RoleContext context;
+        final Thread thread;
+
+        RoleInstance(RoleContext context, Thread thread) {
+            this.context = context;
+            this.thread = thread;
+        }
+    }
+
+    // 正在运行的角色实例
+    private final List<RoleInstance> roles = new ArrayList<>();
+    // 共享的通道池
+    private final ChannelPool channelPool;
+    // 关闭信号，释放后等待 System.in 的角色读到输入结束
+    private final CountDownLatch shutdownSignal = new CountDownLatch(1);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final AtomicBoolean shuttingDown = new AtomicBoolean();
+    private final ScheduledExecutorService statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "multi-role-stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private InputStream originalIn;
+
+    public MultiRoleRunner(ChannelPool channelPool) {
+        this.channelPool = channelPool;
+    }
+
+    /**
+     * 解析角色列表
+     *
+     * @param specs 角色规格，可以是一个逗号分隔的字符串，也可以分成多个参数
+     * @return 解析后的角色
+     * @throws IllegalArgumentException 规格格式错误或找不到类
+     */
+    static List<RoleSpec> parse(String... specs) {
+        List<RoleSpec> result = new ArrayList<>();
+        for (String part : String.join(",", specs).split(",")) {
+            String spec = part.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = ROLE_SPEC.matcher(spec);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("无法解析角色: " + spec + "，格式为 [数量×]类名[:参数...]");
+            }
+            int count = matcher.group(1) == null ? 1 : Integer.parseInt(matcher.group(1));
+            if (count <= 0) {
+                throw new IllegalArgumentException("角色数量必须大于0: " + spec);
+            }
+            String[] args = matcher.group(3).isEmpty() ? new String[0] : matcher.group(3).substring(1).split(":", -1);
+            result.add(new RoleSpec(count, resolve(matcher.group(2)), args));
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("角色列表为空");
+        }
+        return result;
+    }
+
+    /**
+     * 查找角色类，类必须有 public static void main(String[])
+     */
+    static Class<?> resolve(String name) {
+        List<String> candidates = new ArrayList<>();
+        if (name.contains(".")) {
+            candidates.add(name);
+        } else {
+            for (String pkg : EXAMPLE_PACKAGES) {
+                candidates.add("com.rabbitmq.demo." + pkg + "." + name);
+            }
+        }
+        for (String candidate : candidates) {
+            try {
+                Class<?> type = Class.forName(candidate, false, MultiRoleRunner.class.getClassLoader());
+                Method main = type.getMethod("main", String[].class);
+                if (Modifier.isStatic(main.getModifiers())) {
+                    return type;
+                }
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                // 继续尝试下一个包
+            }
+        }
+        throw new IllegalArgumentException("找不到带 main 方法的示例类: " + name + suggest(name));
+    }
+
+    /**
+     * 为写错或写得不完整的类名给出候选，例如 WorkQueueConsumer -> WorkQueueConsumer1, WorkQueueConsumer2
+     */
+    private static String suggest(String name) {
+        List<String> matches = new ArrayList<>();
+        String simpleName = name.substring(name.lastIndexOf('.') + 1);
+        for (String pkg : EXAMPLE_PACKAGES) {
+            for (int i = 1; i <= 3; i++) {
+                String candidate = "com.rabbitmq.demo." + pkg + "." + simpleName + i;
+                try {
+                    Class.forName(candidate, false, MultiRoleRunner.class.getClassLoader());
+                    matches.add(simpleName + i);
+                } catch (ClassNotFoundException e) {
+                    // 没有这个编号
+                }
+            }
+        }
+        return matches.isEmpty() ? "" : "，是否想要: " + String.join(", ", matches);
+    }
+
+    /**
+     * 启动所有角色
+     *
+     * @param specs 解析后的角色
+     */
+    public void start(List<RoleSpec> specs) {
+        installGatedStdin();
+        for (RoleSpec spec : specs) {
+            for (int i = 1; i <= spec.count; i++) {
+                String name = spec.mainClass.getSimpleName() + "#" + i;
+                RoleContext context = new RoleContext(name, channelPool, ROLE_CALLBACK_THREADS);
+                Thread thread = new Thread(new ThreadGroup("role-" + name), () -> runRole(spec, context),
+                        "role-" + name);
+                thread.setDaemon(true);
+                roles.add(new RoleInstance(context, thread));
+            }
+        }
+        for (RoleInstance role : roles) {
+            role.thread.start();
+        }
+        System.out.println("[多角色运行器] 已启动 " + roles.size() + " 个角色实例，按回车键关闭");
+        statsScheduler.scheduleAtFixedRate(this::printStats, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    private void runRole(RoleSpec spec, RoleContext context) {
+        // 角色线程及它创建的线程调用 getConnection() 时都从共享池借用通道
+        RabbitMQUtils.setThreadConnectionProvider(context::newConnection);
+        try {
+            spec.mainClass.getMethod("main", String[].class).invoke(null, (Object) spec.args.clone());
+            if (!shuttingDown.get()) {
+                System.out.println("[多角色运行器] 角色 " + context.getName() + " 的 main 方法已返回");
+            }
+        } catch (InvocationTargetException e) {
+            if (!shuttingDown.get()) {
+                System.err.println("[多角色运行器] 角色 " + context.getName() + " 异常退出: " + e.getCause());
+            }
+        } catch (ReflectiveOperationException e) {
+            System.err.println("[多角色运行器] 无法启动角色 " + context.getName() + ": " + e);
+        }
+    }
+
+    /**
+     * 用只在关闭时返回结束的输入流替换 System.in，等待回车键的角色因此一直运行到关闭
+     */
+    private void installGatedStdin() {
+        originalIn = System.in;
+        System.setIn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    shutdownSignal.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("等待输入时被中断", e);
+                }
+                return -1;
+            }
+        });
+    }
+
+    /**
+     * 打印各角色和通道池的统计信息
+     */
+    public void printStats() {
+        for (RoleInstance role : roles) {
+            role.context.printStats();
+        }
+        channelPool.printStats();
+    }
+
+    /**
+     * 优雅关闭所有角色，可以重复调用，只有第一次调用执行关闭
+     */
+    public void shutdown() {
+        if (!shuttingDown.compareAndSet(false, true)) {
+            try {
+                terminated.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        System.out.println("[多角色运行器] 正在关闭...");
+        statsScheduler.shutdownNow();
+        // 唤醒等待 System.in 的角色，让它们执行自己的关闭代码
+        shutdownSignal.countDown();
+        long deadline = System.currentTimeMillis() + ROLE_JOIN_TIMEOUT_MILLIS;
+        for (RoleInstance role : roles) {
+            try {
+                role.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (role.thread.isAlive()) {
+                System.err.println("[多角色运行器] 角色 " + role.context.getName() + " 没有按时退出");
+            }
+        }
+        // 关闭角色没有自己关闭的通道（例如 main 方法注册消费者后直接返回的角色）
+        for (RoleInstance role : roles) {
+            role.context.close();
+        }
+        System.out.println("[多角色运行器] 最终统计:");
+        printStats();
+        channelPool.close();
+        if (originalIn != null) {
+            System.setIn(originalIn);
+        }
+        terminated.countDown();
+    }
+
+    /**
+     * 等待回车键或关闭
+     */
+    public void awaitShutdown() throws InterruptedException {
+        Thread stdinReader = new Thread(() -> {
+            try {
+                if (originalIn.read() < 0) {
+                    // 没有标准输入（例如在后台运行），只能用 Ctrl+C 关闭
+                    return;
+                }
+            } catch (IOException e) {
+                return;
+            }
+            shutdown();
+        }, "multi-role-stdin");
+        stdinReader.setDaemon(true);
+        stdinReader.start();
+        terminated.await();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            System.out.println("用法: MultiRoleRunner \"2×WorkQueueConsumer1, 1×TopicConsumer2, 1×DLXConsumer\"");
+            return;
+        }
+        List<RoleSpec> specs;
+        try {
+            specs = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[多角色运行器] " + e.getMessage());
+            return;
+        }
+
+        MultiRoleRunner runner = new MultiRoleRunner(RabbitMQUtils.getChannelPool());
+        Runtime.getRuntime().addShutdownHook(new Thread(runner::shutdown, "multi-role-shutdown"));
+        runner.start(specs);
+        runner.awaitShutdown();
+    }
+}
@@ -0,0 +1,432 @@
+package com.rabbitmq.demo.runner;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.demo.utils.ChannelPool;
+import com.rabbitmq.demo.utils.LatencyHistogram;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+import com.rabbitmq.demo.workqueue.KeyOrderedExecutor;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多角色运行器中一个角色实例的运行环境
+ *
+ * 角色（示例类的 main 方法）在自己的线程中运行，通过 RabbitMQUtils.getConnection() 得到的是本类提供的连接代理：
+ * 1. 连接代理的 createChannel() 从共享的通道池借出通道，多个角色共用池中的少量连接
+ * 2. 角色关闭连接时只关闭它自己打开的通道，共享连接不受影响；其他连接方法（服务器属性等）
+ *    交给共享的真实连接，在打开通道之前调用时从通道池借一个通道取得连接
+ * 3. 通过连接代理注册的关闭监听器和阻塞监听器会被记录下来，连接代理或角色关闭时从共享连接上移除，
+ *    不会留在共享连接上影响其他角色；clearBlockedListeners() 也只清除本连接代理注册的监听器
+ * 4. 通道代理把消费回调（Consumer、DeliverCallback 等）转到本角色自己的线程池中执行，
+ *    同一通道的回调按顺序执行；一个角色处理得慢不会占用共享连接的投递线程，也不会拖慢其他角色
+ * 5. 统计本角色的投递数、回调耗时、回调异常、发布数、确认数和拒绝数
+ * 6. 关闭通道时先取消该通道上的消费者，等待已收到的消息回调执行完，再丢弃通道
+ *
+ * 注意事项：
+ * - 回调抛出的异常只记录并计数，不会像客户端默认的异常处理那样关闭通道
+ * - 修改过状态的通道不会归还给通道池复用，关闭时直接丢弃
+ */
+class RoleContext {
+    // 关闭通道时等待回调执行完的最长时间（毫秒）
+    private static final long CHANNEL_DRAIN_TIMEOUT_MILLIS = 30_000;
+    // 借用通道的最长等待时间（毫秒）
+    private static final long BORROW_TIMEOUT_MILLIS = 10_000;
+    // 需要转到角色线程池执行的回调接口
+    private static final List<Class<?>> CALLBACK_TYPES = java.util.Arrays.asList(
+            com.rabbitmq.client.Consumer.class, com.rabbitmq.client.DeliverCallback.class,
+            com.rabbitmq.client.CancelCallback.class, com.rabbitmq.client.ConsumerShutdownSignalCallback.class);
+
+    // 当前线程正在执行哪个角色的回调，用于避免在回调中关闭通道时等待自己
+    private static final ThreadLocal<RoleContext> CALLBACK_OWNER = new ThreadLocal<>();
+
+    // 角色名称，例如 WorkQueueConsumer1#2
+    private final String name;
+    // 共享的通道池
+    private final ChannelPool channelPool;
+    // 角色自己的线程池
+    private final ThreadPoolExecutor executor;
+    // 按通道保序的调度层
+    private final KeyOrderedExecutor orderedExecutor;
+    // 本角色打开的通道（代理 -> 状态）
+    private final Map<Channel, ChannelState> channels = new ConcurrentHashMap<>();
+    // 本角色通过连接代理在共享连接上注册的监听器
+    private final List<ListenerRegistration> listeners = new CopyOnWriteArrayList<>();
+
+    // 统计信息
+    private final AtomicLong deliveryCount = new AtomicLong();
+    private final AtomicLong callbackErrorCount = new AtomicLong();
+    private final AtomicLong publishCount = new AtomicLong();
+    private final AtomicLong ackCount = new AtomicLong();
+    private final AtomicLong nackCount = new AtomicLong();
+    private final LatencyHistogram callbackLatency = new LatencyHistogram();
+    private long lastReportDeliveries;
+    private long lastReportPublishes;
+    private long lastReportNanos = System.nanoTime();
+
+    /**
+     * 一个通道的状态
+     */
+    private static final class ChannelState {
+        final Channel target;
+        // 在该通道上注册的消费者标签
+        final List<String> consumerTags = new CopyOnWriteArrayList<>();
+        // 已提交但还没执行完的回调数
+        final AtomicInteger pendingCallbacks = new AtomicInteger();
+
+        ChannelState(Channel target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * 在共享连接上注册的一个关闭监听器或阻塞监听器
+     */
+    private static final class ListenerRegistration {
+        // 注册时使用的连接代理
+        final Connection owner;
+        // 实际注册到的共享连接
+        final Connection target;
+        final Object listener;
+
+        ListenerRegistration(Connection owner, Connection target, Object listener) {
+            this.owner = owner;
+            this.target = target;
+            this.listener = listener;
+        }
+
+        /**
+         * 从共享连接上移除
+         *
+         * @return 阻塞监听器是否存在并被移除
+         */
+        boolean remove() {
+            if (listener instanceof ShutdownListener) {
+                target.removeShutdownListener((ShutdownListener) listener);
+                return true;
+            }
+            return target.removeBlockedListener((BlockedListener) listener);
+        }
+    }
+
+    RoleContext(String name, ChannelPool channelPool, int threads) {
+        this.name = name;
+        this.channelPool = channelPool;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(() -> {
+                        // 角色线程中调用 getConnection() 也得到本角色的连接代理
+                        RabbitMQUtils.setThreadConnectionProvider(this::newConnection);
+                        r.run();
+                    }, "role-" + name + "-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.orderedExecutor = new KeyOrderedExecutor(executor);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * 创建连接代理，角色每次调用 getConnection() 都得到一个新的代理，共用同一个通道池
+     *
+     * @return 连接代理
+     */
+    Connection newConnection() {
+        List<Channel> owned = new CopyOnWriteArrayList<>();
+        boolean[] closed = new boolean[1];
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createChannel":
+                            if (closed[0]) {
+                                throw new IOException("连接已关闭");
+                            }
+                            Channel channel = openChannel((Connection) proxy);
+                            owned.add(channel);
+                            return channel;
+                        case "close":
+                        case "abort":
+                            // 只关闭这个连接代理打开的通道并移除它注册的监听器，共享连接保持打开
+                            closed[0] = true;
+                            for (Channel owner : owned) {
+                                closeChannel(owner);
+                            }
+                            owned.clear();
+                            removeListeners((Connection) proxy, null);
+                            return null;
+                        case "addShutdownListener":
+                        case "addBlockedListener": {
+                            Connection target = sharedConnection(owned);
+                            Object result = invoke(target, method, args);
+                            // addBlockedListener(BlockedCallback, UnblockedCallback) 返回创建的监听器
+                            Object listener = result != null ? result : args[0];
+                            listeners.add(new ListenerRegistration((Connection) proxy, target, listener));
+                            return result;
+                        }
+                        case "removeShutdownListener":
+                        case "removeBlockedListener":
+                            return removeListeners((Connection) proxy, args[0]);
+                        case "clearBlockedListeners":
+                            // 只清除本连接代理注册的阻塞监听器，其他角色的监听器不受影响
+                            for (ListenerRegistration registration : listeners) {
+                                if (registration.owner == proxy && registration.listener instanceof BlockedListener) {
+                                    removeListeners((Connection) proxy, registration.listener);
+                                }
+                            }
+                            return null;
+                        case "isOpen":
+                            return !closed[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "RoleConnection(" + name + ")";
+                        default:
+                            // 其他方法（服务器属性、监听器等）交给通道池中的一个真实连接
+                            return invoke(sharedConnection(owned), method, args);
+                    }
+                });
+    }
+
+    /**
+     * 找到一个真实连接：优先使用本连接代理打开的通道所在的连接，
+     * 还没有打开通道（或已全部关闭）时从通道池借一个通道取得它的连接后立即归还
+     *
+     * 大多数 Connection 方法没有声明受检异常，借用失败时抛出 IllegalStateException
+     */
+    private Connection sharedConnection(List<Channel> owned) {
+        for (Channel channel : owned) {
+            ChannelState state = channels.get(channel);
+            if (state != null) {
+                return state.target.getConnection();
+            }
+        }
+        Channel channel;
+        try {
+            channel = channelPool.borrowChannel(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException | TimeoutException e) {
+            throw new IllegalStateException("角色 " + name + " 借用通道失败: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待通道时被中断", e);
+        }
+        Connection connection = channel.getConnection();
+        // 没有修改通道状态，可以归还复用
+        channelPool.returnChannel(channel);
+        return connection;
+    }
+
+    /**
+     * 从共享连接上移除监听器
+     *
+     * @param owner    只移除这个连接代理注册的监听器，为 null 时不限
+     * @param listener 要移除的监听器，为 null 时移除全部
+     * @return 是否移除了监听器
+     */
+    private boolean removeListeners(Connection owner, Object listener) {
+        boolean removed = false;
+        for (ListenerRegistration registration : listeners) {
+            if ((owner == null || registration.owner == owner)
+                    && (listener == null || registration.listener == listener)) {
+                listeners.remove(registration);
+                try {
+                    removed |= registration.remove();
+                } catch (RuntimeException e) {
+                    System.err.println("[多角色运行器] 角色 " + name + " 移除连接监听器失败: " + e.getMessage());
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Channel openChannel(Connection connection) throws IOException, TimeoutException {
+        Channel target;
+        try {
+            target = channelPool.borrowChannel(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待通道时被中断", e);
+        }
+        ChannelState state = new ChannelState(target);
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicConsume":
+                            wrapCallbacks(method, args, state, proxy);
+                            Object consumerTag = invoke(target, method, args);
+                            state.consumerTags.add((String) consumerTag);
+                            return consumerTag;
+                        case "basicCancel":
+                            state.consumerTags.remove((String) args[0]);
+                            return invoke(target, method, args);
+                        case "basicPublish":
+                            publishCount.incrementAndGet();
+                            return invoke(target, method, args);
+                        case "basicAck":
+                            ackCount.incrementAndGet();
+                            return invoke(target, method, args);
+                        case "basicNack":
+                        case "basicReject":
+                            nackCount.incrementAndGet();
+                            return invoke(target, method, args);
+                        case "close":
+                        case "abort":
+                            closeChannel((Channel) proxy);
+                            return null;
+                        case "getConnection":
+                            return connection;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "RoleChannel(" + name + ", " + target + ")";
+                        default:
+                            return invoke(target, method, args);
+                    }
+                });
+        channels.put(channel, state);
+        return channel;
+    }
+
+    /**
+     * 把 basicConsume 参数中的回调替换为在角色线程池中执行的代理
+     */
+    private void wrapCallbacks(Method method, Object[] args, ChannelState state, Object channel) {
+        Class<?>[] types = method.getParameterTypes();
+        String key = "channel-" + System.identityHashCode(channel);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != null && CALLBACK_TYPES.contains(types[i])) {
+                Object callback = args[i];
+                args[i] = Proxy.newProxyInstance(types[i].getClassLoader(), new Class<?>[]{types[i]},
+                        (proxy, callbackMethod, callbackArgs) -> {
+                            if (callbackMethod.getDeclaringClass() == Object.class) {
+                                return invoke(callback, callbackMethod, callbackArgs);
+                            }
+                            dispatch(key, state, callback, callbackMethod, callbackArgs);
+                            return null;
+                        });
+            }
+        }
+    }
+
+    private void dispatch(String key, ChannelState state, Object callback, Method method, Object[] args) {
+        // Consumer.handleDelivery 或 DeliverCallback.handle(consumerTag, delivery)
+        boolean delivery = method.getName().equals("handleDelivery")
+                || (method.getName().equals("handle") && args != null && args.length == 2);
+        if (delivery) {
+            deliveryCount.incrementAndGet();
+        }
+        state.pendingCallbacks.incrementAndGet();
+        orderedExecutor.execute(key, () -> {
+            long start = System.nanoTime();
+            CALLBACK_OWNER.set(this);
+            try {
+                invoke(callback, method, args);
+            } catch (Throwable e) {
+                callbackErrorCount.incrementAndGet();
+                System.err.println("[多角色运行器] 角色 " + name + " 的回调 " + method.getName() + " 失败: " + e);
+            } finally {
+                CALLBACK_OWNER.remove();
+                if (delivery) {
+                    callbackLatency.record(System.nanoTime() - start);
+                }
+                state.pendingCallbacks.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * 取消通道上的消费者，等待已收到的消息回调执行完后丢弃通道
+     */
+    private void closeChannel(Channel channel) {
+        ChannelState state = channels.remove(channel);
+        if (state == null) {
+            return;
+        }
+        for (String consumerTag : state.consumerTags) {
+            try {
+                if (state.target.isOpen()) {
+                    state.target.basicCancel(consumerTag);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[多角色运行器] 角色 " + name + " 取消消费者失败: " + e.getMessage());
+            }
+        }
+        // 在本角色的回调中关闭通道时不能等待自己
+        if (CALLBACK_OWNER.get() != this) {
+            long deadline = System.currentTimeMillis() + CHANNEL_DRAIN_TIMEOUT_MILLIS;
+            while (state.pendingCallbacks.get() > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        channelPool.invalidateChannel(state.target);
+    }
+
+    /**
+     * 关闭本角色还打开着的通道，移除本角色注册的连接监听器，并停止线程池
+     */
+    void close() {
+        for (Channel channel : channels.keySet()) {
+            closeChannel(channel);
+        }
+        removeListeners(null, null);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(CHANNEL_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 打印本角色的统计信息（速率为上一次打印以来的平均值）
+     */
+    synchronized void printStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastReportNanos) / 1_000_000_000.0);
+        long deliveries = deliveryCount.get();
+        long publishes = publishCount.get();
+        System.out.printf("[角色 %s] 通道: %d, 投递: %d (%.1f 条/秒), 发布: %d (%.1f 条/秒), 确认: %d, 拒绝: %d, "
+                        + "回调异常: %d, 排队: %d, 回调耗时: %s\n",
+                name, channels.size(), deliveries, (deliveries - lastReportDeliveries) / seconds, publishes,
+                (publishes - lastReportPublishes) / seconds, ackCount.get(), nackCount.get(),
+                callbackErrorCount.get(), executor.getQueue().size(), callbackLatency.formatPercentiles());
+        lastReportDeliveries = deliveries;
+        lastReportPublishes = publishes;
+        lastReportNanos = now;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
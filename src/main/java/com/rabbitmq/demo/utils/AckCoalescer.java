@@ -0,0 +1,273 @@
+package com.rabbitmq.demo.utils;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并确认（批量 ack）
+ *
+ * 手动确认的消费者每处理一条消息就调用一次 basicAck(tag, false)，确认帧和投递帧一样多。
+ * 本类把处理完成的投递标签收集起来，合并成一次 basicAck(tag, multiple=true)：
+ * 1. ack() 标记一条消息处理完成，从上次确认位置开始连续完成的消息达到 maxPendingAcks 条时，
+ *    用一次 multiple=true 的确认全部确认
+ * 2. 消息可以乱序完成：multiple=true 只会覆盖连续完成的部分，中间还在处理的消息不会被提前确认
+ * 3. 后台线程每隔 maxDelayMillis 刷新一次：确认连续完成的部分，
+ *    因为前面有消息未完成而无法合并的消息单独确认，避免长时间占用预取额度
+ * 4. nack() 立即单独发送 basicNack，之后的合并确认会跳过这条消息
+ * 5. 统计节省的确认帧数和每秒节省的帧数
+ *
+ * 注意事项：
+ * - 一个通道只能使用一个合并器，并且该通道上的所有确认都要通过合并器发送
+ * - maxPendingAcks 不应超过预取数，否则消费者会等到定时刷新才能收到新消息；
+ *   basicQos(1) 时只能设为1，此时与逐条确认相同
+ * - 关闭通道前应调用 close() 发送所有待确认的消息；通道意外关闭时未发送的确认会丢失，
+ *   这些消息会被Broker重新投递，因此消费端需要幂等
+ */
+public class AckCoalescer implements AutoCloseable {
+    // 投递标签的状态：未完成、已完成待确认、已单独确认或拒绝
+    private static final byte NONE = 0;
+    private static final byte COMPLETED = 1;
+    private static final byte SETTLED = 2;
+
+    // 消费通道
+    private final Channel channel;
+    // 连续完成多少条消息后发送一次确认
+    private volatile int maxPendingAcks;
+    // 定时刷新的线程
+    private final ScheduledExecutorService scheduler;
+
+    // 按投递标签记录的状态，环形数组，容量不足时扩容
+    private byte[] states = new byte[64];
+    // 小于等于该标签的消息都已完成（或已单独确认、拒绝）
+    private long contiguousUpTo;
+    // 连续完成部分中最大的待确认标签，作为 multiple=true 确认的标签
+    private long ackTarget;
+    // 连续完成部分中待确认的消息数
+    private int pendingInPrefix;
+    // 不连续（前面还有未完成的消息）的已完成消息数
+    private int outOfOrderCount;
+    // 见过的最大投递标签
+    private long highestSeen;
+    // 通道是否已关闭
+    private boolean shutdown;
+
+    // 已确认的消息数
+    private long ackedCount;
+    // 发送的确认帧数
+    private long ackFrameCount;
+    // 单独拒绝的消息数
+    private long nackedCount;
+    // 通道关闭时未能确认的消息数
+    private long lostCount;
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+    private long lastReportSaved;
+
+    /**
+     * 创建合并器
+     *
+     * @param channel        消费通道
+     * @param maxPendingAcks 连续完成多少条消息后发送一次确认
+     * @param maxDelayMillis 已完成的消息最多等待多久被确认（毫秒）
+     */
+    public AckCoalescer(Channel channel, int maxPendingAcks, long maxDelayMillis) {
+        if (maxPendingAcks <= 0 || maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("合并确认的阈值必须大于0");
+        }
+        this.channel = channel;
+        this.maxPendingAcks = maxPendingAcks;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ack-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+        channel.addShutdownListener(cause -> onShutdown());
+    }
+
+    /**
+     * 标记一条消息处理完成，达到阈值时发送合并确认
+     *
+     * @param deliveryTag 投递标签
+     * @throws IOException IO 异常
+     */
+    public synchronized void ack(long deliveryTag) throws IOException {
+        if (!mark(deliveryTag, COMPLETED)) {
+            return;
+        }
+        outOfOrderCount++;
+        advance();
+        if (pendingInPrefix >= maxPendingAcks) {
+            flushPrefix();
+        }
+    }
+
+    /**
+     * 立即单独拒绝一条消息
+     *
+     * @param deliveryTag 投递标签
+     * @param requeue     是否重新入队
+     * @throws IOException IO 异常
+     */
+    public synchronized void nack(long deliveryTag, boolean requeue) throws IOException {
+        if (shutdown || deliveryTag <= contiguousUpTo) {
+            return;
+        }
+        channel.basicNack(deliveryTag, false, requeue);
+        nackedCount++;
+        if (mark(deliveryTag, SETTLED)) {
+            advance();
+        }
+    }
+
+    /**
+     * 立即发送所有待确认的消息
+     *
+     * @throws IOException IO 异常
+     */
+    public synchronized void flush() throws IOException {
+        if (shutdown) {
+            return;
+        }
+        flushPrefix();
+        // 前面还有未完成的消息，无法合并，单独确认
+        for (long tag = contiguousUpTo + 1; tag <= highestSeen && outOfOrderCount > 0; tag++) {
+            int index = index(tag);
+            if (states[index] == COMPLETED) {
+                channel.basicAck(tag, false);
+                states[index] = SETTLED;
+                outOfOrderCount--;
+                ackedCount++;
+                ackFrameCount++;
+            }
+        }
+    }
+
+    /**
+     * 调整合并的阈值，例如预取数变化时
+     *
+     * @param maxPendingAcks 连续完成多少条消息后发送一次确认
+     */
+    public void setMaxPendingAcks(int maxPendingAcks) {
+        this.maxPendingAcks = Math.max(1, maxPendingAcks);
+    }
+
+    /**
+     * @return 节省的确认帧数
+     */
+    public synchronized long getFramesSaved() {
+        return ackedCount - ackFrameCount;
+    }
+
+    /**
+     * 打印合并确认的统计信息
+     */
+    public synchronized void printStats() {
+        long now = System.nanoTime();
+        long saved = ackedCount - ackFrameCount;
+        double totalSeconds = (now - startNanos) / 1_000_000_000.0;
+        double intervalSeconds = (now - lastReportNanos) / 1_000_000_000.0;
+        System.out.printf("[合并确认] 确认消息: %d, 确认帧: %d, 节省帧: %d (平均 %.0f 帧/秒, 最近 %.0f 帧/秒), "
+                        + "拒绝: %d, 待确认: %d, 通道关闭时丢失: %d\n",
+                ackedCount, ackFrameCount, saved, saved / Math.max(totalSeconds, 1e-9),
+                (saved - lastReportSaved) / Math.max(intervalSeconds, 1e-9), nackedCount,
+                pendingInPrefix + outOfOrderCount, lostCount);
+        lastReportNanos = now;
+        lastReportSaved = saved;
+    }
+
+    /**
+     * 发送所有待确认的消息并停止定时刷新，应在关闭通道之前调用
+     */
+    @Override
+    public void close() {
+        flushQuietly();
+        scheduler.shutdownNow();
+    }
+
+    private boolean mark(long deliveryTag, byte state) {
+        if (shutdown || deliveryTag <= contiguousUpTo) {
+            return false;
+        }
+        ensureCapacity(deliveryTag);
+        int index = index(deliveryTag);
+        if (states[index] != NONE) {
+            // 重复确认
+            return false;
+        }
+        states[index] = state;
+        highestSeen = Math.max(highestSeen, deliveryTag);
+        return true;
+    }
+
+    /**
+     * 把连续完成的部分向前推进
+     */
+    private void advance() {
+        while (contiguousUpTo < highestSeen) {
+            int index = index(contiguousUpTo + 1);
+            byte state = states[index];
+            if (state == NONE) {
+                break;
+            }
+            states[index] = NONE;
+            contiguousUpTo++;
+            if (state == COMPLETED) {
+                outOfOrderCount--;
+                pendingInPrefix++;
+                ackTarget = contiguousUpTo;
+            }
+        }
+    }
+
+    private void flushPrefix() throws IOException {
+        if (pendingInPrefix == 0) {
+            return;
+        }
+        // ackTarget 一定是待确认的消息，multiple=true 会同时确认它之前所有未确认的消息
+        channel.basicAck(ackTarget, true);
+        ackedCount += pendingInPrefix;
+        ackFrameCount++;
+        pendingInPrefix = 0;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[合并确认] 发送确认失败: " + e.getMessage());
+        }
+    }
+
+    private synchronized void onShutdown() {
+        if (!shutdown) {
+            shutdown = true;
+            lostCount = pendingInPrefix + outOfOrderCount;
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void ensureCapacity(long deliveryTag) {
+        long span = deliveryTag - contiguousUpTo;
+        if (span < states.length) {
+            return;
+        }
+        int capacity = states.length;
+        while (capacity <= span) {
+            capacity <<= 1;
+        }
+        byte[] grown = new byte[capacity];
+        for (long tag = contiguousUpTo + 1; tag <= highestSeen; tag++) {
+            grown[(int) (tag & (capacity - 1))] = states[index(tag)];
+        }
+        states = grown;
+    }
+
+    private int index(long deliveryTag) {
+        return (int) (deliveryTag & (states.length - 1));
+    }
+}
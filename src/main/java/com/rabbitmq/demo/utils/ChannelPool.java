@@ -0,0 +1,323 @@
+package com.rabbitmq.demo.utils;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接与通道池
+ *
+ * 维护一组有上限的长连接，每个连接上再维护一组有上限的通道：
+ * 1. borrowChannel() 优先复用空闲通道，没有空闲通道时在未满的连接上新建通道，
+ *    所有连接都满时再新建连接（不超过 maxConnections）
+ * 2. 通道总数达到上限时借用方会阻塞等待，直到有通道被归还或超时
+ * 3. 借出和归还时都会检查通道是否仍然可用，已关闭的通道直接丢弃
+ * 4. 统计借用等待时间和池利用率，便于观察池的大小是否合适
+ *
+ * 注意事项：
+ * - 通道不是线程安全的，同一时刻只能被一个线程使用
+ * - 修改过通道状态（confirmSelect、basicQos、basicConsume等）的借用方
+ *   应调用 invalidateChannel() 丢弃通道，而不是归还给其他借用方复用
+ * - 每次借出只能归还或丢弃一次，重复归还和归还未借出的通道会被忽略
+ */
+public class ChannelPool implements AutoCloseable {
+    // 连接工厂
+    private final ConnectionFactory factory;
+    // 最大连接数
+    private final int maxConnections;
+    // 每个连接上的最大通道数
+    private final int maxChannelsPerConnection;
+
+    // 通道许可，总数为 maxConnections * maxChannelsPerConnection
+    private final Semaphore permits;
+    // 空闲通道
+    private final LinkedBlockingDeque<Channel> idleChannels = new LinkedBlockingDeque<>();
+    // 每个连接上当前打开的通道数
+    private final Map<Connection, AtomicInteger> connections = new ConcurrentHashMap<>();
+    // 通道所属的连接
+    private final Map<Channel, Connection> channelOwners = new ConcurrentHashMap<>();
+
+    // 当前借出的通道，归还时据此拒绝重复归还
+    private final Set<Channel> borrowedChannels = ConcurrentHashMap.newKeySet();
+    // 当前借出的通道数
+    private final AtomicInteger borrowed = new AtomicInteger();
+    // 借用次数
+    private final AtomicLong borrowCount = new AtomicLong();
+    // 借用等待总耗时（纳秒）
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    // 借用等待最大耗时（纳秒）
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    // 因健康检查失败而丢弃的通道数
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * 创建通道池
+     *
+     * @param factory                  连接工厂
+     * @param maxConnections           最大连接数
+     * @param maxChannelsPerConnection 每个连接上的最大通道数
+     */
+    public ChannelPool(ConnectionFactory factory, int maxConnections, int maxChannelsPerConnection) {
+        if (maxConnections <= 0 || maxChannelsPerConnection <= 0) {
+            throw new IllegalArgumentException("连接数和通道数必须大于0");
+        }
+        this.factory = factory;
+        this.maxConnections = maxConnections;
+        this.maxChannelsPerConnection = maxChannelsPerConnection;
+        this.permits = new Semaphore(maxConnections * maxChannelsPerConnection, true);
+    }
+
+    /**
+     * 借用通道，池已满时一直等待
+     *
+     * @return 可用的通道
+     * @throws IOException      IO 异常
+     * @throws TimeoutException 超时异常
+     */
+    public Channel borrowChannel() throws IOException, TimeoutException {
+        try {
+            return borrowChannel(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待通道时被中断", e);
+        }
+    }
+
+    /**
+     * 借用通道
+     *
+     * @param timeout 最长等待时间
+     * @param unit    时间单位
+     * @return 可用的通道
+     * @throws IOException          IO 异常
+     * @throws TimeoutException     在指定时间内没有可用通道，或建立连接超时
+     * @throws InterruptedException 等待时被中断
+     */
+    public Channel borrowChannel(long timeout, TimeUnit unit)
+            throws IOException, TimeoutException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("通道池已关闭");
+        }
+
+        long waitStart = System.nanoTime();
+        if (!permits.tryAcquire(timeout, unit)) {
+            throw new TimeoutException("等待通道超时");
+        }
+        recordWait(System.nanoTime() - waitStart);
+
+        try {
+            Channel channel;
+            // 优先复用空闲通道，丢弃已经失效的通道
+            while ((channel = idleChannels.pollFirst()) != null) {
+                if (channel.isOpen()) {
+                    markBorrowed(channel);
+                    return channel;
+                }
+                discard(channel);
+            }
+
+            channel = createChannel();
+            markBorrowed(channel);
+            return channel;
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 归还通道，已关闭的通道会被直接丢弃；通道当前没有借出（例如重复归还）时忽略
+     *
+     * @param channel 借出的通道
+     */
+    public void returnChannel(Channel channel) {
+        if (!unmarkBorrowed(channel)) {
+            return;
+        }
+        if (closed || !channel.isOpen()) {
+            discard(channel);
+        } else {
+            idleChannels.offerFirst(channel);
+        }
+        permits.release();
+    }
+
+    /**
+     * 丢弃通道，不再复用；通道当前没有借出（例如已经归还）时忽略
+     *
+     * @param channel 借出的通道
+     */
+    public void invalidateChannel(Channel channel) {
+        if (!unmarkBorrowed(channel)) {
+            return;
+        }
+        discard(channel);
+        permits.release();
+    }
+
+    private void markBorrowed(Channel channel) {
+        borrowedChannels.add(channel);
+        borrowed.incrementAndGet();
+    }
+
+    /**
+     * 只有第一次归还会成功，保证许可和借出数不会被重复释放，同一个通道也不会两次进入空闲队列
+     */
+    private boolean unmarkBorrowed(Channel channel) {
+        if (channel == null || !borrowedChannels.remove(channel)) {
+            return false;
+        }
+        borrowed.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * 在未满的连接上创建通道，所有连接都满时新建连接
+     */
+    private Channel createChannel() throws IOException, TimeoutException {
+        synchronized (connections) {
+            for (Map.Entry<Connection, AtomicInteger> entry : connections.entrySet()) {
+                Connection connection = entry.getKey();
+                if (!connection.isOpen()) {
+                    connections.remove(connection);
+                    continue;
+                }
+                if (entry.getValue().get() < maxChannelsPerConnection) {
+                    return openChannel(connection, entry.getValue());
+                }
+            }
+
+            if (connections.size() >= maxConnections) {
+                // 许可保证了通道总数不超限，走到这里说明有连接刚刚失效
+                throw new IOException("没有可用的连接");
+            }
+            Connection connection = factory.newConnection();
+            AtomicInteger channelCount = new AtomicInteger();
+            connections.put(connection, channelCount);
+            return openChannel(connection, channelCount);
+        }
+    }
+
+    private Channel openChannel(Connection connection, AtomicInteger channelCount) throws IOException {
+        Channel channel = connection.createChannel();
+        if (channel == null) {
+            throw new IOException("连接上没有可用的通道号");
+        }
+        channelCount.incrementAndGet();
+        channelOwners.put(channel, connection);
+        return channel;
+    }
+
+    private void discard(Channel channel) {
+        Connection connection = channelOwners.remove(channel);
+        if (connection != null) {
+            AtomicInteger channelCount = connections.get(connection);
+            if (channelCount != null) {
+                channelCount.decrementAndGet();
+            }
+        }
+        discardedCount.incrementAndGet();
+        if (channel.isOpen()) {
+            RabbitMQUtils.closeChannel(channel);
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        borrowCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 当前借出的通道数
+     */
+    public int getBorrowedCount() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return 当前空闲的通道数
+     */
+    public int getIdleCount() {
+        return idleChannels.size();
+    }
+
+    /**
+     * @return 当前打开的连接数
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return 池的利用率（借出通道数 / 通道总容量）
+     */
+    public double getUtilisation() {
+        return (double) borrowed.get() / (maxConnections * maxChannelsPerConnection);
+    }
+
+    /**
+     * @return 平均借用等待时间（毫秒）
+     */
+    public double getAverageWaitMillis() {
+        long count = borrowCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * @return 最大借用等待时间（毫秒）
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    /**
+     * 打印池的统计信息
+     */
+    public void printStats() {
+        System.out.printf("[通道池] 连接: %d/%d, 借出通道: %d, 空闲通道: %d, 利用率: %.1f%%, "
+                        + "借用次数: %d, 平均等待: %.3f 毫秒, 最大等待: %.3f 毫秒, 丢弃通道: %d\n",
+                getConnectionCount(), maxConnections, getBorrowedCount(), getIdleCount(),
+                getUtilisation() * 100, borrowCount.get(), getAverageWaitMillis(), getMaxWaitMillis(),
+                discardedCount.get());
+    }
+
+    /**
+     * 关闭所有通道和连接
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Channel channel;
+        while ((channel = idleChannels.pollFirst()) != null) {
+            channelOwners.remove(channel);
+            RabbitMQUtils.closeChannel(channel);
+        }
+        synchronized (connections) {
+            for (Connection connection : connections.keySet()) {
+                if (connection.isOpen()) {
+                    RabbitMQUtils.closeConnection(connection);
+                }
+            }
+            connections.clear();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.rabbitmq.demo.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图
+ *
+ * 总耗时和平均值会掩盖尾部延迟，本类记录每一个延迟样本并按分位数报告：
+ * 1. 按对数分桶，每个2的幂区间再均分为64个子桶，相对误差不超过约1.6%
+ * 2. record() 只做一次数组下标计算和原子自增，不分配对象，可以在确认回调等热点路径上调用
+ * 3. 可以随时读取累计的 p50/p99/p99.9/最大值，也可以通过 intervalSnapshot() 取得
+ *    上一次快照以来的增量直方图，用于按时间间隔输出
+ * 4. 多个直方图可以通过 add() 合并，例如汇总多个通道的延迟
+ *
+ * 注意事项：
+ * - 超过可跟踪上限的样本按上限计入，最大值仍然精确记录
+ * - 分位数返回所在子桶的上界，结果偏保守
+ */
+public class LatencyHistogram {
+    // 每个2的幂区间的子桶数为 2^(SUB_BUCKET_BITS - 1)
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    // 默认可跟踪的最大延迟：1小时
+    private static final long DEFAULT_HIGHEST_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    // 可跟踪的最大延迟（纳秒）
+    private final long highestTrackableNanos;
+    // 每个桶的样本数
+    private final AtomicLongArray counts;
+    // 样本总数
+    private final AtomicLong totalCount = new AtomicLong();
+    // 样本总和（纳秒）
+    private final AtomicLong totalNanos = new AtomicLong();
+    // 最大值（纳秒）
+    private final AtomicLong maxNanos = new AtomicLong();
+    // 上一次区间快照以来的最大值（纳秒）
+    private final AtomicLong intervalMaxNanos = new AtomicLong();
+
+    // 上一次区间快照时的累计值，只在 intervalSnapshot() 中使用
+    private long[] lastSnapshotCounts;
+    private long lastSnapshotNanos;
+
+    /**
+     * 创建可跟踪1小时以内延迟的直方图
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_HIGHEST_TRACKABLE_NANOS);
+    }
+
+    /**
+     * 创建直方图
+     *
+     * @param highestTrackableNanos 可跟踪的最大延迟（纳秒）
+     */
+    public LatencyHistogram(long highestTrackableNanos) {
+        if (highestTrackableNanos < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("可跟踪的最大延迟过小");
+        }
+        this.highestTrackableNanos = highestTrackableNanos;
+        this.counts = new AtomicLongArray(indexOf(highestTrackableNanos) + 1);
+    }
+
+    /**
+     * 记录一个延迟样本
+     *
+     * @param nanos 延迟（纳秒），负数按0计入
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(Math.min(value, highestTrackableNanos)));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(value);
+        updateMax(maxNanos, value);
+        updateMax(intervalMaxNanos, value);
+    }
+
+    /**
+     * 把另一个直方图的样本合并进来，两者的可跟踪上限必须相同
+     *
+     * @param other 另一个直方图
+     */
+    public void add(LatencyHistogram other) {
+        if (other.counts.length() != counts.length()) {
+            throw new IllegalArgumentException("直方图的可跟踪上限不同，无法合并");
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        updateMax(maxNanos, other.maxNanos.get());
+        updateMax(intervalMaxNanos, other.intervalMaxNanos.get());
+    }
+
+    /**
+     * 取得上一次调用以来新增样本组成的直方图（第一次调用时为创建以来的全部样本），
+     * 累计的样本不受影响
+     *
+     * @return 区间直方图
+     */
+    public synchronized LatencyHistogram intervalSnapshot() {
+        if (lastSnapshotCounts == null) {
+            lastSnapshotCounts = new long[counts.length()];
+        }
+        LatencyHistogram interval = new LatencyHistogram(highestTrackableNanos);
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long current = counts.get(i);
+            long delta = current - lastSnapshotCounts[i];
+            if (delta != 0) {
+                interval.counts.set(i, delta);
+                lastSnapshotCounts[i] = current;
+                count += delta;
+            }
+        }
+        // 样本数按桶计数求和，保证与分位数计算使用的数据一致
+        interval.totalCount.set(count);
+        long nanos = totalNanos.get();
+        interval.totalNanos.set(nanos - lastSnapshotNanos);
+        lastSnapshotNanos = nanos;
+        long max = intervalMaxNanos.getAndSet(0);
+        interval.maxNanos.set(max);
+        interval.intervalMaxNanos.set(max);
+        return interval;
+    }
+
+    /**
+     * @param percentile 百分位（0到100之间，例如 99.9）
+     * @return 对应分位的延迟（纳秒），没有样本时为0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * @return 样本数
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return 最大延迟（纳秒）
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return 平均延迟（纳秒）
+     */
+    public double getMeanNanos() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalNanos.get() / count;
+    }
+
+    /**
+     * @return 样本数、平均值、p50/p99/p99.9 和最大值（毫秒）
+     */
+    public String formatPercentiles() {
+        return String.format("样本 %d, 平均 %.3f, p50 %.3f, p99 %.3f, p99.9 %.3f, 最大 %.3f 毫秒",
+                getCount(), getMeanNanos() / 1000000.0, getValueAtPercentile(50) / 1000000.0,
+                getValueAtPercentile(99) / 1000000.0, getValueAtPercentile(99.9) / 1000000.0,
+                getMaxNanos() / 1000000.0);
+    }
+
+    /**
+     * 打印分位数统计
+     *
+     * @param label 标签，例如确认模式的名称
+     */
+    public void printSummary(String label) {
+        System.out.println("[" + label + "] " + formatPercentiles());
+    }
+
+    /**
+     * 计算样本所在的桶下标：小于 SUB_BUCKET_COUNT 的值每个值一个桶，
+     * 之后每个2的幂区间分为 SUB_BUCKET_HALF_COUNT 个等宽子桶
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift);
+        return shift * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    /**
+     * @return 桶中可能出现的最大值
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = index - (long) shift * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+}
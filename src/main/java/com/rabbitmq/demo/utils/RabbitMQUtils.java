@@ -14,6 +14,22 @@ import java.util.concurrent.TimeoutException;
 public class RabbitMQUtils {
     // RabbitMQ 连接工厂
     private static ConnectionFactory factory;
+    // 共享的连接与通道池（延迟创建）
+    private static volatile ChannelPool channelPool;
+    // 共享池的最大连接数
+    private static final int POOL_MAX_CONNECTIONS = 4;
+    // 共享池中每个连接的最大通道数
+    private static final int POOL_MAX_CHANNELS_PER_CONNECTION = 16;
+    // 当前线程（及其创建的线程）获取连接的方式，为 null 时新建连接，多角色运行器用它让角色共用连接
+    private static final InheritableThreadLocal<ConnectionProvider> threadConnectionProvider =
+            new InheritableThreadLocal<>();
+
+    /**
+     * 连接的提供方式
+     */
+    public interface ConnectionProvider {
+        Connection newConnection() throws IOException, TimeoutException;
+    }
 
     /**
      * 静态初始化连接工厂
@@ -41,18 +57,75 @@ public class RabbitMQUtils {
      * @throws TimeoutException 超时异常
      */
     public static Connection getConnection() throws IOException, TimeoutException {
-        return factory.newConnection();
+        ConnectionProvider provider = threadConnectionProvider.get();
+        return provider != null ? provider.newConnection() : factory.newConnection();
+    }
+
+    /**
+     * 设置当前线程及其之后创建的线程调用 getConnection() 时获取连接的方式
+     *
+     * @param provider 连接的提供方式，为 null 时恢复为新建连接
+     */
+    public static void setThreadConnectionProvider(ConnectionProvider provider) {
+        if (provider == null) {
+            threadConnectionProvider.remove();
+        } else {
+            threadConnectionProvider.set(provider);
+        }
+    }
+
+    /**
+     * 获取使用 NIO 的 RabbitMQ 连接
+     * 帧先进入连接的写队列，由IO线程把连续的多个帧合并写入套接字
+     *
+     * @return RabbitMQ 连接
+     * @throws IOException      IO 异常
+     * @throws TimeoutException 超时异常
+     */
+    public static Connection getNioConnection() throws IOException, TimeoutException {
+        ConnectionFactory nioFactory = factory.clone();
+        nioFactory.useNio();
+        return nioFactory.newConnection();
+    }
+
+    /**
+     * 获取共享的连接与通道池
+     *
+     * @return 共享的通道池
+     */
+    public static ChannelPool getChannelPool() {
+        ChannelPool pool = channelPool;
+        if (pool == null) {
+            synchronized (RabbitMQUtils.class) {
+                pool = channelPool;
+                if (pool == null) {
+                    pool = new ChannelPool(factory, POOL_MAX_CONNECTIONS, POOL_MAX_CHANNELS_PER_CONNECTION);
+                    channelPool = pool;
+                }
+            }
+        }
+        return pool;
     }
 
     /**
      * 获取 RabbitMQ 通道
+     * 通道从共享的通道池中借出，使用完毕后需调用 releaseChannel() 归还
      *
      * @return RabbitMQ 通道
      * @throws IOException      IO 异常
      * @throws TimeoutException 超时异常
      */
     public static Channel getChannel() throws IOException, TimeoutException {
-        return getConnection().createChannel();
+        return getChannelPool().borrowChannel();
+    }
+
+    /**
+     * 归还从 getChannel() 借出的通道
+     *
+     * @param channel RabbitMQ 通道
+     */
+    public static void releaseChannel(Channel channel) {
+        getChannelPool().returnChannel(channel);
     }
 
     /**
@@ -0,0 +1,342 @@
+package com.rabbitmq.demo.utils;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.MessageProperties;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单写线程发布者
+ *
+ * 通道不能被多个线程同时发布，多个业务线程共用一个通道时只能每次发布都加锁，线程越多锁竞争越严重。
+ * 本类让一个通道只有一个写线程：
+ * 1. 任何线程调用 publish() 时只把消息追加到无锁的多生产者单消费者（MPSC）队列：
+ *    一次 getAndSet 交换队尾，不加锁、不阻塞，也不会接触通道
+ * 2. 写线程成批取出消息（每批最多 MAX_BURST 条）依次调用 basicPublish，只有它使用这个通道
+ * 3. 没有指定属性的消息共用同一个不可变的默认属性对象，不为每条消息创建属性
+ * 4. 队列中的消息数达到容量时 publish() 阻塞等待（背压），写线程把队列消化到一半以下时
+ *    一次唤醒所有等待的生产者；只有队列满时才会用到锁
+ * 5. 队列为空时写线程停放，生产者发现写线程停放时再唤醒它
+ *
+ * 注意事项：
+ * - publish() 返回只表示消息已入队；通道出错时的发布失败计入 getFailedCount()，需要可靠投递时
+ *   应在写线程的通道上开启发布确认（参见 confirm 包）
+ * - Java 客户端的阻塞IO模式在每条命令后都会 flush 套接字；使用 RabbitMQUtils.getNioConnection()
+ *   创建的 NIO 连接会把写线程一批连续写出的帧放进写队列，由IO线程合并成尽量少的套接字写入，
+ *   相当于每批只 flush 一次
+ * - 同一个线程发布的消息保持顺序，不同线程之间的顺序由入队顺序决定
+ */
+public class SingleWriterPublisher implements AutoCloseable {
+    // 写线程每批最多发送的消息数
+    private static final int MAX_BURST = 256;
+    // 写线程空闲时最长停放时间（纳秒），防止错过唤醒
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 队列节点，写线程取出后成为新的哨兵节点
+     */
+    private static final class Node {
+        String exchange;
+        String routingKey;
+        AMQP.BasicProperties props;
+        byte[] body;
+        volatile Node next;
+
+        Node(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    // 发布通道，只有写线程使用
+    private final Channel channel;
+    // 没有指定属性时使用的属性
+    private final AMQP.BasicProperties defaultProperties;
+    // 队列容量
+    private final int capacity;
+    // 队尾，生产者通过 getAndSet 追加
+    private final AtomicReference<Node> tail;
+    // 哨兵节点，只有写线程访问
+    private Node head;
+    // 队列中的消息数
+    private final AtomicInteger size = new AtomicInteger();
+    // 队列已满时生产者等待的监视器和等待的生产者数
+    private final Object notFull = new Object();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    // 写线程
+    private final Thread writer;
+    // 写线程是否正在停放
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    // 已发送的消息数和批次数（只有写线程更新）
+    private volatile long publishedCount;
+    private volatile long burstCount;
+    private volatile int maxBurstSize;
+    // 发送失败的消息数
+    private final AtomicLong failedCount = new AtomicLong();
+    // 生产者因队列已满而等待的次数
+    private final AtomicLong producerWaitCount = new AtomicLong();
+
+    /**
+     * 创建单写线程发布者并启动写线程，默认属性为持久化的二进制消息
+     *
+     * @param channel  发布通道，创建后不能再被其他线程使用
+     * @param capacity 队列容量
+     */
+    public SingleWriterPublisher(Channel channel, int capacity) {
+        this(channel, capacity, MessageProperties.PERSISTENT_BASIC);
+    }
+
+    /**
+     * 创建单写线程发布者并启动写线程
+     *
+     * @param channel           发布通道，创建后不能再被其他线程使用
+     * @param capacity          队列容量
+     * @param defaultProperties 没有指定属性时使用的属性
+     */
+    public SingleWriterPublisher(Channel channel, int capacity, AMQP.BasicProperties defaultProperties) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("队列容量必须大于0");
+        }
+        this.channel = channel;
+        this.capacity = capacity;
+        this.defaultProperties = defaultProperties;
+        this.head = new Node(null, null, null, null);
+        this.tail = new AtomicReference<>(head);
+        this.writer = new Thread(this::runWriter, "single-writer-" + channel.getChannelNumber());
+        writer.start();
+    }
+
+    /**
+     * 使用默认属性发布消息
+     *
+     * @param exchange   交换机名称
+     * @param routingKey 路由键
+     * @param body       消息体
+     */
+    public void publish(String exchange, String routingKey, byte[] body) {
+        publish(exchange, routingKey, null, body);
+    }
+
+    /**
+     * 把消息放入发送队列，可以在任意线程上调用，队列已满时等待
+     *
+     * @param exchange   交换机名称
+     * @param routingKey 路由键
+     * @param props      消息属性，为 null 时使用默认属性
+     * @param body       消息体
+     */
+    public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) {
+        reserveSlot();
+        Node node = new Node(exchange, routingKey, props, body);
+        // 交换队尾后再链接前一个节点，写线程可能短暂看到队尾已变但链接还没建立
+        Node previous = tail.getAndSet(node);
+        previous.next = node;
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void reserveSlot() {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("发布者已关闭");
+            }
+            int current = size.get();
+            if (current < capacity) {
+                if (!size.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                if (closed) {
+                    // 与 close() 并发：写线程可能已经退出，撤销占位，不入队
+                    size.decrementAndGet();
+                    throw new IllegalStateException("发布者已关闭");
+                }
+                return;
+            }
+            awaitNotFull();
+        }
+    }
+
+    /**
+     * 队列已满，等待写线程消化
+     */
+    private void awaitNotFull() {
+        producerWaitCount.incrementAndGet();
+        LockSupport.unpark(writer);
+        synchronized (notFull) {
+            // 先登记再检查队列大小，写线程减少大小后检查登记数，两边至少有一方看到对方
+            waitingProducers.incrementAndGet();
+            try {
+                while (size.get() >= capacity && !closed) {
+                    notFull.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待发送队列时被中断", e);
+            } finally {
+                waitingProducers.decrementAndGet();
+            }
+        }
+    }
+
+    private void signalNotFull() {
+        synchronized (notFull) {
+            notFull.notifyAll();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            if (drainBurst() > 0) {
+                continue;
+            }
+            if (tail.get() != head) {
+                // 有生产者已交换队尾但还没链接，很快就会完成
+                Thread.yield();
+                continue;
+            }
+            if (closed) {
+                // 已占位的生产者还没有入队时继续等待
+                if (size.get() == 0) {
+                    return;
+                }
+                Thread.yield();
+                continue;
+            }
+            writerParked = true;
+            // 设置停放标记后再检查一次，避免与生产者的唤醒错过
+            if (tail.get() == head && !closed) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+    /**
+     * 取出并发送一批消息
+     *
+     * @return 发送的消息数
+     */
+    private int drainBurst() {
+        int count = 0;
+        Node next;
+        while (count < MAX_BURST && (next = head.next) != null) {
+            send(next);
+            // 已发送的节点成为新的哨兵，释放消息引用
+            next.exchange = null;
+            next.routingKey = null;
+            next.props = null;
+            next.body = null;
+            head = next;
+            count++;
+        }
+        if (count > 0) {
+            int remaining = size.addAndGet(-count);
+            if (remaining <= capacity / 2 && waitingProducers.get() > 0) {
+                signalNotFull();
+            }
+            publishedCount += count;
+            burstCount++;
+            if (count > maxBurstSize) {
+                maxBurstSize = count;
+            }
+        }
+        return count;
+    }
+
+    private void send(Node node) {
+        try {
+            channel.basicPublish(node.exchange, node.routingKey, node.props != null ? node.props : defaultProperties,
+                    node.body);
+        } catch (IOException | RuntimeException e) {
+            if (failedCount.getAndIncrement() == 0) {
+                System.err.println("[单写线程发布] 发布失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return 已交给通道发送的消息数
+     */
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    /**
+     * @return 发布失败的消息数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 打印发送统计信息
+     */
+    public void printStats() {
+        long bursts = burstCount;
+        System.out.printf("[单写线程发布] 发送: %d, 批次: %d, 平均每批: %.1f, 最大每批: %d, 失败: %d, "
+                        + "队列已满等待: %d, 队列中: %d\n",
+                publishedCount, bursts, bursts == 0 ? 0 : publishedCount / (double) bursts, maxBurstSize,
+                failedCount.get(), producerWaitCount.get(), size.get());
+    }
+
+    /**
+     * 停止接收新消息，等待写线程发送完队列中的消息，不关闭通道
+     */
+    @Override
+    public void close() {
+        closed = true;
+        signalNotFull();
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+        // NIO 连接会合并写线程一批写出的帧
+        Connection connection = RabbitMQUtils.getNioConnection();
+        Channel channel = connection.createChannel();
+        String queue = channel.queueDeclare().getQueue();
+
+        int threads = 8;
+        int messagesPerThread = 100_000;
+        SingleWriterPublisher publisher = new SingleWriterPublisher(channel, 8192);
+        long start = System.nanoTime();
+        Thread[] producers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            producers[i] = new Thread(() -> {
+                for (int j = 0; j < messagesPerThread; j++) {
+                    publisher.publish("", queue, ("线程 " + index + " 消息 " + j).getBytes());
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        publisher.close();
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.out.printf("[单写线程发布] %d 个线程共发送 %d 条, 耗时 %.2f 秒, %.0f 条/秒\n",
+                threads, threads * messagesPerThread, seconds, threads * messagesPerThread / seconds);
+        publisher.printStats();
+
+        RabbitMQUtils.closeChannel(channel);
+        RabbitMQUtils.closeConnection(connection);
+    }
+}
@@ -0,0 +1,251 @@
+package com.rabbitmq.demo.utils;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 单写线程发布基准测试
+ *
+ * 不需要启动RabbitMQ服务器，用一个替身通道代替真实通道，把帧头和消息体写入本机回环套接字，
+ * 另一个线程读取并丢弃。替身通道有两种写出方式：
+ * - 阻塞IO：与 Java 客户端的默认模式一样，basicPublish 写出后立即 flush，每条命令一次系统调用
+ * - NIO：与 useNio() 的客户端一样，basicPublish 只把帧放进写队列，由IO线程取出当前所有的帧后 flush 一次
+ *
+ * 两种方式下分别用 1、8、64 个发布线程发送相同数量的消息，比较：
+ * 1. 每次发布加锁：所有线程共用一个通道，每次 basicPublish 前获取通道锁（多线程共用通道时的通常做法）
+ * 2. 单写线程：所有线程调用 SingleWriterPublisher.publish() 入队，由一个写线程发送
+ * 输出吞吐量、IO线程平均每次 flush 的帧数，以及发布线程调用一次发布的耗时分位数（业务线程被阻塞的时间）。
+ */
+public class SingleWriterPublisherBenchmark {
+    // 每轮发送的消息总数
+    private static final int MESSAGE_COUNT = 400_000;
+    // 消息体大小（字节）
+    private static final int BODY_SIZE = 128;
+    // 发布线程数
+    private static final int[] THREAD_COUNTS = {1, 8, 64};
+    // 单写线程的队列容量
+    private static final int QUEUE_CAPACITY = 8192;
+    // NIO 写队列的容量（与客户端默认值相同）
+    private static final int NIO_WRITE_QUEUE_CAPACITY = 10_000;
+    // 预热轮数
+    private static final int WARMUP_ROUNDS = 2;
+
+    // NIO 模式下IO线程的 flush 次数和写出的帧数
+    private static long nioFlushCount;
+    private static long nioFrameCount;
+
+    /**
+     * 发布方式
+     */
+    private interface Publisher {
+        void publish(byte[] body) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            Thread reader = new Thread(() -> discard(accepted), "loopback-reader");
+            reader.setDaemon(true);
+            reader.start();
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(client.getOutputStream(), 128 * 1024));
+
+            System.out.println("=== 单写线程发布基准测试（回环套接字替身通道） ===");
+            System.out.printf("每轮 %d 条消息, 消息体 %d 字节, CPU核数 %d\n", MESSAGE_COUNT, BODY_SIZE,
+                    Runtime.getRuntime().availableProcessors());
+            compare("阻塞IO，每条命令 flush", blockingChannel(out));
+            compare("NIO，IO线程每次取出写队列后 flush", nioChannel(out));
+        }
+    }
+
+    private static void compare(String mode, Channel channel) throws Exception {
+        System.out.println("\n===== " + mode + " =====");
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runLocked(channel, 8, false);
+            runSingleWriter(channel, 8, false);
+        }
+        for (int threads : THREAD_COUNTS) {
+            System.out.println("\n--- " + threads + " 个发布线程 ---");
+            double locked = runLocked(channel, threads, true);
+            double singleWriter = runSingleWriter(channel, threads, true);
+            System.out.printf("单写线程吞吐量是每次加锁的 %.2f 倍\n", singleWriter / locked);
+        }
+    }
+
+    private static double runLocked(Channel channel, int threads, boolean report) throws Exception {
+        Object lock = new Object();
+        return run("每次发布加锁", threads, report, body -> {
+            synchronized (lock) {
+                channel.basicPublish("", "bench", null, body);
+            }
+        }, null);
+    }
+
+    private static double runSingleWriter(Channel channel, int threads, boolean report) throws Exception {
+        SingleWriterPublisher publisher = new SingleWriterPublisher(channel, QUEUE_CAPACITY);
+        double rate = run("单写线程", threads, report, body -> publisher.publish("", "bench", body), publisher);
+        if (report) {
+            publisher.printStats();
+        }
+        return rate;
+    }
+
+    /**
+     * @return 吞吐量（条/秒），单写线程的耗时包括写线程发送完所有消息
+     */
+    private static double run(String name, int threads, boolean report, Publisher publisher,
+            SingleWriterPublisher singleWriter) throws Exception {
+        int perThread = MESSAGE_COUNT / threads;
+        long flushesBefore = nioFlushCount;
+        long framesBefore = nioFrameCount;
+        LatencyHistogram callLatency = new LatencyHistogram();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                byte[] body = new byte[BODY_SIZE];
+                ready.countDown();
+                try {
+                    go.await();
+                    for (int j = 0; j < perThread; j++) {
+                        long start = System.nanoTime();
+                        publisher.publish(body);
+                        callLatency.record(System.nanoTime() - start);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    System.err.println("[基准测试] 发布失败: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        if (singleWriter != null) {
+            // 等待写线程发送完队列中的消息
+            singleWriter.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        double rate = perThread * (double) threads / (elapsed / 1_000_000_000.0);
+        if (report) {
+            long flushes = nioFlushCount - flushesBefore;
+            System.out.printf("[%s] 吞吐量: %.0f 条/秒%s, 单次发布调用: %s\n", name, rate,
+                    flushes == 0 ? "" : String.format(", 每次 flush %.1f 帧", (nioFrameCount - framesBefore)
+                            / (double) flushes), callLatency.formatPercentiles());
+        }
+        return rate;
+    }
+
+    /**
+     * 阻塞IO的替身通道：basicPublish 写入帧头和消息体后 flush，每条命令一次系统调用
+     */
+    private static Channel blockingChannel(DataOutputStream out) {
+        return standInChannel((routingKey, body) -> {
+            // 真实客户端的 basicPublish 也是在通道内部加锁后写出方法帧、内容头帧和内容体帧
+            synchronized (out) {
+                writeFrame(out, routingKey, body);
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * NIO 的替身通道：basicPublish 只把帧放进写队列，IO线程取出队列中所有的帧后 flush 一次
+     */
+    private static Channel nioChannel(DataOutputStream out) {
+        BlockingQueue<Object[]> writeQueue = new ArrayBlockingQueue<>(NIO_WRITE_QUEUE_CAPACITY);
+        Thread ioThread = new Thread(() -> {
+            List<Object[]> frames = new ArrayList<>();
+            try {
+                while (true) {
+                    frames.add(writeQueue.take());
+                    writeQueue.drainTo(frames);
+                    for (Object[] frame : frames) {
+                        writeFrame(out, (String) frame[0], (byte[]) frame[1]);
+                    }
+                    out.flush();
+                    nioFlushCount++;
+                    nioFrameCount += frames.size();
+                    frames.clear();
+                }
+            } catch (InterruptedException | IOException e) {
+                // 基准测试结束
+            }
+        }, "nio-io-thread");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        return standInChannel((routingKey, body) -> {
+            try {
+                writeQueue.put(new Object[]{routingKey, body});
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待写队列时被中断", e);
+            }
+        });
+    }
+
+    private static void writeFrame(DataOutputStream out, String routingKey, byte[] body) throws IOException {
+        out.writeInt(body.length);
+        out.writeUTF(routingKey);
+        out.write(body);
+    }
+
+    /**
+     * 替身通道的写出方式
+     */
+    private interface FrameSink {
+        void write(String routingKey, byte[] body) throws IOException;
+    }
+
+    private static Channel standInChannel(FrameSink sink) {
+        return (Channel) Proxy.newProxyInstance(SingleWriterPublisherBenchmark.class.getClassLoader(),
+                new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicPublish":
+                            sink.write((String) args[1], (byte[]) args[args.length - 1]);
+                            return null;
+                        case "getChannelNumber":
+                            return 1;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StandInChannel";
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static void discard(Socket socket) {
+        byte[] buffer = new byte[256 * 1024];
+        try (InputStream in = socket.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                // 读取并丢弃
+            }
+        } catch (IOException e) {
+            // 基准测试结束时套接字关闭
+        }
+    }
+}
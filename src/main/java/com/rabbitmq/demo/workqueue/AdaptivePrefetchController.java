@@ -0,0 +1,194 @@
+package com.rabbitmq.demo.workqueue;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * 自适应预取（QoS）控制器
+ *
+ * basicQos(1) 时消费者每确认一条消息，都要等一个完整的往返才能收到下一条；
+ * 处理时间远小于往返时间时，消费者大部分时间都在空等。本类根据测量结果持续调整预取数：
+ * 1. 用指数加权平均统计每条消息的处理时间
+ * 2. 消费者处理完本地所有消息后空等下一条的时间，加上这段时间内本地已缓冲消息的处理时间，
+ *    就是一次“确认到下一条消息到达”的往返时间样本；取最近若干样本的最小值，
+ *    忽略队列暂时为空造成的长时间空等
+ * 3. 目标预取数 = ceil(往返时间 / 处理时间) + 1，即恰好够消费者在一个往返内不断流
+ * 4. 目标值变化超过当前值的1/4时才调用 basicQos，且每隔若干条消息最多调整一次
+ *
+ * 公平分发：预取数只够覆盖一个往返，每个消费者本地缓冲的工作量都约等于一个往返时间，
+ * 慢消费者的预取数自然更小，不会囤积本可以分给快消费者的消息。
+ *
+ * 注意事项：
+ * - 使用 basicQos(prefetch, true) 设置通道级别的预取数，修改后对已有消费者立即生效，
+ *   因此每个通道上应只有一个消费者
+ * - 通道级别的预取数不适用于仲裁队列，仲裁队列请使用固定的 basicQos
+ */
+public class AdaptivePrefetchController {
+    // 处理时间平均值的平滑系数
+    private static final double EWMA_ALPHA = 0.1;
+    // 往返时间取最小值的样本窗口大小
+    private static final int RTT_WINDOW = 32;
+    // 空等超过该时间才视为一次往返时间样本（纳秒）
+    private static final long STARVED_THRESHOLD_NANOS = 20_000;
+    // 每处理多少条消息最多调整一次预取数
+    private static final int RETUNE_INTERVAL = 16;
+
+    // 最小预取数
+    private final int minPrefetch;
+    // 最大预取数
+    private final int maxPrefetch;
+
+    // 当前预取数
+    private volatile int currentPrefetch;
+    // 平均处理时间（纳秒）
+    private double averageHandleNanos;
+    // 最近的往返时间样本（纳秒），环形缓冲区
+    private final long[] rttSamples = new long[RTT_WINDOW];
+    private int rttSampleCount;
+    // 往返时间估计值（纳秒）
+    private volatile long rttNanos;
+    // 上一条消息处理完成的时间，0 表示还没有处理过消息
+    private long lastHandledNanos;
+    // 已处理的消息数
+    private long handledCount;
+    // 距离上次调整处理的消息数
+    private int sinceRetune;
+    // 预取数调整次数
+    private long retuneCount;
+
+    /**
+     * 创建控制器，初始预取数为 minPrefetch
+     *
+     * @param minPrefetch 最小预取数
+     * @param maxPrefetch 最大预取数，同时限制单个消费者最多占用的消息数
+     */
+    public AdaptivePrefetchController(int minPrefetch, int maxPrefetch) {
+        if (minPrefetch <= 0 || maxPrefetch < minPrefetch) {
+            throw new IllegalArgumentException("预取数范围不合法");
+        }
+        this.minPrefetch = minPrefetch;
+        this.maxPrefetch = maxPrefetch;
+        this.currentPrefetch = minPrefetch;
+    }
+
+    /**
+     * 在通道上设置初始预取数，应在 basicConsume 之前调用
+     *
+     * @param channel 消费通道
+     * @throws IOException IO 异常
+     */
+    public void start(Channel channel) throws IOException {
+        channel.basicQos(currentPrefetch, true);
+    }
+
+    /**
+     * 在消息处理开始时调用
+     *
+     * @return 处理开始的时间，传给 afterHandle()
+     */
+    public long beforeHandle() {
+        long now = System.nanoTime();
+        onHandleStart(now);
+        return now;
+    }
+
+    /**
+     * 在消息处理完成（确认之前）调用，必要时调整通道的预取数
+     *
+     * @param channel    消费通道
+     * @param startNanos beforeHandle() 的返回值
+     * @return 是否调整了预取数
+     * @throws IOException IO 异常
+     */
+    public boolean afterHandle(Channel channel, long startNanos) throws IOException {
+        if (onHandleEnd(startNanos, System.nanoTime())) {
+            channel.basicQos(currentPrefetch, true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 记录消息处理开始，使用调用方提供的时间戳（便于在模拟时钟下测试）
+     *
+     * @param nowNanos 当前时间（纳秒）
+     */
+    synchronized void onHandleStart(long nowNanos) {
+        if (lastHandledNanos == 0 || handledCount == 0) {
+            return;
+        }
+        long idle = nowNanos - lastHandledNanos;
+        if (idle > STARVED_THRESHOLD_NANOS) {
+            // 确认发出后，本地还缓冲着至多 prefetch-1 条消息，它们的处理时间也属于这次往返
+            long sample = idle + (long) ((currentPrefetch - 1) * averageHandleNanos);
+            rttSamples[rttSampleCount++ % RTT_WINDOW] = sample;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < Math.min(rttSampleCount, RTT_WINDOW); i++) {
+                min = Math.min(min, rttSamples[i]);
+            }
+            rttNanos = min;
+        }
+    }
+
+    /**
+     * 记录消息处理完成，使用调用方提供的时间戳（便于在模拟时钟下测试）
+     *
+     * @param startNanos 处理开始的时间（纳秒）
+     * @param endNanos   处理完成的时间（纳秒）
+     * @return 预取数是否发生变化
+     */
+    synchronized boolean onHandleEnd(long startNanos, long endNanos) {
+        long elapsed = Math.max(1, endNanos - startNanos);
+        averageHandleNanos = handledCount++ == 0
+                ? elapsed
+                : EWMA_ALPHA * elapsed + (1 - EWMA_ALPHA) * averageHandleNanos;
+        lastHandledNanos = endNanos;
+
+        if (++sinceRetune < RETUNE_INTERVAL || rttNanos == 0) {
+            return false;
+        }
+        sinceRetune = 0;
+
+        int target = (int) Math.min(maxPrefetch, Math.ceil(rttNanos / averageHandleNanos) + 1);
+        target = Math.max(minPrefetch, target);
+        int current = currentPrefetch;
+        if (Math.abs(target - current) < Math.max(1, current / 4)) {
+            return false;
+        }
+        currentPrefetch = target;
+        retuneCount++;
+        return true;
+    }
+
+    /**
+     * @return 当前预取数
+     */
+    public int getCurrentPrefetch() {
+        return currentPrefetch;
+    }
+
+    /**
+     * @return 往返时间估计值（毫秒），还没有样本时为0
+     */
+    public double getRttMillis() {
+        return rttNanos / 1000000.0;
+    }
+
+    /**
+     * @return 平均处理时间（毫秒）
+     */
+    public synchronized double getAverageHandleMillis() {
+        return averageHandleNanos / 1000000.0;
+    }
+
+    /**
+     * 打印控制器的当前状态
+     *
+     * @param label 消费者名称
+     */
+    public synchronized void printStats(String label) {
+        System.out.printf("[%s] 预取数: %d, 往返时间: %.3f 毫秒, 平均处理时间: %.3f 毫秒, 已处理: %d, 调整次数: %d\n",
+                label, currentPrefetch, getRttMillis(), getAverageHandleMillis(), handledCount, retuneCount);
+    }
+}
@@ -0,0 +1,508 @@
+package com.rabbitmq.demo.workqueue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.demo.utils.ChannelPool;
+import com.rabbitmq.demo.utils.LatencyHistogram;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 自动扩缩容的消费者组
+ *
+ * 以前需要手动多启动几个 WorkQueueConsumer 进程来加快消费。本类在一个进程内维护一组消费者，
+ * 每个消费者使用从通道池借出的独立通道和一个独立的处理线程，并定期根据队列积压自动增减：
+ * 1. 每隔 pollIntervalMillis 用 queueDeclarePassive 读取队列的就绪消息数和Broker上的消费者数，
+ *    同时从延迟直方图中取出这段时间内处理的消息数和平均处理耗时
+ * 2. 按 Little 定律估算需要的并发数：
+ *    需要的消费者数 = (到达速率 + 积压消息数 / targetDrainSeconds) × 平均处理耗时，
+ *    其中到达速率 = 所有消费者的处理速率 + 积压的增长速率，
+ *    其他进程中的消费者（Broker消费者数 - 本组消费者数）按与本组相同的速度估算并从结果中扣除
+ * 3. 防抖动（滞后）：
+ *    - 扩容需要连续 SCALE_UP_CONFIRMATIONS 次采样都需要更多消费者，一次扩到需要的数量
+ *    - 缩容需要连续 SCALE_DOWN_CONFIRMATIONS 次采样在利用率不超过 SCALE_DOWN_UTILISATION 时仍然有富余，
+ *      每次只减少一个消费者；两个阈值之间是不动作的区间
+ *    - 每次调整后等待 COOLDOWN_POLLS 次采样，让新的消费者数反映到处理速率上
+ * 4. 消费者数始终在 [minConsumers, maxConsumers] 之间，每次扩缩容都输出一行包含决策依据的指标日志
+ * 5. 缩容时先取消消费并等待 cancel-ok，再等待正在处理的消息完成并确认后丢弃通道，
+ *    已预取未处理的消息由Broker重新投递；处理线程关闭后才到达的投递直接 nack 重新入队
+ *
+ * 注意事项：
+ * - 每个消费者占用通道池中的一个通道，maxConsumers 加上采样用的一个通道不应超过通道池的容量
+ * - 估算假设消息的处理耗时大致稳定；处理耗时变化很大时，应增加采样间隔或确认次数
+ */
+public class AutoscalingConsumerGroup implements AutoCloseable {
+    // 工作队列名称（与 WorkQueueProducer 一致）
+    private static final String QUEUE_NAME = "work_queue";
+    // 扩容前需要连续确认的采样次数
+    private static final int SCALE_UP_CONFIRMATIONS = 2;
+    // 缩容前需要连续确认的采样次数
+    private static final int SCALE_DOWN_CONFIRMATIONS = 5;
+    // 缩容后剩余消费者的利用率上限
+    private static final double SCALE_DOWN_UTILISATION = 0.75;
+    // 每次调整后的冷却采样次数
+    private static final int COOLDOWN_POLLS = 3;
+    // 缩容时等待正在处理的消息完成的最长时间（秒）
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+    // 借用通道的最长等待时间（毫秒）
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;
+
+    // 通道池
+    private final ChannelPool channelPool;
+    // 队列名称
+    private final String queue;
+    // 消费者数的下限和上限
+    private final int minConsumers;
+    private final int maxConsumers;
+    // 每个消费者的预取数
+    private final int prefetch;
+    // 积压消息的目标消化时间（秒）
+    private final double targetDrainSeconds;
+    // 消息处理函数
+    private final WorkerPoolConsumer.MessageHandler handler;
+    // 采样和扩缩容的线程
+    private final ScheduledExecutorService scheduler;
+    // 采样间隔（毫秒）
+    private final long pollIntervalMillis;
+
+    // 本组的消费者，最后加入的在末尾，缩容时优先移除
+    private final List<Member> members = new ArrayList<>();
+    // 处理耗时
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // 处理成功和失败的消息数
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    // 消费者编号
+    private int nextMemberId;
+
+    // 以下字段只在采样线程上访问
+    // 上一次采样的积压消息数，-1 表示还没有采样
+    private long lastDepth = -1;
+    // 上一次采样的时间
+    private long lastPollNanos;
+    // 最近一次有样本时的平均处理耗时（纳秒）
+    private double lastMeanLatencyNanos;
+    // 连续需要扩容、可以缩容的采样次数
+    private int scaleUpVotes;
+    private int scaleDownVotes;
+    // 剩余的冷却采样次数
+    private int cooldown;
+    // 扩容、缩容次数
+    private long scaleUpCount;
+    private long scaleDownCount;
+
+    /**
+     * 组内的一个消费者：独立的通道和处理线程
+     */
+    private final class Member extends DefaultConsumer {
+        final int id;
+        // 处理线程，不占用连接上共享的投递线程
+        final ExecutorService worker;
+        volatile String consumerTag;
+        // 收到 cancel-ok（或消费被 Broker 取消、通道关闭）后打开，之后不会再有新的投递
+        final CountDownLatch cancelled = new CountDownLatch(1);
+
+        Member(Channel channel, int id) {
+            super(channel);
+            this.id = id;
+            this.worker = Executors.newSingleThreadExecutor(r -> new Thread(r, "autoscaling-consumer-" + id));
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties,
+                byte[] body) {
+            try {
+                worker.execute(() -> process(this, envelope, properties, body));
+            } catch (RejectedExecutionException e) {
+                // 等待 cancel-ok 超时后处理线程已关闭，把消息还给 Broker
+                try {
+                    getChannel().basicNack(envelope.getDeliveryTag(), false, true);
+                } catch (IOException | RuntimeException ex) {
+                    System.err.println("[自动扩缩容] 消费者 " + id + " 已停止，重新入队失败: " + ex.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            cancelled.countDown();
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            cancelled.countDown();
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            cancelled.countDown();
+        }
+    }
+
+    /**
+     * 创建消费者组
+     *
+     * @param channelPool        通道池
+     * @param queue              队列名称
+     * @param minConsumers       消费者数下限（至少为1）
+     * @param maxConsumers       消费者数上限
+     * @param prefetch           每个消费者的预取数
+     * @param targetDrainSeconds 积压消息的目标消化时间（秒）
+     * @param pollIntervalMillis 采样间隔（毫秒）
+     * @param handler            消息处理函数
+     */
+    public AutoscalingConsumerGroup(ChannelPool channelPool, String queue, int minConsumers, int maxConsumers,
+            int prefetch, double targetDrainSeconds, long pollIntervalMillis,
+            WorkerPoolConsumer.MessageHandler handler) {
+        if (minConsumers < 1 || maxConsumers < minConsumers || prefetch < 1) {
+            throw new IllegalArgumentException("消费者数范围或预取数不合法");
+        }
+        if (targetDrainSeconds <= 0 || pollIntervalMillis <= 0) {
+            throw new IllegalArgumentException("消化时间和采样间隔必须大于0");
+        }
+        this.channelPool = channelPool;
+        this.queue = queue;
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+        this.prefetch = prefetch;
+        this.targetDrainSeconds = targetDrainSeconds;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.handler = handler;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consumer-autoscaler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 启动 minConsumers 个消费者并开始定期采样
+     *
+     * @throws IOException      IO 异常
+     * @throws TimeoutException 借用通道超时
+     */
+    public void start() throws IOException, TimeoutException {
+        scaleTo(minConsumers);
+        lastPollNanos = System.nanoTime();
+        scheduler.scheduleWithFixedDelay(this::pollQuietly, pollIntervalMillis, pollIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void process(Member member, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        long start = System.nanoTime();
+        long deliveryTag = envelope.getDeliveryTag();
+        boolean success;
+        try {
+            handler.handle(envelope, properties, body);
+            latency.record(System.nanoTime() - start);
+            processedCount.incrementAndGet();
+            success = true;
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            System.err.println("[自动扩缩容] 消费者 " + member.id + " 处理消息失败，deliveryTag: " + deliveryTag
+                    + ", " + e.getMessage());
+            success = false;
+        }
+        try {
+            if (success) {
+                member.getChannel().basicAck(deliveryTag, false);
+            } else {
+                member.getChannel().basicNack(deliveryTag, false, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[自动扩缩容] 发送确认失败，消息将被重新投递: " + e.getMessage());
+        }
+    }
+
+    private void pollQuietly() {
+        try {
+            poll();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            System.err.println("[自动扩缩容] 采样失败: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 采样一次队列状态，必要时扩缩容
+     */
+    private void poll() throws IOException, TimeoutException, InterruptedException {
+        AMQP.Queue.DeclareOk state;
+        Channel channel = channelPool.borrowChannel(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            // 被动声明不会创建队列，只返回就绪消息数和消费者数；队列不存在时通道会被关闭，归还时丢弃
+            state = channel.queueDeclarePassive(queue);
+        } finally {
+            channelPool.returnChannel(channel);
+        }
+
+        long now = System.nanoTime();
+        double intervalSeconds = (now - lastPollNanos) / 1_000_000_000.0;
+        lastPollNanos = now;
+        LatencyHistogram interval = latency.intervalSnapshot();
+        int current = getConsumerCount();
+
+        int target = evaluate(state.getMessageCount(), state.getConsumerCount(), current, interval.getCount(),
+                interval.getMeanNanos(), intervalSeconds);
+        if (target != current) {
+            logDecision(target > current ? "扩容" : "缩容", current, target, state, interval, intervalSeconds);
+            scaleTo(target);
+        }
+    }
+
+    /**
+     * 根据一次采样决定目标消费者数，包含滞后和冷却逻辑
+     *
+     * @param depth            队列中的就绪消息数
+     * @param brokerConsumers  Broker上该队列的消费者数（包括其他进程）
+     * @param current          本组当前的消费者数
+     * @param processed        采样间隔内本组处理的消息数
+     * @param meanLatencyNanos 采样间隔内的平均处理耗时（纳秒），没有样本时为0
+     * @param intervalSeconds  采样间隔（秒）
+     * @return 目标消费者数，不需要调整时等于 current
+     */
+    int evaluate(long depth, int brokerConsumers, int current, long processed, double meanLatencyNanos,
+            double intervalSeconds) {
+        if (meanLatencyNanos > 0) {
+            lastMeanLatencyNanos = meanLatencyNanos;
+        }
+        long previousDepth = lastDepth;
+        lastDepth = depth;
+        if (cooldown > 0) {
+            cooldown--;
+            return current;
+        }
+        if (previousDepth < 0 || lastMeanLatencyNanos == 0) {
+            // 第一次采样或还没有处理耗时，无法估算，有积压时先加一个消费者
+            return depth > 0 ? decide(current, Math.min(current + 1, maxConsumers), false) : current;
+        }
+
+        double needed = neededConcurrency(depth, previousDepth, brokerConsumers, current, processed,
+                intervalSeconds);
+        // 其他进程中的消费者分担的部分
+        int external = Math.max(0, brokerConsumers - current);
+        int upTarget = clamp((int) Math.ceil(needed) - external);
+        int downTarget = clamp((int) Math.ceil(needed / SCALE_DOWN_UTILISATION) - external);
+        if (upTarget > current) {
+            return decide(current, upTarget, false);
+        }
+        if (downTarget < current) {
+            // 每次只减少一个，避免估算偏低时一次缩得太多
+            return decide(current, current - 1, true);
+        }
+        // 在不动作的区间内，清空投票
+        scaleUpVotes = 0;
+        scaleDownVotes = 0;
+        return current;
+    }
+
+    /**
+     * 估算需要的总并发数（包括其他进程中的消费者）
+     */
+    private double neededConcurrency(long depth, long previousDepth, int brokerConsumers, int current,
+            long processed, double intervalSeconds) {
+        double localRate = processed / intervalSeconds;
+        // 其他进程中的消费者按与本组相同的速度估算
+        int total = Math.max(brokerConsumers, current);
+        double totalRate = current == 0 ? 0 : localRate * total / current;
+        // 积压增长说明到达速率高于处理速率
+        double arrivalRate = Math.max(0, totalRate + (depth - previousDepth) / intervalSeconds);
+        double latencySeconds = lastMeanLatencyNanos / 1_000_000_000.0;
+        return (arrivalRate + depth / targetDrainSeconds) * latencySeconds;
+    }
+
+    private int decide(int current, int target, boolean down) {
+        if (target == current) {
+            scaleUpVotes = 0;
+            scaleDownVotes = 0;
+            return current;
+        }
+        if (down) {
+            scaleUpVotes = 0;
+            if (++scaleDownVotes < SCALE_DOWN_CONFIRMATIONS) {
+                return current;
+            }
+        } else {
+            scaleDownVotes = 0;
+            if (++scaleUpVotes < SCALE_UP_CONFIRMATIONS) {
+                return current;
+            }
+        }
+        scaleUpVotes = 0;
+        scaleDownVotes = 0;
+        cooldown = COOLDOWN_POLLS;
+        if (down) {
+            scaleDownCount++;
+        } else {
+            scaleUpCount++;
+        }
+        return target;
+    }
+
+    private int clamp(int consumers) {
+        return Math.max(minConsumers, Math.min(maxConsumers, consumers));
+    }
+
+    private void logDecision(String action, int current, int target, AMQP.Queue.DeclareOk state,
+            LatencyHistogram interval, double intervalSeconds) {
+        System.out.printf("[自动扩缩容] %s %d -> %d, 积压: %d, Broker消费者: %d, 处理速率: %.1f 条/秒, "
+                        + "平均处理耗时: %.1f 毫秒, p99: %.1f 毫秒, 累计扩容 %d 次, 缩容 %d 次\n",
+                action, current, target, state.getMessageCount(), state.getConsumerCount(),
+                interval.getCount() / intervalSeconds, lastMeanLatencyNanos / 1000000.0,
+                interval.getValueAtPercentile(99) / 1000000.0, scaleUpCount, scaleDownCount);
+    }
+
+    /**
+     * 增加或减少消费者，直到数量等于 target
+     */
+    private void scaleTo(int target) throws IOException, TimeoutException {
+        while (getConsumerCount() < target) {
+            addMember();
+        }
+        while (getConsumerCount() > target) {
+            Member member;
+            synchronized (members) {
+                member = members.remove(members.size() - 1);
+            }
+            stopMember(member);
+        }
+    }
+
+    private void addMember() throws IOException, TimeoutException {
+        Channel channel;
+        try {
+            channel = channelPool.borrowChannel(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待通道时被中断", e);
+        }
+        Member member = new Member(channel, ++nextMemberId);
+        try {
+            channel.basicQos(prefetch);
+            member.consumerTag = channel.basicConsume(queue, false, member);
+        } catch (IOException | RuntimeException e) {
+            member.worker.shutdownNow();
+            // 修改过通道状态，不能归还给其他借用方
+            channelPool.invalidateChannel(channel);
+            throw e;
+        }
+        synchronized (members) {
+            members.add(member);
+        }
+    }
+
+    /**
+     * 取消消费，等待 cancel-ok 和正在处理的消息完成后丢弃通道，未确认的预取消息由Broker重新投递
+     *
+     * cancel-ok 之前投递线程上可能还有消息在途，必须等到 cancel-ok 之后才能关闭处理线程
+     */
+    private void stopMember(Member member) {
+        try {
+            if (member.getChannel().isOpen()) {
+                member.getChannel().basicCancel(member.consumerTag);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[自动扩缩容] 取消消费者 " + member.id + " 失败: " + e.getMessage());
+        }
+        try {
+            if (!member.cancelled.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("[自动扩缩容] 等待消费者 " + member.id + " 取消确认超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        member.worker.shutdown();
+        try {
+            if (!member.worker.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("[自动扩缩容] 等待消费者 " + member.id + " 处理完成超时");
+                member.worker.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channelPool.invalidateChannel(member.getChannel());
+    }
+
+    /**
+     * @return 本组当前的消费者数
+     */
+    public int getConsumerCount() {
+        synchronized (members) {
+            return members.size();
+        }
+    }
+
+    /**
+     * 打印处理和扩缩容统计信息
+     */
+    public void printStats() {
+        System.out.printf("[自动扩缩容] 消费者: %d (范围 %d-%d), 成功: %d, 失败: %d, 扩容 %d 次, 缩容 %d 次\n",
+                getConsumerCount(), minConsumers, maxConsumers, processedCount.get(), failedCount.get(),
+                scaleUpCount, scaleDownCount);
+        latency.printSummary("自动扩缩容 处理耗时");
+    }
+
+    /**
+     * 停止采样，逐个停止所有消费者
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            scaleTo(0);
+        } catch (IOException | TimeoutException e) {
+            System.err.println("[自动扩缩容] 停止消费者失败: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException {
+        ChannelPool pool = RabbitMQUtils.getChannelPool();
+
+        // 声明持久化队列（与生产者保持一致）
+        Channel channel = pool.borrowChannel();
+        channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+        pool.returnChannel(channel);
+
+        // 1到16个消费者，每个预取1条（与 WorkQueueConsumer 相同），积压目标在10秒内消化，每秒采样一次
+        AutoscalingConsumerGroup group = new AutoscalingConsumerGroup(pool, QUEUE_NAME, 1, 16, 1, 10, 1000,
+                (envelope, properties, body) -> {
+                    String message = new String(body, "UTF-8");
+                    System.out.println("[" + Thread.currentThread().getName() + "] 接收到消息: '" + message + "'");
+                    // 模拟处理消息的耗时操作（1秒）
+                    Thread.sleep(1000);
+                });
+        group.start();
+        System.out.println("[自动扩缩容] 等待接收消息，消费者数会随积压自动调整");
+
+        // 保持程序运行
+        System.out.println("按回车键结束程序...");
+        try {
+            System.in.read();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            group.close();
+            group.printStats();
+            pool.printStats();
+            pool.close();
+        }
+    }
+}
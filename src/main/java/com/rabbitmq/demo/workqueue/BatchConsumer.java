@@ -0,0 +1,281 @@
+package com.rabbitmq.demo.workqueue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量消费者
+ *
+ * 处理函数需要写数据库时，逐条插入的开销很大。本类把投递攒成一批后一次交给处理函数：
+ * 1. 投递先放入本地队列，由一个批处理线程收集，达到 maxBatchSize 条或第一条消息等待超过
+ *    maxLingerMillis 时交给处理函数，投递线程不会被处理函数阻塞
+ * 2. 处理成功时用一次 basicAck(最后一条的标签, multiple=true) 确认整批消息
+ * 3. 处理失败（抛出异常）时逐条 basicNack，可以选择重新入队或转发到死信队列
+ * 4. 预取数设为两批的大小，处理当前批次时下一批可以同时到达
+ * 5. close() 先取消消费并等待 Broker 的 cancel-ok，之后不会再有新的投递，
+ *    再通知批处理线程处理完已收到的消息后退出
+ *
+ * 注意事项：
+ * - 批次按投递顺序依次处理，前一批确认或拒绝之后才会处理下一批，
+ *   因此 multiple=true 的确认只会覆盖当前批次的消息
+ * - 通道上只能有这一个消费者
+ */
+public class BatchConsumer extends DefaultConsumer implements AutoCloseable {
+    // 工作队列名称（与 WorkQueueProducer 一致）
+    private static final String QUEUE_NAME = "work_queue";
+    // 演示使用的最大批量大小
+    private static final int MAX_BATCH_SIZE = 100;
+    // 演示使用的最长等待时间（毫秒）
+    private static final long MAX_LINGER_MILLIS = 200;
+    // close() 等待取消确认和批处理线程退出的超时时间（秒）
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * 批量处理函数，在批处理线程上调用，抛出异常表示整批处理失败
+     */
+    public interface BatchHandler {
+        void handle(List<Delivery> batch) throws Exception;
+    }
+
+    // 通知批处理线程退出的标记
+    private static final Delivery STOP = new Delivery(null, null, null);
+
+    // 最大批量大小
+    private final int maxBatchSize;
+    // 第一条消息最长等待时间（纳秒）
+    private final long maxLingerNanos;
+    // 处理失败的消息是否重新入队
+    private final boolean requeueOnFailure;
+    // 批量处理函数
+    private final BatchHandler handler;
+    // 已收到、尚未交给处理函数的投递
+    private final LinkedBlockingQueue<Delivery> pending = new LinkedBlockingQueue<>();
+    // 批处理线程
+    private final Thread batchThread;
+    // 消费者标签
+    private volatile String consumerTag;
+    // 收到 cancel-ok（或消费被 Broker 取消、通道关闭）后打开
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+
+    // 处理的批次数
+    private final AtomicLong batchCount = new AtomicLong();
+    // 因达到批量大小而处理的批次数
+    private final AtomicLong fullBatchCount = new AtomicLong();
+    // 处理成功的消息数
+    private final AtomicLong ackedCount = new AtomicLong();
+    // 处理失败的消息数
+    private final AtomicLong nackedCount = new AtomicLong();
+
+    /**
+     * 创建批量消费者，并在通道上设置预取数
+     *
+     * @param channel          消费通道
+     * @param maxBatchSize     最大批量大小
+     * @param maxLingerMillis  第一条消息最长等待时间（毫秒）
+     * @param requeueOnFailure 处理失败的消息是否重新入队
+     * @param handler          批量处理函数
+     * @throws IOException IO 异常
+     */
+    public BatchConsumer(Channel channel, int maxBatchSize, long maxLingerMillis, boolean requeueOnFailure,
+            BatchHandler handler) throws IOException {
+        super(channel);
+        if (maxBatchSize <= 0 || maxLingerMillis < 0) {
+            throw new IllegalArgumentException("批量参数不合法");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        this.requeueOnFailure = requeueOnFailure;
+        this.handler = handler;
+        this.batchThread = new Thread(this::runBatches, "batch-consumer");
+
+        channel.basicQos(maxBatchSize * 2);
+    }
+
+    /**
+     * 开始消费
+     *
+     * @param queue 队列名称
+     * @throws IOException IO 异常
+     */
+    public void start(String queue) throws IOException {
+        batchThread.start();
+        consumerTag = getChannel().basicConsume(queue, false, this);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        pending.add(new Delivery(envelope, properties, body));
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        cancelled.countDown();
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+        cancelled.countDown();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        cancelled.countDown();
+    }
+
+    private void runBatches() {
+        List<Delivery> batch = new ArrayList<>(maxBatchSize);
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                // 等待这一批的第一条消息
+                Delivery first = pending.take();
+                if (first == STOP) {
+                    return;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxLingerNanos;
+
+                // 继续收集，直到达到批量大小或超过等待时间
+                while (batch.size() < maxBatchSize) {
+                    Delivery next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == STOP) {
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                processBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void processBatch(List<Delivery> batch) {
+        batchCount.incrementAndGet();
+        if (batch.size() == maxBatchSize) {
+            fullBatchCount.incrementAndGet();
+        }
+        long lastTag = batch.get(batch.size() - 1).getEnvelope().getDeliveryTag();
+        try {
+            handler.handle(batch);
+        } catch (Exception e) {
+            System.err.println("[批量消费者] 处理 " + batch.size() + " 条消息失败，逐条拒绝: " + e.getMessage());
+            rejectIndividually(batch);
+            return;
+        }
+        try {
+            // 之前的批次都已确认或拒绝，multiple=true 只会覆盖这一批
+            getChannel().basicAck(lastTag, true);
+            ackedCount.addAndGet(batch.size());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[批量消费者] 确认失败，消息将被重新投递: " + e.getMessage());
+        }
+    }
+
+    private void rejectIndividually(List<Delivery> batch) {
+        for (Delivery delivery : batch) {
+            try {
+                getChannel().basicNack(delivery.getEnvelope().getDeliveryTag(), false, requeueOnFailure);
+                nackedCount.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[批量消费者] 拒绝消息失败: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * 打印批量处理统计信息
+     */
+    public void printStats() {
+        long batches = batchCount.get();
+        System.out.printf("[批量消费者] 批次: %d (满批 %d, 超时 %d), 平均批量: %.1f, 确认: %d, 拒绝: %d\n",
+                batches, fullBatchCount.get(), batches - fullBatchCount.get(),
+                batches == 0 ? 0 : (ackedCount.get() + nackedCount.get()) / (double) batches,
+                ackedCount.get(), nackedCount.get());
+    }
+
+    /**
+     * 取消消费，等待 cancel-ok 后处理完已收到的消息并停止批处理线程
+     *
+     * cancel-ok 之前投递线程上可能还有消息在途，提前放入 STOP 会让这些消息排在 STOP 之后无人处理
+     */
+    @Override
+    public void close() {
+        try {
+            if (consumerTag != null && getChannel().isOpen()) {
+                getChannel().basicCancel(consumerTag);
+            }
+        } catch (IOException e) {
+            System.err.println("[批量消费者] 取消消费失败: " + e.getMessage());
+        }
+        try {
+            if (consumerTag != null && !cancelled.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("[批量消费者] 等待取消确认超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pending.add(STOP);
+        try {
+            batchThread.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException {
+        // 获取 RabbitMQ 连接
+        Connection connection = RabbitMQUtils.getConnection();
+        // 创建通道
+        Channel channel = connection.createChannel();
+
+        // 声明持久化队列（与生产者保持一致）
+        channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+
+        BatchConsumer consumer = new BatchConsumer(channel, MAX_BATCH_SIZE, MAX_LINGER_MILLIS, false, batch -> {
+            System.out.println("[批量消费者] 收到一批消息: " + batch.size() + " 条, 第一条: '"
+                    + new String(batch.get(0).getBody(), "UTF-8") + "'");
+            // 模拟一次批量写入数据库（50毫秒），而不是每条消息写一次
+            Thread.sleep(50);
+        });
+        consumer.start(QUEUE_NAME);
+        System.out.println("[批量消费者] 等待接收消息，最大批量: " + MAX_BATCH_SIZE + ", 最长等待: "
+                + MAX_LINGER_MILLIS + " 毫秒");
+
+        // 保持程序运行
+        System.out.println("按回车键结束程序...");
+        try {
+            System.in.read();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            consumer.close();
+            consumer.printStats();
+            // 关闭通道和连接
+            RabbitMQUtils.closeChannel(channel);
+            RabbitMQUtils.closeConnection(connection);
+        }
+    }
+}
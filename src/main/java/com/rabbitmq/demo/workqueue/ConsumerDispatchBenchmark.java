@@ -0,0 +1,145 @@
+package com.rabbitmq.demo.workqueue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 消费者分发方式基准测试
+ *
+ * 不需要启动RabbitMQ服务器，用一个投递线程模拟Broker的投递：
+ * - 处理函数与 WorkQueueConsumer 一样阻塞在IO上（缩短为 IO_MILLIS 毫秒的 sleep）
+ * - 用信号量模拟 basicQos：未确认（处理中或排队）的消息数达到预取数时投递线程等待
+ *
+ * 比较三种分发方式的吞吐量、最大并发数和平台线程峰值（并发数低的方式处理的消息数相应减少）：
+ * 1. 串行：在投递线程上直接处理（WorkQueueConsumer1/2 的方式）
+ * 2. 固定线程池：工作线程数与CPU核数相同（WorkerPoolConsumer 的方式）
+ * 3. 每条消息一个线程：并发数只受预取数限制（WorkerPoolConsumer.threadPerTask 的方式），
+ *    运行在 Java 21 及以上版本时为虚拟线程
+ */
+public class ConsumerDispatchBenchmark {
+    // 每轮最多处理的消息数
+    private static final int MESSAGE_COUNT = 20_000;
+    // 每个并发处理位置处理的消息数，并发数低的方式处理的消息少一些，避免运行太久
+    private static final int MESSAGES_PER_SLOT = 200;
+    // 每条消息阻塞在IO上的时间（毫秒）
+    private static final long IO_MILLIS = 10;
+    // 每条消息一个线程时的预取数
+    private static final int THREAD_PER_TASK_PREFETCH = 2000;
+    // 预热轮数
+    private static final int WARMUP_ROUNDS = 1;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("=== 消费者分发方式基准测试 ===");
+        System.out.printf("Java %s, CPU核数 %d, 每条消息IO耗时 %d 毫秒, 虚拟线程: %s\n",
+                System.getProperty("java.version"), cores, IO_MILLIS,
+                ConsumerThreads.isVirtual() ? "是" : "否（需要 Java 21 及以上版本）");
+
+        int serialCount = MESSAGES_PER_SLOT;
+        int poolCount = Math.min(MESSAGE_COUNT, cores * MESSAGES_PER_SLOT);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runPool(newFixedPool(cores), cores * 2, poolCount / 10);
+            runPool(ConsumerThreads.newThreadPerTaskExecutor("bench-task-"), THREAD_PER_TASK_PREFETCH,
+                    MESSAGE_COUNT / 10);
+        }
+
+        double serialRate = report("串行（投递线程上处理）", 1, serialCount, runSerial(serialCount));
+        double poolRate = report("固定线程池（" + cores + " 个工作线程）", cores * 2, poolCount,
+                runPool(newFixedPool(cores), cores * 2, poolCount));
+        double perTaskRate = report("每条消息一个" + (ConsumerThreads.isVirtual() ? "虚拟线程" : "平台线程"),
+                THREAD_PER_TASK_PREFETCH, MESSAGE_COUNT,
+                runPool(ConsumerThreads.newThreadPerTaskExecutor("bench-task-"), THREAD_PER_TASK_PREFETCH,
+                        MESSAGE_COUNT));
+
+        System.out.printf("\n每条消息一个线程的吞吐量是串行的 %.0f 倍，是固定线程池的 %.1f 倍\n",
+                perTaskRate / serialRate, perTaskRate / poolRate);
+    }
+
+    /**
+     * 一轮测试的结果
+     */
+    private static final class Result {
+        long elapsedNanos;
+        int peakConcurrency;
+        int peakPlatformThreads;
+    }
+
+    private static Result runSerial(int count) throws InterruptedException {
+        THREADS.resetPeakThreadCount();
+        Result result = new Result();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            handle();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.peakConcurrency = 1;
+        result.peakPlatformThreads = THREADS.getPeakThreadCount();
+        return result;
+    }
+
+    private static Result runPool(ExecutorService executor, int prefetch, int count) throws InterruptedException {
+        THREADS.resetPeakThreadCount();
+        Result result = new Result();
+        // 预取额度：投递前获取，处理完成（确认）后释放
+        Semaphore credits = new Semaphore(prefetch);
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            credits.acquire();
+            executor.execute(() -> {
+                int now = active.incrementAndGet();
+                peak.accumulateAndGet(now, Math::max);
+                try {
+                    handle();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    active.decrementAndGet();
+                    credits.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.peakConcurrency = peak.get();
+        result.peakPlatformThreads = THREADS.getPeakThreadCount();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return result;
+    }
+
+    private static ExecutorService newFixedPool(int workers) {
+        AtomicInteger index = new AtomicInteger();
+        return new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * 2), r -> new Thread(r, "bench-pool-" + index.incrementAndGet()));
+    }
+
+    /**
+     * 模拟阻塞在IO上的处理函数
+     */
+    private static void handle() throws InterruptedException {
+        Thread.sleep(IO_MILLIS);
+    }
+
+    private static double report(String name, int prefetch, int count, Result result) {
+        double rate = count / (result.elapsedNanos / 1_000_000_000.0);
+        System.out.printf("\n--- %s ---\n预取数: %d, 消息数: %d, 耗时: %.0f 毫秒, 吞吐量: %.0f 条/秒\n"
+                        + "最大并发处理数: %d, 平台线程峰值: %d\n",
+                name, prefetch, count, result.elapsedNanos / 1000000.0, rate, result.peakConcurrency,
+                result.peakPlatformThreads);
+        return rate;
+    }
+}
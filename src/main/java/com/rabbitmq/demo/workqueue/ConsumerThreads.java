@@ -0,0 +1,97 @@
+package com.rabbitmq.demo.workqueue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 消费者处理线程的创建方式
+ *
+ * 项目以 Java 8 为目标编译，虚拟线程的 API 在运行时通过反射查找：
+ * 1. 运行在 Java 21 及以上版本时，每个任务使用一个虚拟线程
+ *    （Thread.ofVirtual() + Executors.newThreadPerTaskExecutor()），
+ *    处理函数阻塞在IO上时让出载体线程，少量平台线程就可以同时运行成千上万个处理函数
+ * 2. 其他版本（或虚拟线程仍是预览特性且没有启用）时，每个任务使用一个新的平台线程
+ * 3. 反射只在类初始化时执行一次，之后创建执行器不再查找方法
+ *
+ * 注意事项：
+ * - 无论从JAR、target/classes 还是 mvn exec:java 运行都一样生效，只取决于运行时的 Java 版本
+ * - 并发数需要由调用方限制（例如通过 basicQos 限制未确认的消息数）
+ */
+public final class ConsumerThreads {
+    // Thread.ofVirtual()，运行时不支持虚拟线程时为 null
+    private static final Method OF_VIRTUAL;
+    // Thread.Builder.name(String, long)
+    private static final Method BUILDER_NAME;
+    // Thread.Builder.factory()
+    private static final Method BUILDER_FACTORY;
+    // Executors.newThreadPerTaskExecutor(ThreadFactory)
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // Java 19/20 中虚拟线程是预览特性，没有 --enable-preview 时这里会抛出 UnsupportedOperationException
+            ofVirtual.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private ConsumerThreads() {
+    }
+
+    /**
+     * @return 当前运行环境是否使用虚拟线程
+     */
+    public static boolean isVirtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 创建每个任务一个线程的执行器：支持虚拟线程时为虚拟线程，否则为平台线程
+     *
+     * @param namePrefix 线程名前缀
+     * @return 执行器
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        if (OF_VIRTUAL != null) {
+            return newVirtualThreadPerTaskExecutor(namePrefix);
+        }
+        AtomicInteger index = new AtomicInteger();
+        // SynchronousQueue + 无上限的线程数：每个任务都会立即得到一个线程，空闲线程60秒后回收
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, namePrefix + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, namePrefix, 1L);
+            ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("创建虚拟线程执行器失败", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("创建虚拟线程执行器失败", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.rabbitmq.demo.workqueue;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按键保序的执行器
+ *
+ * 在线程池之上增加一层按键串行化：
+ * 1. 不同键的任务在线程池中并行执行
+ * 2. 相同键的任务按提交顺序依次执行，同一时刻最多只有一个在执行
+ * 3. 每个活跃的键有一个待执行队列，队列执行完后立即从表中删除，
+ *    空闲的键不占用内存，活跃键的数量不超过在途任务数（消费者中即预取数）
+ * 4. 一个键连续执行 MAX_TASKS_PER_TURN 个任务后重新排到线程池队尾，
+ *    热点键不会长期占住工作线程而让其他键饿死
+ *
+ * 注意事项：
+ * - 任务抛出的异常不会中断该键后续任务的执行，任务应自行处理异常
+ */
+public class KeyOrderedExecutor implements Executor {
+    // 一个键每轮最多连续执行的任务数
+    private static final int MAX_TASKS_PER_TURN = 16;
+
+    // 底层线程池
+    private final Executor executor;
+    // 活跃键的待执行队列
+    private final ConcurrentMap<String, KeyQueue> queues = new ConcurrentHashMap<>();
+    // 活跃键数量的峰值
+    private final AtomicInteger peakActiveKeys = new AtomicInteger();
+
+    /**
+     * 一个键的待执行队列，只在 ConcurrentHashMap 对该键的原子操作中访问
+     */
+    private static final class KeyQueue {
+        final String key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        KeyQueue(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 创建按键保序的执行器
+     *
+     * @param executor 底层线程池
+     */
+    public KeyOrderedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 提交一个任务，相同键的任务按提交顺序执行
+     *
+     * @param key  顺序键，为 null 时不保序，直接提交到线程池
+     * @param task 任务
+     */
+    public void execute(String key, Runnable task) {
+        if (key == null) {
+            executor.execute(task);
+            return;
+        }
+        KeyQueue[] created = new KeyQueue[1];
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                // 键从空闲变为活跃，需要安排执行
+                queue = new KeyQueue(k);
+                created[0] = queue;
+            }
+            queue.tasks.add(task);
+            return queue;
+        });
+        if (created[0] != null) {
+            updatePeak();
+            executor.execute(() -> drain(created[0]));
+        }
+    }
+
+    /**
+     * 不保序地提交任务
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * @return 当前活跃（有待执行或正在执行的任务）的键数
+     */
+    public int getActiveKeyCount() {
+        return queues.size();
+    }
+
+    /**
+     * @return 活跃键数量的峰值
+     */
+    public int getPeakActiveKeyCount() {
+        return peakActiveKeys.get();
+    }
+
+    private void drain(KeyQueue queue) {
+        for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+            Runnable task = peek(queue);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("[按键保序] 键 " + queue.key + " 的任务执行失败: " + e.getMessage());
+            }
+            if (!removeHead(queue)) {
+                return;
+            }
+        }
+        // 还有任务，重新排队，让其他键也有机会执行
+        executor.execute(() -> drain(queue));
+    }
+
+    private Runnable peek(KeyQueue queue) {
+        Runnable[] head = new Runnable[1];
+        queues.computeIfPresent(queue.key, (k, current) -> {
+            head[0] = current.tasks.peek();
+            return current;
+        });
+        return head[0];
+    }
+
+    /**
+     * 移除已执行的任务，队列为空时删除这个键
+     *
+     * @return 是否还有待执行的任务
+     */
+    private boolean removeHead(KeyQueue queue) {
+        boolean[] more = new boolean[1];
+        queues.computeIfPresent(queue.key, (k, current) -> {
+            current.tasks.poll();
+            more[0] = !current.tasks.isEmpty();
+            return more[0] ? current : null;
+        });
+        return more[0];
+    }
+
+    private void updatePeak() {
+        int active = queues.size();
+        int peak;
+        while (active > (peak = peakActiveKeys.get())) {
+            if (peakActiveKeys.compareAndSet(peak, active)) {
+                return;
+            }
+        }
+    }
+}
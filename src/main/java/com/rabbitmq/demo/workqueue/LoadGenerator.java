@@ -0,0 +1,370 @@
+package com.rabbitmq.demo.workqueue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 工作队列压测生成器
+ *
+ * WorkQueueProducer 默认每隔500毫秒发送一条消息，无法说明队列的承载能力。本类按配置持续发送消息：
+ * 1. 每个发送线程使用独立的连接和通道，并有自己的令牌桶，总速率为 rate，rate=0 表示不限速
+ * 2. 达到消息数 count 或持续时间 duration（秒）时停止，以先到者为准
+ * 3. 消息体大小按分布生成：fixed（固定 size）、uniform（size 到 maxSize 均匀分布）、
+ *    bimodal（90% 为 size，10% 为 maxSize，模拟少量大消息）
+ * 4. persistent=true 时使用持久化投递模式（deliveryMode=2），否则为非持久化（deliveryMode=1）
+ * 5. 每秒输出一次目标速率、实际速率和队列积压，结束时输出实际速率与目标速率的比例
+ *
+ * 参数格式为 key=value，例如：
+ * rate=20000 duration=60 threads=4 size=256 maxSize=4096 dist=bimodal persistent=true
+ *
+ * 注意事项：
+ * - 没有开启发布确认，实际速率是客户端写出的速率；Broker 来不及处理时会通过流控阻塞发送，
+ *   实际速率低于目标速率或队列积压持续增长时，说明已经达到饱和点
+ * - 消息体在启动时预先生成并循环使用，发送过程中不分配消息体
+ */
+public class LoadGenerator {
+    // 工作队列名称
+    private static final String QUEUE_NAME = "work_queue";
+    // 每个线程预先生成的消息体数量
+    private static final int PAYLOAD_POOL_SIZE = 1024;
+    // 令牌桶最多积累多少毫秒的令牌（允许的突发量）
+    private static final long BURST_MILLIS = 10;
+    // 进度输出间隔（毫秒）
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * 压测参数
+     */
+    public static final class Options {
+        // 目标总速率（条/秒），0 表示不限速
+        long rate = 10_000;
+        // 消息总数，0 表示不限
+        long count;
+        // 持续时间（秒），0 表示不限
+        long durationSeconds;
+        // 发送线程数
+        int threads = 1;
+        // 消息体大小（字节）和分布的上限
+        int size = 256;
+        int maxSize = 4096;
+        // 消息体大小的分布：fixed、uniform、bimodal
+        String distribution = "fixed";
+        // 是否持久化投递
+        boolean persistent;
+
+        /**
+         * 解析 key=value 形式的参数，没有指定消息数和持续时间时默认发送 100000 条
+         *
+         * @param args 参数
+         * @return 压测参数
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("参数格式应为 key=value: " + arg);
+                }
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "rate":
+                        options.rate = Long.parseLong(value);
+                        break;
+                    case "count":
+                        options.count = Long.parseLong(value);
+                        break;
+                    case "duration":
+                        options.durationSeconds = Long.parseLong(value);
+                        break;
+                    case "threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "size":
+                        options.size = Integer.parseInt(value);
+                        break;
+                    case "maxSize":
+                        options.maxSize = Integer.parseInt(value);
+                        break;
+                    case "dist":
+                        options.distribution = value;
+                        break;
+                    case "persistent":
+                        options.persistent = Boolean.parseBoolean(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("未知参数: " + key);
+                }
+            }
+            if (options.count == 0 && options.durationSeconds == 0) {
+                options.count = 100_000;
+            }
+            if (options.rate < 0 || options.threads <= 0 || options.size <= 0 || options.maxSize < options.size) {
+                throw new IllegalArgumentException("速率、线程数或消息大小不合法");
+            }
+            if (!"fixed".equals(options.distribution) && !"uniform".equals(options.distribution)
+                    && !"bimodal".equals(options.distribution)) {
+                throw new IllegalArgumentException("未知的消息大小分布: " + options.distribution);
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("目标速率: %s, 消息数: %s, 持续时间: %s, 线程数: %d, 消息大小: %s, 投递模式: %s",
+                    rate == 0 ? "不限" : rate + " 条/秒", count == 0 ? "不限" : String.valueOf(count),
+                    durationSeconds == 0 ? "不限" : durationSeconds + " 秒", threads,
+                    "fixed".equals(distribution) ? size + " 字节" : distribution + " " + size + "-" + maxSize + " 字节",
+                    persistent ? "持久化" : "非持久化");
+        }
+    }
+
+    /**
+     * 单线程使用的令牌桶，令牌不足时停放线程等待补充
+     */
+    public static final class TokenBucket {
+        // 每个令牌的间隔（纳秒）
+        private final double nanosPerToken;
+        // 桶的容量
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+
+        public TokenBucket(double ratePerSecond) {
+            this.nanosPerToken = 1_000_000_000.0 / ratePerSecond;
+            this.capacity = Math.max(1, ratePerSecond * BURST_MILLIS / 1000.0);
+            this.tokens = 1;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        /**
+         * 取得一个令牌，必要时等待
+         */
+        public void acquire() {
+            while (true) {
+                long now = System.nanoTime();
+                tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / nanosPerToken);
+                lastRefillNanos = now;
+                if (tokens >= 1) {
+                    tokens -= 1;
+                    return;
+                }
+                LockSupport.parkNanos((long) ((1 - tokens) * nanosPerToken));
+            }
+        }
+    }
+
+    // 压测参数
+    private final Options options;
+    // 已发送的消息数和字节数
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    // 发送失败的线程数
+    private final AtomicLong failedThreads = new AtomicLong();
+    // 停止时间（纳秒），0 表示不限
+    private volatile long deadlineNanos;
+    private volatile boolean stopped;
+    // run() 输出结果后计数归零
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * 创建压测生成器
+     *
+     * @param options 压测参数
+     */
+    public LoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * 按参数发送消息，发送完成后输出结果
+     *
+     * @throws IOException          IO 异常
+     * @throws TimeoutException     超时异常
+     * @throws InterruptedException 等待时被中断
+     */
+    public void run() throws IOException, TimeoutException, InterruptedException {
+        try {
+            publishAndReport();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void publishAndReport() throws IOException, TimeoutException, InterruptedException {
+        // 采样队列积压用的连接
+        Connection monitorConnection = RabbitMQUtils.getConnection();
+        Channel monitorChannel = monitorConnection.createChannel();
+        monitorChannel.queueDeclare(QUEUE_NAME, true, false, false, null);
+        System.out.println("[压测] " + options);
+
+        CountDownLatch done = new CountDownLatch(options.threads);
+        List<Thread> threads = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        deadlineNanos = options.durationSeconds == 0 ? 0
+                : startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        for (int i = 0; i < options.threads; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    runProducer(index);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-producer-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long lastCount = 0;
+        long lastNanos = startNanos;
+        while (!done.await(REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            long now = System.nanoTime();
+            long count = sentCount.get();
+            System.out.printf("[压测] 目标: %s, 实际: %.0f 条/秒, 已发送: %d, 队列积压: %d\n",
+                    options.rate == 0 ? "不限" : options.rate + " 条/秒",
+                    (count - lastCount) / ((now - lastNanos) / 1_000_000_000.0), count,
+                    queueDepth(monitorChannel));
+            lastCount = count;
+            lastNanos = now;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        printReport(System.nanoTime() - startNanos, queueDepth(monitorChannel));
+
+        RabbitMQUtils.closeChannel(monitorChannel);
+        RabbitMQUtils.closeConnection(monitorConnection);
+    }
+
+    /**
+     * 停止所有发送线程，并等待 run() 输出结果
+     *
+     * @param timeoutMillis 最长等待时间（毫秒）
+     */
+    public void stop(long timeoutMillis) {
+        stopped = true;
+        try {
+            finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runProducer(int index) {
+        Connection connection = null;
+        Channel channel = null;
+        try {
+            // 每个线程独立的连接，避免多个线程竞争同一个连接的写锁
+            connection = RabbitMQUtils.getConnection();
+            channel = connection.createChannel();
+            publishLoop(channel, index);
+        } catch (IOException | TimeoutException e) {
+            failedThreads.incrementAndGet();
+            System.err.println("[压测] 线程 " + index + " 发送失败: " + e.getMessage());
+        } finally {
+            RabbitMQUtils.closeChannel(channel);
+            RabbitMQUtils.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 在通道上按速率发送消息，直到达到消息数或持续时间
+     *
+     * @param channel 发送通道
+     * @param index   线程序号
+     * @throws IOException IO 异常
+     */
+    void publishLoop(Channel channel, int index) throws IOException {
+        // 消息总数和速率平均分给每个线程，余数分给前面的线程
+        long quota = options.count == 0 ? Long.MAX_VALUE
+                : options.count / options.threads + (index < options.count % options.threads ? 1 : 0);
+        TokenBucket bucket = options.rate == 0 ? null : new TokenBucket((double) options.rate / options.threads);
+        byte[][] payloads = generatePayloads(new Random(index));
+        // 属性对象不可变，所有消息共用一个
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType("application/octet-stream")
+                .deliveryMode(options.persistent ? 2 : 1)
+                .build();
+
+        for (long i = 0; i < quota && !stopped; i++) {
+            if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0) {
+                break;
+            }
+            if (bucket != null) {
+                bucket.acquire();
+            }
+            byte[] body = payloads[(int) (i % PAYLOAD_POOL_SIZE)];
+            channel.basicPublish("", QUEUE_NAME, properties, body);
+            sentCount.incrementAndGet();
+            sentBytes.addAndGet(body.length);
+        }
+    }
+
+    private byte[][] generatePayloads(Random random) {
+        byte[][] payloads = new byte[PAYLOAD_POOL_SIZE][];
+        for (int i = 0; i < payloads.length; i++) {
+            int length;
+            switch (options.distribution) {
+                case "uniform":
+                    length = options.size + random.nextInt(options.maxSize - options.size + 1);
+                    break;
+                case "bimodal":
+                    length = random.nextInt(10) == 0 ? options.maxSize : options.size;
+                    break;
+                default:
+                    length = options.size;
+                    break;
+            }
+            byte[] payload = new byte[length];
+            random.nextBytes(payload);
+            payloads[i] = payload;
+        }
+        return payloads;
+    }
+
+    private long queueDepth(Channel channel) {
+        try {
+            return channel.queueDeclarePassive(QUEUE_NAME).getMessageCount();
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void printReport(long elapsedNanos, long depth) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        long count = sentCount.get();
+        double achieved = count / seconds;
+        System.out.println("\n=== 压测结果 ===");
+        System.out.printf("发送: %d 条, %.1f MB, 耗时: %.2f 秒, 失败线程: %d\n",
+                count, sentBytes.get() / 1048576.0, seconds, failedThreads.get());
+        if (options.rate == 0) {
+            System.out.printf("实际速率: %.0f 条/秒 (不限速), %.1f MB/秒\n",
+                    achieved, sentBytes.get() / 1048576.0 / seconds);
+        } else {
+            System.out.printf("目标速率: %d 条/秒, 实际速率: %.0f 条/秒 (%.1f%%), %.1f MB/秒\n",
+                    options.rate, achieved, achieved * 100 / options.rate, sentBytes.get() / 1048576.0 / seconds);
+        }
+        System.out.println("结束时队列积压: " + depth + " 条"
+                + (options.rate != 0 && achieved < options.rate * 0.95 ? "，实际速率低于目标的95%，已达到发送端饱和" : ""));
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+        LoadGenerator generator = new LoadGenerator(Options.parse(args));
+        // Ctrl+C 时停止发送，仍然输出已发送部分的结果
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> generator.stop(REPORT_INTERVAL_MILLIS * 5)));
+        generator.run();
+    }
+}
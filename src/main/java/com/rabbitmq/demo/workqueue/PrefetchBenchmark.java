@@ -0,0 +1,206 @@
+package com.rabbitmq.demo.workqueue;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * 自适应预取基准测试
+ *
+ * 不需要启动RabbitMQ服务器，用模拟时钟下的离散事件模拟计算工作队列的消费过程：
+ * - Broker 按轮询方式把队列中的消息投递给未确认数小于预取数的消费者
+ * - 消息投递、确认和 basicQos 在网络上各需要半个往返时间
+ * - 每个消费者串行处理本地缓冲的消息，处理时间各不相同（带 ±20% 随机抖动）
+ *
+ * 分别使用固定预取数1（与 WorkQueueConsumer1/2 相同）、固定预取数200和自适应预取处理相同数量的消息，
+ * 比较总吞吐量、每个消费者处理的消息数以及消息在消费者本地缓冲中等待的最长时间（囤积程度）。
+ */
+public class PrefetchBenchmark {
+    // 队列中的消息数
+    private static final int MESSAGE_COUNT = 200_000;
+    // 网络往返时间（纳秒）
+    private static final long ROUND_TRIP_NANOS = 1_000_000;
+    // 各消费者的平均处理时间（纳秒）：两个快消费者、一个中等、一个慢消费者
+    private static final long[] HANDLE_NANOS = {50_000, 100_000, 400_000, 5_000_000};
+    // 固定的大预取数
+    private static final int LARGE_PREFETCH = 200;
+    // 自适应预取的范围
+    private static final int MIN_PREFETCH = 1;
+    private static final int MAX_PREFETCH = 500;
+
+    /**
+     * 模拟的消费者
+     */
+    private static final class Worker {
+        final int index;
+        final long handleNanos;
+        final AdaptivePrefetchController controller;
+        // Broker 看到的预取数
+        int prefetch;
+        // Broker 看到的未确认消息数
+        int unacked;
+        // 本地缓冲的消息到达时间
+        final ArrayDeque<Long> buffer = new ArrayDeque<>();
+        boolean busy;
+        long handleStart;
+        long handled;
+        long maxBufferedNanos;
+
+        Worker(int index, long handleNanos, int prefetch, AdaptivePrefetchController controller) {
+            this.index = index;
+            this.handleNanos = handleNanos;
+            this.prefetch = prefetch;
+            this.controller = controller;
+        }
+    }
+
+    /**
+     * 模拟事件
+     */
+    private static final class Event implements Comparable<Event> {
+        static final int DELIVERED = 0;
+        static final int HANDLED = 1;
+        static final int ACK_ARRIVED = 2;
+        static final int QOS_ARRIVED = 3;
+
+        final long time;
+        final int type;
+        final Worker worker;
+        final int value;
+
+        Event(long time, int type, Worker worker, int value) {
+            this.time = time;
+            this.type = type;
+            this.worker = worker;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return Long.compare(time, other.time);
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println("=== 自适应预取基准测试（模拟时钟） ===");
+        System.out.printf("往返时间 %.1f 毫秒, %d 条消息, 消费者平均处理时间:", ROUND_TRIP_NANOS / 1000000.0,
+                MESSAGE_COUNT);
+        for (long nanos : HANDLE_NANOS) {
+            System.out.printf(" %.2f", nanos / 1000000.0);
+        }
+        System.out.println(" 毫秒");
+
+        double fixedRate = run("固定预取数 1", 1, false);
+        run("固定预取数 " + LARGE_PREFETCH, LARGE_PREFETCH, false);
+        double adaptiveRate = run("自适应预取", MIN_PREFETCH, true);
+        System.out.printf("\n自适应预取的吞吐量是固定预取数1的 %.1f 倍\n", adaptiveRate / fixedRate);
+    }
+
+    /**
+     * @return 吞吐量（条/秒）
+     */
+    private static double run(String name, int prefetch, boolean adaptive) {
+        Random random = new Random(42);
+        Worker[] workers = new Worker[HANDLE_NANOS.length];
+        for (int i = 0; i < workers.length; i++) {
+            AdaptivePrefetchController controller = adaptive
+                    ? new AdaptivePrefetchController(MIN_PREFETCH, MAX_PREFETCH) : null;
+            workers[i] = new Worker(i, HANDLE_NANOS[i], prefetch, controller);
+        }
+
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        int remaining = MESSAGE_COUNT;
+        int nextWorker = 0;
+        long processed = 0;
+        long clock = 0;
+
+        // 开始时先按预取数投递
+        remaining = dispatch(workers, events, remaining, nextWorker, 0);
+
+        while (processed < MESSAGE_COUNT) {
+            Event event = events.poll();
+            clock = event.time;
+            Worker worker = event.worker;
+            switch (event.type) {
+                case Event.DELIVERED:
+                    worker.buffer.add(clock);
+                    startNext(worker, events, clock, random);
+                    break;
+                case Event.HANDLED:
+                    worker.busy = false;
+                    worker.handled++;
+                    processed++;
+                    if (worker.controller != null && worker.controller.onHandleEnd(worker.handleStart, clock)) {
+                        events.add(new Event(clock + ROUND_TRIP_NANOS / 2, Event.QOS_ARRIVED, worker,
+                                worker.controller.getCurrentPrefetch()));
+                    }
+                    events.add(new Event(clock + ROUND_TRIP_NANOS / 2, Event.ACK_ARRIVED, worker, 0));
+                    startNext(worker, events, clock, random);
+                    break;
+                case Event.ACK_ARRIVED:
+                    worker.unacked--;
+                    break;
+                case Event.QOS_ARRIVED:
+                    worker.prefetch = event.value;
+                    break;
+                default:
+                    break;
+            }
+            if (event.type == Event.ACK_ARRIVED || event.type == Event.QOS_ARRIVED) {
+                nextWorker = (nextWorker + 1) % workers.length;
+                remaining = dispatch(workers, events, remaining, nextWorker, clock);
+            }
+        }
+
+        double rate = MESSAGE_COUNT / (clock / 1_000_000_000.0);
+        System.out.printf("\n--- %s ---\n吞吐量: %.0f 条/秒, 总耗时 %.1f 毫秒\n", name, rate, clock / 1000000.0);
+        for (Worker worker : workers) {
+            System.out.printf("  消费者 %d (%.2f 毫秒/条): 处理 %6d 条 (%4.1f%%), 本地缓冲最长等待 %.1f 毫秒",
+                    worker.index, worker.handleNanos / 1000000.0, worker.handled,
+                    worker.handled * 100.0 / MESSAGE_COUNT, worker.maxBufferedNanos / 1000000.0);
+            if (worker.controller != null) {
+                System.out.printf(", 最终预取数 %d", worker.controller.getCurrentPrefetch());
+            }
+            System.out.println();
+        }
+        return rate;
+    }
+
+    /**
+     * Broker 从 start 开始轮询，把消息投递给还有预取额度的消费者
+     *
+     * @return 队列中剩余的消息数
+     */
+    private static int dispatch(Worker[] workers, PriorityQueue<Event> events, int remaining, int start,
+            long clock) {
+        boolean delivered = true;
+        while (remaining > 0 && delivered) {
+            delivered = false;
+            for (int i = 0; i < workers.length && remaining > 0; i++) {
+                Worker worker = workers[(start + i) % workers.length];
+                if (worker.unacked < worker.prefetch) {
+                    worker.unacked++;
+                    remaining--;
+                    delivered = true;
+                    events.add(new Event(clock + ROUND_TRIP_NANOS / 2, Event.DELIVERED, worker, 0));
+                }
+            }
+        }
+        return remaining;
+    }
+
+    private static void startNext(Worker worker, PriorityQueue<Event> events, long clock, Random random) {
+        if (worker.busy || worker.buffer.isEmpty()) {
+            return;
+        }
+        long arrived = worker.buffer.poll();
+        worker.maxBufferedNanos = Math.max(worker.maxBufferedNanos, clock - arrived);
+        worker.busy = true;
+        worker.handleStart = clock;
+        if (worker.controller != null) {
+            worker.controller.onHandleStart(clock);
+        }
+        long handleNanos = (long) (worker.handleNanos * (0.8 + 0.4 * random.nextDouble()));
+        events.add(new Event(clock + handleNanos, Event.HANDLED, worker, 0));
+    }
+}
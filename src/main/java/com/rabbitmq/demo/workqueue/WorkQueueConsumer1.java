@@ -1,6 +1,7 @@
 package com.rabbitmq.demo.workqueue;
 
 import com.rabbitmq.client.*;
+import com.rabbitmq.demo.utils.AckCoalescer;
 import com.rabbitmq.demo.utils.RabbitMQUtils;
 
 import java.io.IOException;
@@ -10,10 +11,18 @@ import java.util.concurrent.TimeoutException;
  * 工作队列模式的消费者1
  * 工作队列模式允许多个消费者共同处理队列中的消息
  * 此消费者模拟较慢的处理速度
+ *
+ * 启动参数为 adaptive 时使用自适应预取（AdaptivePrefetchController），
+ * 根据处理时间和往返时间自动调整预取数，并通过 AckCoalescer 合并确认；否则使用 basicQos(1) 逐条确认
  */
 public class WorkQueueConsumer1 {
     // 工作队列名称
     private static final String QUEUE_NAME = "work_queue";
+    // 自适应预取的范围
+    private static final int MIN_PREFETCH = 1;
+    private static final int MAX_PREFETCH = 100;
+    // 合并确认时已完成的消息最多等待的时间（毫秒）
+    private static final long ACK_MAX_DELAY_MILLIS = 100;
 
     public static void main(String[] args) throws IOException, TimeoutException {
         // 获取 RabbitMQ 连接
@@ -25,13 +34,24 @@ public class WorkQueueConsumer1 {
         boolean durable = true;
         channel.queueDeclare(QUEUE_NAME, durable, false, false, null);
 
-        /**
-         * 设置通道的预取计数
-         * 参数为1表示RabbitMQ一次只发送一条消息给消费者
-         * 消费者处理完一条消息并确认后，才会发送下一条消息
-         * 这样可以实现公平分发，避免消息堆积
-         */
-        channel.basicQos(1);
+        // 是否使用自适应预取
+        final AdaptivePrefetchController prefetchController = args.length > 0 && "adaptive".equals(args[0])
+                ? new AdaptivePrefetchController(MIN_PREFETCH, MAX_PREFETCH) : null;
+        if (prefetchController != null) {
+            // 根据处理时间和往返时间自动调整预取数
+            prefetchController.start(channel);
+        } else {
+            /**
+             * 设置通道的预取计数
+             * 参数为1表示RabbitMQ一次只发送一条消息给消费者
+             * 消费者处理完一条消息并确认后，才会发送下一条消息
+             * 这样可以实现公平分发，避免消息堆积
+             */
+            channel.basicQos(1);
+        }
+        // 预取数为1时合并确认没有意义，只在自适应预取时使用
+        final AckCoalescer ackCoalescer = prefetchController != null
+                ? new AckCoalescer(channel, 1, ACK_MAX_DELAY_MILLIS) : null;
 
         System.out.println("[消费者1] 等待接收消息...");
 
@@ -42,6 +62,7 @@ public class WorkQueueConsumer1 {
         DeliverCallback deliverCallback = (consumerTag, delivery) -> {
             // 将消息体转换为字符串
             String message = new String(delivery.getBody(), "UTF-8");
+            long handleStart = prefetchController != null ? prefetchController.beforeHandle() : 0;
             System.out.println("[消费者1] 接收到消息: '" + message + "'");
 
             try {
@@ -51,15 +72,24 @@ public class WorkQueueConsumer1 {
                 e.printStackTrace();
             } finally {
                 System.out.println("[消费者1] 完成消息处理: '" + message + "'");
-
-                /**
-                 * 手动确认消息
-                 * 参数说明：
-                 * 1. deliveryTag: 消息的标签
-                 * 2. multiple: 是否批量确认
-                 * 手动确认可以确保消息被正确处理后才从队列中删除
-                 */
-                channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                if (prefetchController != null) {
+                    if (prefetchController.afterHandle(channel, handleStart)) {
+                        // 合并的阈值保持在预取数的一半，不会占满预取额度；统计只在调整预取数时输出，不拖慢每条消息
+                        ackCoalescer.setMaxPendingAcks(prefetchController.getCurrentPrefetch() / 2);
+                        prefetchController.printStats("消费者1");
+                        ackCoalescer.printStats();
+                    }
+                    ackCoalescer.ack(delivery.getEnvelope().getDeliveryTag());
+                } else {
+                    /**
+                     * 手动确认消息
+                     * 参数说明：
+                     * 1. deliveryTag: 消息的标签
+                     * 2. multiple: 是否批量确认
+                     * 手动确认可以确保消息被正确处理后才从队列中删除
+                     */
+                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                }
             }
         };
 
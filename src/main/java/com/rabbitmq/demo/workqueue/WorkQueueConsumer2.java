@@ -1,6 +1,7 @@
 package com.rabbitmq.demo.workqueue;
 
 import com.rabbitmq.client.*;
+import com.rabbitmq.demo.utils.AckCoalescer;
 import com.rabbitmq.demo.utils.RabbitMQUtils;
 
 import java.io.IOException;
@@ -10,10 +11,18 @@ import java.util.concurrent.TimeoutException;
  * 工作队列模式的消费者2
  * 工作队列模式允许多个消费者共同处理队列中的消息
  * 此消费者模拟较快的处理速度
+ *
+ * 启动参数为 adaptive 时使用自适应预取（AdaptivePrefetchController），
+ * 根据处理时间和往返时间自动调整预取数，并通过 AckCoalescer 合并确认；否则使用 basicQos(1) 逐条确认
  */
 public class WorkQueueConsumer2 {
     // 工作队列名称
     private static final String QUEUE_NAME = "work_queue";
+    // 自适应预取的范围
+    private static final int MIN_PREFETCH = 1;
+    private static final int MAX_PREFETCH = 100;
+    // 合并确认时已完成的消息最多等待的时间（毫秒）
+    private static final long ACK_MAX_DELAY_MILLIS = 100;
 
     public static void main(String[] args) throws IOException, TimeoutException {
         // 获取 RabbitMQ 连接
@@ -25,12 +34,23 @@ public class WorkQueueConsumer2 {
         boolean durable = true;
         channel.queueDeclare(QUEUE_NAME, durable, false, false, null);
 
-        /**
-         * 设置通道的预取计数
-         * 参数为1表示RabbitMQ一次只发送一条消息给消费者
-         * 结合手动确认，可以实现基于消费者处理能力的公平分发
-         */
-        channel.basicQos(1);
+        // 是否使用自适应预取
+        final AdaptivePrefetchController prefetchController = args.length > 0 && "adaptive".equals(args[0])
+                ? new AdaptivePrefetchController(MIN_PREFETCH, MAX_PREFETCH) : null;
+        if (prefetchController != null) {
+            // 根据处理时间和往返时间自动调整预取数
+            prefetchController.start(channel);
+        } else {
+            /**
+             * 设置通道的预取计数
+             * 参数为1表示RabbitMQ一次只发送一条消息给消费者
+             * 结合手动确认，可以实现基于消费者处理能力的公平分发
+             */
+            channel.basicQos(1);
+        }
+        // 预取数为1时合并确认没有意义，只在自适应预取时使用
+        final AckCoalescer ackCoalescer = prefetchController != null
+                ? new AckCoalescer(channel, 1, ACK_MAX_DELAY_MILLIS) : null;
 
         System.out.println("[消费者2] 等待接收消息...");
 
@@ -41,6 +61,7 @@ public class WorkQueueConsumer2 {
         DeliverCallback deliverCallback = (consumerTag, delivery) -> {
             // 将消息体转换为字符串
             String message = new String(delivery.getBody(), "UTF-8");
+            long handleStart = prefetchController != null ? prefetchController.beforeHandle() : 0;
             System.out.println("[消费者2] 接收到消息: '" + message + "'");
 
             try {
@@ -50,13 +71,22 @@ public class WorkQueueConsumer2 {
                 e.printStackTrace();
             } finally {
                 System.out.println("[消费者2] 完成消息处理: '" + message + "'");
-
-                /**
-                 * 手动确认消息
-                 * 确保消息被正确处理后才从队列中删除
-                 * 这样可以避免消费者处理失败时消息丢失
-                 */
-                channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                if (prefetchController != null) {
+                    if (prefetchController.afterHandle(channel, handleStart)) {
+                        // 合并的阈值保持在预取数的一半，不会占满预取额度；统计只在调整预取数时输出，不拖慢每条消息
+                        ackCoalescer.setMaxPendingAcks(prefetchController.getCurrentPrefetch() / 2);
+                        prefetchController.printStats("消费者2");
+                        ackCoalescer.printStats();
+                    }
+                    ackCoalescer.ack(delivery.getEnvelope().getDeliveryTag());
+                } else {
+                    /**
+                     * 手动确认消息
+                     * 确保消息被正确处理后才从队列中删除
+                     * 这样可以避免消费者处理失败时消息丢失
+                     */
+                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                }
             }
         };
 
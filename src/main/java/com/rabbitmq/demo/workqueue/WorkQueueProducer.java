@@ -5,18 +5,28 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.demo.utils.RabbitMQUtils;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
 /**
  * 工作队列模式的生产者
  * 发送多个任务到工作队列，由多个消费者共同处理
  * 实现了负载均衡和消息持久化
+ *
+ * 第一个启动参数为 load 时进入压测模式，其余参数交给 LoadGenerator，例如：
+ * load rate=20000 duration=60 threads=4 dist=bimodal persistent=true
  */
 public class WorkQueueProducer {
     // 工作队列名称
     private static final String QUEUE_NAME = "work_queue";
 
-    public static void main(String[] args) throws IOException, TimeoutException {
+    public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+        if (args.length > 0 && "load".equals(args[0])) {
+            // 压测模式：按目标速率持续发送，输出实际速率
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // 获取 RabbitMQ 连接
         Connection connection = RabbitMQUtils.getConnection();
         // 创建通道
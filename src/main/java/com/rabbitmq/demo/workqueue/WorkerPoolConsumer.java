@@ -0,0 +1,409 @@
+package com.rabbitmq.demo.workqueue;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.demo.utils.AckCoalescer;
+import com.rabbitmq.demo.utils.RabbitMQUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 工作线程池消费者
+ *
+ * WorkQueueConsumer1/2 在客户端的投递线程上直接处理消息，一个通道同一时刻只能处理一条消息。
+ * 本类把投递交给一个有界的工作线程池并行处理：
+ * 1. 预取数 = 工作线程数 × (1 + 每个线程的排队深度)，线程池的队列容量与预取数相同，
+ *    所有线程都在忙且队列已满时，未确认消息数正好达到预取数，Broker 自动停止投递（通过 QoS 限流）
+ * 2. 消息可能乱序处理完成，确认通过 AckCoalescer 发送：只有连续处理完成的部分才会被
+ *    multiple=true 一次确认，还在处理中的消息不会被提前确认
+ * 3. 处理失败的消息单独 nack，可以选择重新入队或转发到死信队列
+ * 4. close() 先取消消费并等待 Broker 的 cancel-ok（之后不会再有新的投递），再等待已收到的消息处理完成、
+ *    关闭线程池并发送剩余的确认；等待超时后仍到达的投递无法提交到线程池，直接 nack 重新入队
+ * 5. 指定顺序键（KeyExtractor）时通过 KeyOrderedExecutor 调度：相同键的消息按投递顺序串行处理，
+ *    不同键的消息并行处理，例如同一订单的事件依次处理
+ * 6. threadPerTask() 创建每条消息一个线程的消费者（运行在 Java 21 及以上版本时为虚拟线程，见 ConsumerThreads），
+ *    并发数直接由预取数限制，适合大量阻塞在IO上的处理函数
+ *
+ * 注意事项：
+ * - 没有指定顺序键时，消息的处理顺序不再与投递顺序一致
+ * - 通道上的确认由 AckCoalescer 统一发送，处理函数不能自己调用 basicAck
+ */
+public class WorkerPoolConsumer extends DefaultConsumer implements AutoCloseable {
+    // 工作队列名称（与 WorkQueueProducer 一致）
+    private static final String QUEUE_NAME = "work_queue";
+    // 每条消息一个线程时的最大并发数（预取数）
+    private static final int THREAD_PER_TASK_CONCURRENCY = 1000;
+    // 按键保序时使用的消息头
+    private static final String ORDER_KEY_HEADER = "order_id";
+    // 每个工作线程最多排队的消息数
+    private static final int QUEUE_DEPTH_PER_WORKER = 1;
+    // 已完成的消息最多等待多久被确认（毫秒）
+    private static final long ACK_MAX_DELAY_MILLIS = 100;
+    // close() 等待取消确认和处理完成的超时时间（秒）
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * 消息处理函数，在工作线程上调用，抛出异常表示处理失败
+     */
+    public interface MessageHandler {
+        void handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws Exception;
+    }
+
+    /**
+     * 从消息中提取顺序键，返回 null 表示这条消息不需要保序
+     */
+    public interface KeyExtractor {
+        String keyOf(Envelope envelope, AMQP.BasicProperties properties);
+
+        /**
+         * 优先使用指定的消息头作为顺序键，消息头不存在时使用路由键
+         *
+         * @param headerName 消息头名称
+         * @return 顺序键提取函数
+         */
+        static KeyExtractor headerOrRoutingKey(String headerName) {
+            return (envelope, properties) -> {
+                Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+                Object value = headers == null ? null : headers.get(headerName);
+                return value != null ? value.toString() : envelope.getRoutingKey();
+            };
+        }
+    }
+
+    // 消息处理函数
+    private final MessageHandler handler;
+    // 处理失败的消息是否重新入队
+    private final boolean requeueOnFailure;
+    // 工作线程池（或每个任务一个线程的执行器）
+    private final ExecutorService executor;
+    // 按键保序的调度层
+    private final KeyOrderedExecutor orderedExecutor;
+    // 顺序键提取函数，为 null 时不保序
+    private final KeyExtractor keyExtractor;
+    // 合并确认
+    private final AckCoalescer ackCoalescer;
+    // 预取数
+    private final int prefetch;
+    // 消费者标签
+    private volatile String consumerTag;
+    // 收到 cancel-ok（或消费被 Broker 取消、通道关闭）后打开
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    // 已收到但还没有处理完成的消息数，close() 在它归零后才关闭线程池
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // 正在处理的消息数
+    private final AtomicInteger active = new AtomicInteger();
+    // 处理成功的消息数
+    private final AtomicLong processedCount = new AtomicLong();
+    // 处理失败的消息数
+    private final AtomicLong failedCount = new AtomicLong();
+    // 同时处理的消息数峰值
+    private volatile int peakActive;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 创建工作线程池消费者，并在通道上设置对应的预取数
+     *
+     * @param channel          消费通道，通道上只能有这一个消费者
+     * @param workerCount      工作线程数
+     * @param requeueOnFailure 处理失败的消息是否重新入队
+     * @param handler          消息处理函数
+     * @throws IOException IO 异常
+     */
+    public WorkerPoolConsumer(Channel channel, int workerCount, boolean requeueOnFailure, MessageHandler handler)
+            throws IOException {
+        this(channel, workerCount, requeueOnFailure, null, handler);
+    }
+
+    /**
+     * 创建按键保序的工作线程池消费者，并在通道上设置对应的预取数
+     *
+     * @param channel          消费通道，通道上只能有这一个消费者
+     * @param workerCount      工作线程数
+     * @param requeueOnFailure 处理失败的消息是否重新入队
+     * @param keyExtractor     顺序键提取函数，为 null 时不保序
+     * @param handler          消息处理函数
+     * @throws IOException IO 异常
+     */
+    public WorkerPoolConsumer(Channel channel, int workerCount, boolean requeueOnFailure, KeyExtractor keyExtractor,
+            MessageHandler handler) throws IOException {
+        this(channel, newWorkerPool(workerCount), workerCount * (1 + QUEUE_DEPTH_PER_WORKER), requeueOnFailure,
+                keyExtractor, handler);
+    }
+
+    /**
+     * 创建每条消息一个线程的消费者：运行在 Java 21 及以上版本时为虚拟线程，否则为平台线程
+     *
+     * @param channel          消费通道，通道上只能有这一个消费者
+     * @param maxConcurrency   最大并发数，即通道的预取数
+     * @param requeueOnFailure 处理失败的消息是否重新入队
+     * @param keyExtractor     顺序键提取函数，为 null 时不保序
+     * @param handler          消息处理函数
+     * @return 消费者
+     * @throws IOException IO 异常
+     */
+    public static WorkerPoolConsumer threadPerTask(Channel channel, int maxConcurrency, boolean requeueOnFailure,
+            KeyExtractor keyExtractor, MessageHandler handler) throws IOException {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("最大并发数必须大于0");
+        }
+        return new WorkerPoolConsumer(channel, ConsumerThreads.newThreadPerTaskExecutor("task-consumer-"),
+                maxConcurrency, requeueOnFailure, keyExtractor, handler);
+    }
+
+    private WorkerPoolConsumer(Channel channel, ExecutorService executor, int prefetch, boolean requeueOnFailure,
+            KeyExtractor keyExtractor, MessageHandler handler) throws IOException {
+        super(channel);
+        this.handler = handler;
+        this.requeueOnFailure = requeueOnFailure;
+        this.keyExtractor = keyExtractor;
+        this.prefetch = prefetch;
+        this.executor = executor;
+        this.orderedExecutor = new KeyOrderedExecutor(executor);
+        this.ackCoalescer = new AckCoalescer(channel, Math.max(1, prefetch / 2), ACK_MAX_DELAY_MILLIS);
+
+        // 预取数限制了未确认的消息数，也就限制了同时处理的消息数
+        channel.basicQos(prefetch);
+    }
+
+    private static ThreadPoolExecutor newWorkerPool(int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("工作线程数必须大于0");
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 队列容量等于预取数，Broker 最多只会投递这么多条未确认的消息，提交不会被拒绝
+        return new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerCount * (1 + QUEUE_DEPTH_PER_WORKER)),
+                r -> new Thread(r, "pool-consumer-" + threadIndex.incrementAndGet()));
+    }
+
+    /**
+     * 开始消费
+     *
+     * @param queue 队列名称
+     * @throws IOException IO 异常
+     */
+    public void start(String queue) throws IOException {
+        consumerTag = getChannel().basicConsume(queue, false, this);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        pending.incrementAndGet();
+        Runnable task = () -> {
+            try {
+                process(envelope, properties, body);
+            } finally {
+                release();
+            }
+        };
+        try {
+            if (keyExtractor != null) {
+                // 相同键的消息按投递顺序串行处理，确认仍由 AckCoalescer 保证只覆盖已完成的消息
+                orderedExecutor.execute(keyExtractor.keyOf(envelope, properties), task);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            // 线程池已关闭（close() 等待超时），把消息还给 Broker，而不是让投递线程抛出异常
+            release();
+            try {
+                ackCoalescer.nack(envelope.getDeliveryTag(), true);
+            } catch (IOException ex) {
+                System.err.println("[线程池消费者] 线程池已关闭，重新入队失败: " + ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void handleCancelOk(String consumerTag) {
+        cancelled.countDown();
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+        cancelled.countDown();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        cancelled.countDown();
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 等待已收到的消息全部处理完成
+     *
+     * @return 是否在超时前完成
+     */
+    private boolean awaitPending(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                pending.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    private void process(Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        int current = active.incrementAndGet();
+        if (current > peakActive) {
+            peakActive = current;
+        }
+        long deliveryTag = envelope.getDeliveryTag();
+        try {
+            handler.handle(envelope, properties, body);
+            processedCount.incrementAndGet();
+            ackCoalescer.ack(deliveryTag);
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            System.err.println("[线程池消费者] 处理消息失败，deliveryTag: " + deliveryTag + ", " + e.getMessage());
+            try {
+                ackCoalescer.nack(deliveryTag, requeueOnFailure);
+            } catch (IOException ex) {
+                System.err.println("[线程池消费者] 拒绝消息失败: " + ex.getMessage());
+            }
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return 通道上设置的预取数
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * 打印处理统计信息
+     */
+    public void printStats() {
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        String threads = executor instanceof ThreadPoolExecutor
+                ? "工作线程 " + ((ThreadPoolExecutor) executor).getCorePoolSize() + ", 排队 "
+                        + ((ThreadPoolExecutor) executor).getQueue().size()
+                : "每条消息一个" + (ConsumerThreads.isVirtual() ? "虚拟线程" : "平台线程");
+        System.out.printf("[线程池消费者] %s, 预取数: %d, 处理中: %d (峰值 %d), 成功: %d, 失败: %d, 吞吐量: %.1f 条/秒\n",
+                threads, prefetch, active.get(), peakActive, processedCount.get(), failedCount.get(),
+                processedCount.get() / elapsedSeconds);
+        if (keyExtractor != null) {
+            System.out.printf("[线程池消费者] 活跃顺序键: %d (峰值 %d)\n",
+                    orderedExecutor.getActiveKeyCount(), orderedExecutor.getPeakActiveKeyCount());
+        }
+        ackCoalescer.printStats();
+    }
+
+    /**
+     * 取消消费，等待 cancel-ok 和已收到的消息处理完成，再关闭线程池并发送剩余的确认
+     *
+     * cancel-ok 之前投递线程上可能还有消息在途，先关闭线程池会让这些消息提交失败；
+     * 按键保序时队列中的后续任务也要重新提交到线程池，所以要等所有消息处理完成后才关闭
+     */
+    @Override
+    public void close() {
+        try {
+            if (consumerTag != null && getChannel().isOpen()) {
+                getChannel().basicCancel(consumerTag);
+            }
+        } catch (IOException e) {
+            System.err.println("[线程池消费者] 取消消费失败: " + e.getMessage());
+        }
+        try {
+            if (consumerTag != null && !cancelled.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("[线程池消费者] 等待取消确认超时");
+            }
+            if (!awaitPending(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("[线程池消费者] 等待处理完成超时，未完成: " + pending.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("[线程池消费者] 等待线程池关闭超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ackCoalescer.close();
+    }
+
+    public static void main(String[] args) throws IOException, TimeoutException {
+        // 获取 RabbitMQ 连接
+        Connection connection = RabbitMQUtils.getConnection();
+        // 创建通道
+        Channel channel = connection.createChannel();
+
+        // 声明持久化队列（与生产者保持一致）
+        channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+
+        List<String> options = Arrays.asList(args);
+        // 启动参数包含 ordered 时按 order_id 消息头（没有时按路由键）保序
+        KeyExtractor keyExtractor = options.contains("ordered")
+                ? KeyExtractor.headerOrRoutingKey(ORDER_KEY_HEADER) : null;
+        MessageHandler handler = (envelope, properties, body) -> {
+            String message = new String(body, "UTF-8");
+            System.out.println("[" + Thread.currentThread().getName() + "] 接收到消息: '" + message + "'");
+            // 模拟处理消息的耗时操作（1秒），多条消息并行处理
+            Thread.sleep(1000);
+            System.out.println("[" + Thread.currentThread().getName() + "] 完成消息处理: '" + message + "'");
+        };
+
+        WorkerPoolConsumer consumer;
+        if (options.contains("virtual")) {
+            // 每条消息一个线程（Java 21 下为虚拟线程），并发数由预取数限制
+            consumer = threadPerTask(channel, THREAD_PER_TASK_CONCURRENCY, false, keyExtractor, handler);
+        } else {
+            // 工作线程数与CPU核数相同
+            consumer = new WorkerPoolConsumer(channel, Runtime.getRuntime().availableProcessors(), false,
+                    keyExtractor, handler);
+        }
+        consumer.start(QUEUE_NAME);
+        System.out.println("[线程池消费者] 等待接收消息，预取数: " + consumer.getPrefetch()
+                + (ConsumerThreads.isVirtual() ? "（虚拟线程可用）" : ""));
+
+        // 保持程序运行
+        System.out.println("按回车键结束程序...");
+        try {
+            System.in.read();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            consumer.close();
+            consumer.printStats();
+            // 关闭通道和连接
+            RabbitMQUtils.closeChannel(channel);
+            RabbitMQUtils.closeConnection(connection);
+        }
+    }
+}